@@ -112,12 +112,22 @@ jfieldID jpcapID;
 int linktypes[MAX_NUMBER_OF_INSTANCE];
 bpf_u_int32 netnums[MAX_NUMBER_OF_INSTANCE],netmasks[MAX_NUMBER_OF_INSTANCE];
 jobject jpcap_handlers[MAX_NUMBER_OF_INSTANCE];
+jobjectArray batch_arrays[MAX_NUMBER_OF_INSTANCE];
+jint batch_counts[MAX_NUMBER_OF_INSTANCE];
+u_char *raw_buffers[MAX_NUMBER_OF_INSTANCE];
+jlong raw_capacities[MAX_NUMBER_OF_INSTANCE],raw_offsets[MAX_NUMBER_OF_INSTANCE];
+jint raw_counts[MAX_NUMBER_OF_INSTANCE];
+
+#define RAW_HEADER_LENGTH jpcap_JpcapCaptor_RAW_HEADER_LENGTH
+#define raw_record_length(caplen) ((RAW_HEADER_LENGTH+(caplen)+3)&~3)
 char pcap_errbuf[PCAP_ERRBUF_SIZE][MAX_NUMBER_OF_INSTANCE];
 
 void set_info(JNIEnv *env,jobject obj,pcap_t *pcd);
 void set_Java_env(JNIEnv *);
 void get_packet(struct pcap_pkthdr,u_char *,jobject *,int);
 void dispatcher_handler(u_char *,const struct pcap_pkthdr *,const u_char *);
+void batch_handler(u_char *,const struct pcap_pkthdr *,const u_char *);
+void raw_handler(u_char *,const struct pcap_pkthdr *,const u_char *);
 
 struct ip_packet *getIP(char *payload);
 
@@ -471,6 +481,61 @@ Java_jpcap_JpcapCaptor_loopPacket(JNIEnv *env,jobject obj,
   return pkt_cnt;
 }
 
+/**
+Dispatch Packets into a Batch
+The packets are only stored into the array, JpcapCaptor.dispatchBatch()
+hands the whole batch to the PacketBatchReceiver.
+**/
+JNIEXPORT jint JNICALL
+Java_jpcap_JpcapCaptor_nativeDispatchBatch(JNIEnv *env,jobject obj,
+			    jobjectArray batch,jint max)
+{
+  jint pkt_cnt;
+  jint id=getJpcapID(env,obj);
+
+  jni_envs[id]=env;
+  batch_arrays[id]=batch;
+  batch_counts[id]=0;
+
+  pkt_cnt=pcap_dispatch(pcds[id],max,batch_handler,(u_char *)id);
+
+  batch_arrays[id]=NULL;
+  if(pkt_cnt<0) return pkt_cnt;
+  return batch_counts[id];
+}
+
+/**
+Dispatch Raw Frames into a direct ByteBuffer
+No Java objects are created, see JpcapCaptor.RAW_HEADER_LENGTH for the layout.
+**/
+JNIEXPORT jint JNICALL
+Java_jpcap_JpcapCaptor_nativeDispatchRaw(JNIEnv *env,jobject obj,
+			    jobject buffer,jint max)
+{
+  jint pkt_cnt,limit;
+  jint id=getJpcapID(env,obj);
+
+  raw_buffers[id]=(u_char *)(*env)->GetDirectBufferAddress(env,buffer);
+  raw_capacities[id]=(*env)->GetDirectBufferCapacity(env,buffer);
+  if(raw_buffers[id]==NULL || raw_capacities[id]<RAW_HEADER_LENGTH){
+    raw_buffers[id]=NULL;
+    return -1;
+  }
+  raw_offsets[id]=0;
+  raw_counts[id]=0;
+
+  // never take more packets from libpcap than fit into the buffer
+  limit=(jint)(raw_capacities[id]/raw_record_length(pcap_snapshot(pcds[id])));
+  if(limit<1) limit=1;
+  if(max<=0 || max>limit) max=limit;
+
+  pkt_cnt=pcap_dispatch(pcds[id],max,raw_handler,(u_char *)id);
+
+  raw_buffers[id]=NULL;
+  if(pkt_cnt<0) return pkt_cnt;
+  return raw_counts[id];
+}
+
 
 /**
 Get One Packet
@@ -693,6 +758,50 @@ void dispatcher_handler(u_char *id,const struct pcap_pkthdr *header,
   YIELD();
 }
 
+void batch_handler(u_char *id,const struct pcap_pkthdr *header,
+			const u_char *data)
+{
+  jobject packet;
+  int ID=(int)id;
+
+  JNIEnv *env=jni_envs[ID];
+
+  get_packet(*header,(u_char *)data,&packet,ID);
+  (*env)->SetObjectArrayElement(env,batch_arrays[ID],batch_counts[ID]++,packet);
+  DeleteLocalRef(packet);
+}
+
+void put_int(u_char *p,u_int v){
+  p[0]=(u_char)(v>>24);
+  p[1]=(u_char)(v>>16);
+  p[2]=(u_char)(v>>8);
+  p[3]=(u_char)v;
+}
+
+void raw_handler(u_char *id,const struct pcap_pkthdr *header,
+			const u_char *data)
+{
+  int ID=(int)id;
+  u_char *p=raw_buffers[ID]+raw_offsets[ID];
+  jlong room=raw_capacities[ID]-raw_offsets[ID]-RAW_HEADER_LENGTH;
+  jlong sec=(jlong)header->ts.tv_sec;
+  u_int caplen=header->caplen;
+
+  if(room<0) return;
+  if(caplen>room) caplen=(u_int)room; // buffer smaller than the snapshot length
+
+  put_int(p,(u_int)(sec>>32));
+  put_int(p+4,(u_int)sec);
+  put_int(p+8,(u_int)header->ts.tv_usec);
+  put_int(p+12,caplen);
+  put_int(p+16,header->len);
+  put_int(p+20,(u_int)linktypes[ID]);
+  memcpy(p+RAW_HEADER_LENGTH,data,caplen);
+
+  raw_offsets[ID]+=raw_record_length(caplen);
+  raw_counts[ID]++;
+}
+
 void get_packet(struct pcap_pkthdr header,u_char *data,jobject *packet,int id){
 
   u_short nproto,tproto;
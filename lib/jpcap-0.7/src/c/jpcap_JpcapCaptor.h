@@ -9,6 +9,8 @@ extern "C" {
 #endif
 #undef jpcap_JpcapCaptor_MAX_NUMBER_OF_INSTANCE
 #define jpcap_JpcapCaptor_MAX_NUMBER_OF_INSTANCE 255L
+#undef jpcap_JpcapCaptor_RAW_HEADER_LENGTH
+#define jpcap_JpcapCaptor_RAW_HEADER_LENGTH 24L
 /* Inaccessible static: instanciatedFlag */
 /*
  * Class:     jpcap_JpcapCaptor
@@ -66,6 +68,22 @@ JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_processPacket
 JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_loopPacket
   (JNIEnv *, jobject, jint, jobject);
 
+/*
+ * Class:     jpcap_JpcapCaptor
+ * Method:    nativeDispatchBatch
+ * Signature: ([Ljpcap/packet/Packet;I)I
+ */
+JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_nativeDispatchBatch
+  (JNIEnv *, jobject, jobjectArray, jint);
+
+/*
+ * Class:     jpcap_JpcapCaptor
+ * Method:    nativeDispatchRaw
+ * Signature: (Ljava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_jpcap_JpcapCaptor_nativeDispatchRaw
+  (JNIEnv *, jobject, jobject, jint);
+
 /*
  * Class:     jpcap_JpcapCaptor
  * Method:    setNonBlockingMode
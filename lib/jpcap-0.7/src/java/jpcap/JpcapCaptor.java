@@ -22,6 +22,21 @@ public class JpcapCaptor extends JpcapInstance {
 	 */
 	public int dropped_packets;
 
+	/** Reused by dispatchBatch() */
+	private Packet[] batch;
+
+	/**
+	 * Length of the header in front of each frame stored by dispatchRaw().<BR>
+	 * All fields are big endian:<BR>
+	 * 0: timestamp sec (8 bytes)<BR>
+	 * 8: timestamp usec (4 bytes)<BR>
+	 * 12: captured length (4 bytes)<BR>
+	 * 16: length of the packet (4 bytes)<BR>
+	 * 20: datalink type, e.g. 1 for Ethernet (4 bytes)<BR>
+	 * The next record starts at the next multiple of 4 after the frame.
+	 */
+	public static final int RAW_HEADER_LENGTH = 24;
+
 	private native String nativeOpenLive(String device, int snaplen,
 			int promisc, int to_ms);
 
@@ -144,6 +159,70 @@ public class JpcapCaptor extends JpcapInstance {
 	 */
 	public native int loopPacket(int count, PacketReceiver handler);
 
+	private native int nativeDispatchBatch(Packet[] batch, int max);
+
+	/**
+	 * Captures up to the specified number of packets with a single
+	 * pcap_dispatch() and passes them to the handler in one call.<br/>
+	 * 
+	 * Like processPacket(), this method returns when the timeout expires.
+	 * Unlike processPacket(), the handler is not called for each packet,
+	 * which saves one JNI upcall per packet on busy interfaces.
+	 * 
+	 * @param max
+	 *            Max number of packets to be captured
+	 * @param handler
+	 *            an instance of PacketBatchReceiver that analyzes the captured packets
+	 * @return Number of captured packets, 0 if the timeout expired, -1 if an
+	 *         error occured, -2 if breakLoop() was called
+	 */
+	public int dispatchBatch(int max, PacketBatchReceiver handler) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be positive: " + max);
+		if (batch == null || batch.length < max)
+			batch = new Packet[max];
+
+		int count = nativeDispatchBatch(batch, max);
+		if (count > 0) {
+			handler.receivePackets(batch, count);
+			java.util.Arrays.fill(batch, 0, count, null);
+		}
+		return count;
+	}
+
+	private native int nativeDispatchRaw(java.nio.ByteBuffer buffer, int max);
+
+	/**
+	 * Captures up to the specified number of packets with a single
+	 * pcap_dispatch() and copies the raw frames into the buffer instead of
+	 * creating Packet objects.<br/>
+	 * 
+	 * Never more packets are taken than fit into the buffer with the
+	 * snapshot length of this instance. The frames can be decoded in place,
+	 * the buffer can be reused once the handler is done with it.
+	 * 
+	 * @param max
+	 *            Max number of packets to be captured<BR>
+	 *            You can specify -1 to capture as many as fit into the buffer.
+	 * @param buffer
+	 *            a direct ByteBuffer the records are written to, starting at index 0
+	 * @param handler
+	 *            an instance of RawPacketReceiver that analyzes the captured frames
+	 * @return Number of captured packets, 0 if the timeout expired, -1 if an
+	 *         error occured, -2 if breakLoop() was called
+	 * @see #RAW_HEADER_LENGTH
+	 */
+	public int dispatchRaw(int max, java.nio.ByteBuffer buffer,
+			RawPacketReceiver handler) {
+		if (!buffer.isDirect())
+			throw new IllegalArgumentException("buffer must be a direct ByteBuffer");
+
+		int count = nativeDispatchRaw(buffer, max);
+		if (count > 0)
+			handler.receiveRaw(buffer, count);
+		return count;
+	}
+
 	/**
 	 * Same as <a href="#processPacket(int, jpcap.PacketReceiver)">processPacket()</a>
 	 */
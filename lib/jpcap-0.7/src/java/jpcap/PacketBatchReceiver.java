@@ -0,0 +1,20 @@
+package jpcap;
+
+import jpcap.packet.Packet;
+
+/** This interface is used to analyze the captured packets in batches,
+ * which is used in JpcapCaptor.dispatchBatch()
+ * @see JpcapCaptor#dispatchBatch(int,PacketBatchReceiver)
+ */
+public interface PacketBatchReceiver
+{
+    /** Analyzes a batch of packets.<BR>
+     * <BR>
+     * This method is called once per dispatchBatch() with all the packets
+     * captured by one pcap_dispatch(). The array is reused by the next call,
+     * so the receiver must not keep a reference to it.
+     * @param packets captured packets, valid from index 0 to count-1
+     * @param count Number of captured packets
+     */
+  public void receivePackets(Packet[] packets,int count);
+}
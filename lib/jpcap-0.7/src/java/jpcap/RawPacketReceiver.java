@@ -0,0 +1,20 @@
+package jpcap;
+
+import java.nio.ByteBuffer;
+
+/** This interface is used to analyze packets captured as raw frames,
+ * which is used in JpcapCaptor.dispatchRaw()
+ * @see JpcapCaptor#dispatchRaw(int,ByteBuffer,RawPacketReceiver)
+ */
+public interface RawPacketReceiver
+{
+    /** Analyzes the frames stored in a buffer.<BR>
+     * <BR>
+     * The buffer holds count records starting at index 0. Each record is a
+     * header of {@link JpcapCaptor#RAW_HEADER_LENGTH RAW_HEADER_LENGTH} bytes
+     * followed by the captured frame. No Packet objects are created.
+     * @param buffer the direct buffer passed to dispatchRaw()
+     * @param count Number of records in the buffer
+     */
+  public void receiveRaw(ByteBuffer buffer,int count);
+}
@@ -1,5 +1,8 @@
+import java.io.File;
+
 import jpcap.*;
 import jpcap.packet.Packet;
+import router66.PcapFileReader;
 
 class ReadDump implements PacketReceiver {
 	public void receivePacket(Packet packet) {
@@ -8,9 +11,11 @@ class ReadDump implements PacketReceiver {
 
 	public static void main(String[] args) throws Exception {
 		System.out.println(Runtime.getRuntime().freeMemory());
-		JpcapCaptor jpcap = JpcapCaptor.openFile("test.cap");	
+		// pcap or pcapng, memory mapped, no libpcap needed
+		PcapFileReader reader = new PcapFileReader(new File(args.length>0 ? args[0] : "test.cap"));
 		System.out.println(Runtime.getRuntime().freeMemory());
-		jpcap.loopPacket(-1, new ReadDump());
+		reader.loopPacket(-1, new ReadDump());
+		reader.close();
 		System.out.println(Runtime.getRuntime().freeMemory());
 		System.gc();
 		System.out.println(Runtime.getRuntime().freeMemory());
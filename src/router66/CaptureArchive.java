@@ -0,0 +1,377 @@
+package router66;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jpcap.PacketBatchReceiver;
+import jpcap.PacketReceiver;
+import jpcap.packet.Packet;
+
+import router66.RingBuffer.OverflowPolicy;
+import router66.RingBuffer.WaitStrategy;
+
+/**
+ * Retention buffer of the raw traffic. Packets are only queued on the capture
+ * thread, a background thread writes them into pcap segments with large
+ * buffered writes. A segment is closed once it reaches maxSegmentBytes or
+ * maxSegmentMillis, the oldest segments are deleted to stay below the disk
+ * budget. Every closed segment gets a line with its first and last timestamp
+ * in the index file, so find() locates a time range without reading pcaps.
+ *
+ * The file format is the one pcap_dump writes. JpcapWriter is not used, it has
+ * a single global dumper and its close() frees the pcap_t of the captor.
+ */
+public class CaptureArchive implements PacketReceiver, PacketBatchReceiver {
+	static final String INDEX = "index";
+	static final String PREFIX = "segment-";
+	static final String SUFFIX = ".pcap";
+	static final int WRITE_BUFFER = 1<<20;
+	static final int SNAPLEN = 65535;
+
+	/**
+	 * A pcap file of the archive and the time range it covers
+	 */
+	public static class Segment {
+		public final File file;
+		public long firstSec, firstUsec, lastSec, lastUsec;
+		public long packets, bytes;
+
+		Segment(File file){
+			this.file = file;
+		}
+
+		/** true if the segment has packets between from and to (seconds, inclusive) */
+		public boolean overlaps(long fromSec, long toSec){
+			return packets>0 && firstSec<=toSec && lastSec>=fromSec;
+		}
+
+		String toIndexLine(){
+			return file.getName()+" "+firstSec+" "+firstUsec+" "+lastSec+" "+lastUsec+" "+packets+" "+bytes;
+		}
+
+		public String toString(){
+			return toIndexLine();
+		}
+	}
+
+	private final File directory;
+	private final int datalink;
+	private final long maxSegmentBytes;
+	private final long maxSegmentMillis;
+	private final long diskBudget;
+	private final RingBuffer<Packet> ring;
+	private final Thread thread;
+
+	private final LinkedList<Segment> closed = new LinkedList<Segment>();	// guarded by this, oldest first
+	private Segment current;			// guarded by this
+	private long closedBytes = 0;		// guarded by this
+	private int sequence = 0;
+	private OutputStream out;
+	private long opened;
+	private final byte[] record = new byte[PcapFileReader.PCAP_RECORD_HEADER_LENGTH];
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param directory created if missing, segments listed in an existing index are kept
+	 * @param datalink pcap link type of the packets, e.g. PacketView.DLT_EN10MB
+	 * @param queueSize packets waiting for the disk, further packets are dropped
+	 * @param maxSegmentBytes
+	 * @param maxSegmentMillis
+	 * @param diskBudget bytes all segments together may use
+	 */
+	public CaptureArchive(File directory, int datalink, int queueSize, long maxSegmentBytes, long maxSegmentMillis, long diskBudget) throws IOException{
+		this.directory = directory;
+		this.datalink = datalink;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentMillis = maxSegmentMillis;
+		this.diskBudget = diskBudget;
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Cannot create "+directory);
+		}
+		readIndex();
+		// the archive must never slow down the capture
+		this.ring = new RingBuffer<Packet>(queueSize, OverflowPolicy.DROP_NEWEST, WaitStrategy.BLOCKING);
+		this.thread = new Thread(new Archiver(), "archive");
+		this.thread.setDaemon(true);
+	}
+
+	public void start(){
+		thread.start();
+	}
+
+	/**
+	 * Called on the capture thread, only enqueues.
+	 */
+	public void receivePacket(Packet packet){
+		ring.offer(packet);
+	}
+
+	public void receivePackets(Packet[] packets, int count){
+		ring.offerAll(packets, 0, count);
+	}
+
+	/**
+	 * Writes what is queued, closes the current segment and stops the thread.
+	 */
+	public void shutdown() throws InterruptedException{
+		ring.close();
+		thread.join();
+	}
+
+	/**
+	 * Segments with packets between from and to, oldest first.
+	 * @param fromSec
+	 * @param toSec
+	 */
+	public synchronized List<Segment> find(long fromSec, long toSec){
+		List<Segment> found = new ArrayList<Segment>();
+		for(Segment segment : closed){
+			if(segment.overlaps(fromSec, toSec)){
+				found.add(segment);
+			}
+		}
+		if(current!=null && current.overlaps(fromSec, toSec)){
+			found.add(current);
+		}
+		return found;
+	}
+
+	private void readIndex() throws IOException{
+		File index = new File(directory, INDEX);
+		if(!index.exists()){
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(index));
+		try{
+			String line;
+			while((line = reader.readLine())!=null){
+				String[] fields = line.trim().split(" ");
+				if(fields.length!=7){
+					continue;
+				}
+				Segment segment = new Segment(new File(directory, fields[0]));
+				if(!segment.file.exists()){
+					continue;
+				}
+				try{
+					segment.firstSec = Long.parseLong(fields[1]);
+					segment.firstUsec = Long.parseLong(fields[2]);
+					segment.lastSec = Long.parseLong(fields[3]);
+					segment.lastUsec = Long.parseLong(fields[4]);
+					segment.packets = Long.parseLong(fields[5]);
+					segment.bytes = Long.parseLong(fields[6]);
+				}catch(NumberFormatException e){
+					System.out.println("CaptureArchive: bad index line "+line);
+					continue;
+				}
+				closed.add(segment);
+				closedBytes += segment.file.length();
+				sequence = Math.max(sequence, sequenceOf(segment.file.getName())+1);
+			}
+		}finally{
+			reader.close();
+		}
+	}
+
+	private static int sequenceOf(String name){
+		try{
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length()-SUFFIX.length()));
+		}catch(RuntimeException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Rewrites the whole index, it has one short line per segment.
+	 */
+	private synchronized void writeIndex() throws IOException{
+		File index = new File(directory, INDEX);
+		File tmp = new File(directory, INDEX+".tmp");
+		PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+		try{
+			for(Segment segment : closed){
+				writer.println(segment.toIndexLine());
+			}
+		}finally{
+			writer.close();
+		}
+		if(!tmp.renameTo(index)){
+			index.delete();
+			if(!tmp.renameTo(index)){
+				throw new IOException("Cannot replace "+index);
+			}
+		}
+	}
+
+	private void open() throws IOException{
+		File file = new File(directory, PREFIX+String.format("%06d", sequence++)+SUFFIX);
+		while(file.exists()){
+			// left unindexed by a run that was killed, keep it
+			file = new File(directory, PREFIX+String.format("%06d", sequence++)+SUFFIX);
+		}
+		out = new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER);
+		byte[] header = new byte[PcapFileReader.PCAP_FILE_HEADER_LENGTH];
+		putInt(header, 0, PcapFileReader.PCAP_MAGIC_MICRO);
+		header[4] = 0;
+		header[5] = 2;		// version 2.4
+		header[6] = 0;
+		header[7] = 4;
+		putInt(header, 16, SNAPLEN);
+		putInt(header, 20, datalink);
+		out.write(header);
+		opened = System.currentTimeMillis();
+		Segment segment = new Segment(file);
+		segment.bytes = header.length;
+		synchronized(this){
+			current = segment;
+		}
+	}
+
+	private void write(Packet packet) throws IOException{
+		if(out!=null && (current.bytes>=maxSegmentBytes || System.currentTimeMillis()-opened>=maxSegmentMillis)){
+			rotate();
+		}
+		if(out==null){
+			open();
+		}
+		byte[] header = packet.header!=null ? packet.header : new byte[0];
+		byte[] data = packet.data!=null ? packet.data : new byte[0];
+		int caplen = header.length+data.length;
+		putInt(record, 0, (int)packet.sec);
+		putInt(record, 4, (int)packet.usec);
+		putInt(record, 8, caplen);
+		putInt(record, 12, Math.max(packet.len, caplen));
+		out.write(record);
+		out.write(header);
+		out.write(data);
+		synchronized(this){
+			if(current.packets==0){
+				current.firstSec = packet.sec;
+				current.firstUsec = packet.usec;
+			}
+			current.lastSec = packet.sec;
+			current.lastUsec = packet.usec;
+			current.packets++;
+			current.bytes += record.length+caplen;
+		}
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Closes the current segment, indexes it and deletes the oldest
+	 * segments that don't fit into the disk budget anymore.
+	 */
+	private void rotate() throws IOException{
+		out.close();
+		out = null;
+		synchronized(this){
+			closed.add(current);
+			closedBytes += current.file.length();
+			current = null;
+			while(closedBytes>diskBudget && closed.size()>1){
+				Segment oldest = closed.removeFirst();
+				closedBytes -= oldest.file.length();
+				if(!oldest.file.delete()){
+					System.out.println("CaptureArchive: cannot delete "+oldest.file);
+				}
+				deleted.incrementAndGet();
+			}
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Gives up the current segment after a write error, the next packet opens a new one.
+	 */
+	private void abandon(){
+		try{
+			if(out!=null){
+				rotate();
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+			out = null;
+			synchronized(this){
+				current = null;
+			}
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value){
+		b[offset] = (byte)(value>>>24);
+		b[offset+1] = (byte)(value>>>16);
+		b[offset+2] = (byte)(value>>>8);
+		b[offset+3] = (byte)value;
+	}
+
+	/** packets written to disk */
+	public long getWritten(){
+		return written.get();
+	}
+
+	/** packets dropped because the disk did not keep up */
+	public long getDropped(){
+		return ring.getDropped();
+	}
+
+	/** segments deleted to stay inside the disk budget */
+	public long getDeleted(){
+		return deleted.get();
+	}
+
+	public long getErrors(){
+		return errors.get();
+	}
+
+	public synchronized String toString(){
+		return "archive "+directory+": "+closed.size()+" segments, "+closedBytes+" bytes, written "+written.get()
+			+" dropped "+ring.getDropped()+" deleted "+deleted.get()+" errors "+errors.get()+", "+ring;
+	}
+
+	private class Archiver implements Runnable {
+		public void run(){
+			while(true){
+				Packet packet = ring.poll();
+				try{
+					if(packet==null){
+						// idle, get the buffered packets onto the disk
+						if(out!=null){
+							out.flush();
+						}
+						packet = ring.take();
+						if(packet==null){
+							break;
+						}
+					}
+					write(packet);
+				}catch(IOException e){
+					errors.incrementAndGet();
+					e.printStackTrace();
+					abandon();
+				}
+			}
+			try{
+				if(out!=null){
+					rotate();
+				}
+			}catch(IOException e){
+				errors.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+	}
+}
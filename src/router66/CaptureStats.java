@@ -0,0 +1,318 @@
+package router66;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import jpcap.JpcapCaptor;
+
+/**
+ * Samples the kernel counters of the capture devices (JpcapCaptor.updateStat)
+ * and the depth of the internal queues at a fixed interval. The received and
+ * dropped counters are turned into rates per interface. Everything is published
+ * as attributes of the JMX bean router66:type=CaptureStats, and a warning is
+ * printed when the share of dropped packets on an interface crosses the threshold.
+ */
+public class CaptureStats implements DynamicMBean {
+	static final String OBJECT_NAME = "router66:type=CaptureStats";
+
+	/**
+	 * A value read at every sample, e.g. the depth of a queue
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	/**
+	 * Kernel counters of one capture device
+	 */
+	private abstract static class Device {
+		final String name;
+		long lastReceived = -1;
+		long lastDropped = -1;
+		boolean alarm = false;
+
+		Device(String name){
+			this.name = name;
+		}
+
+		/** refreshes the counters, called by the sampler thread */
+		abstract void update();
+		/** called on the capture thread, see CaptureStats.refresh */
+		void refresh(){
+		}
+		/** counters as unsigned values */
+		abstract long received();
+		abstract long dropped();
+	}
+
+	private final long intervalMillis;
+	private final double dropThreshold;
+	private final List<Device> devices = new ArrayList<Device>();		// guarded by this
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();	// guarded by this
+	private volatile Map<String, Object> metrics = Collections.emptyMap();
+	private volatile boolean dropAlarm = false;
+	private volatile boolean refreshRequested = false;
+	private final Thread thread;
+	private volatile boolean stopped = false;
+	private long lastSample = 0;
+
+	/**
+	 * @param intervalMillis time between two samples
+	 * @param dropThreshold share of dropped packets per interval, e.g. 0.01 for 1%,
+	 *        that sets off the warning
+	 */
+	public CaptureStats(long intervalMillis, double dropThreshold){
+		this.intervalMillis = intervalMillis;
+		this.dropThreshold = dropThreshold;
+		this.thread = new Thread(new Sampler(), "capture-stats");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Samples a captor. updateStat must not run while the capture thread is
+	 * inside dispatch, so the sampler only asks for it and the capture thread
+	 * calls refresh between two dispatch calls, as MultiCapture does: the
+	 * counters are one sample old. To be called before capturing starts.
+	 */
+	public synchronized void addDevice(String name, final JpcapCaptor captor){
+		captor.updateStat();
+		devices.add(new Device(name){
+			volatile int receivedPackets = captor.received_packets;
+			volatile int droppedPackets = captor.dropped_packets;
+			void update(){
+				refreshRequested = true;
+			}
+			void refresh(){
+				captor.updateStat();
+				receivedPackets = captor.received_packets;
+				droppedPackets = captor.dropped_packets;
+			}
+			long received(){
+				return receivedPackets&0xffffffffL;
+			}
+			long dropped(){
+				return droppedPackets&0xffffffffL;
+			}
+		});
+	}
+
+	/**
+	 * Samples interface i of a MultiCapture, its capture threads refresh the counters.
+	 */
+	public synchronized void addDevice(String name, final MultiCapture capture, final int i){
+		devices.add(new Device(name){
+			void update(){
+			}
+			long received(){
+				return capture.getReceived(i)&0xffffffffL;
+			}
+			long dropped(){
+				return capture.getDropped(i)&0xffffffffL;
+			}
+		});
+	}
+
+	/**
+	 * Refreshes the counters of the captors if the sampler asked for it,
+	 * to be called on the capture thread between two dispatch calls.
+	 */
+	public void refresh(){
+		if(!refreshRequested){
+			return;
+		}
+		refreshRequested = false;
+		synchronized(this){
+			for(Device device : devices){
+				device.refresh();
+			}
+		}
+	}
+
+	public synchronized void addGauge(String name, Gauge gauge){
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Publishes depth, high water mark, capacity and drops of a ring.
+	 */
+	public void addQueue(String name, final RingBuffer<?> ring){
+		addGauge(name+".depth", new Gauge(){
+			public long value(){
+				return ring.size();
+			}
+		});
+		addGauge(name+".highWater", new Gauge(){
+			public long value(){
+				return ring.getHighWater();
+			}
+		});
+		addGauge(name+".capacity", new Gauge(){
+			public long value(){
+				return ring.capacity();
+			}
+		});
+		addGauge(name+".dropped", new Gauge(){
+			public long value(){
+				return ring.getDropped();
+			}
+		});
+	}
+
+	/**
+	 * Registers the JMX bean and starts sampling.
+	 */
+	public void start(){
+		try{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		}catch(Exception e){
+			// sampling and the warnings work without JMX
+			e.printStackTrace();
+		}
+		thread.start();
+	}
+
+	public void stop(){
+		stopped = true;
+		thread.interrupt();
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+		}catch(Exception e){
+		}
+	}
+
+	/**
+	 * Takes one sample, called by the sampler thread.
+	 */
+	synchronized void sample(){
+		long now = System.currentTimeMillis();
+		double seconds = lastSample>0 ? (now-lastSample)/1000.0 : 0;
+		lastSample = now;
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		boolean anyAlarm = false;
+		for(Device device : devices){
+			try{
+				device.update();
+			}catch(RuntimeException e){
+				e.printStackTrace();
+				continue;
+			}
+			long received = device.received();
+			long dropped = device.dropped();
+			values.put(device.name+".received", received);
+			values.put(device.name+".dropped", dropped);
+			if(device.lastReceived>=0 && seconds>0){
+				// the kernel counters are 32 bit and wrap
+				long deltaReceived = (received-device.lastReceived)&0xffffffffL;
+				long deltaDropped = (dropped-device.lastDropped)&0xffffffffL;
+				double ratio = deltaReceived+deltaDropped>0 ? (double)deltaDropped/(deltaReceived+deltaDropped) : 0;
+				values.put(device.name+".receivedPerSecond", deltaReceived/seconds);
+				values.put(device.name+".droppedPerSecond", deltaDropped/seconds);
+				values.put(device.name+".dropRatio", ratio);
+				boolean alarm = ratio>dropThreshold;
+				if(alarm!=device.alarm){
+					System.out.println("CaptureStats: "+device.name+(alarm ? " drops "+Math.round(ratio*1000)/10.0+"% of the packets" : " drops are back below the threshold"));
+					device.alarm = alarm;
+				}
+			}
+			anyAlarm |= device.alarm;
+			device.lastReceived = received;
+			device.lastDropped = dropped;
+		}
+		for(Map.Entry<String, Gauge> gauge : gauges.entrySet()){
+			try{
+				values.put(gauge.getKey(), gauge.getValue().value());
+			}catch(RuntimeException e){
+				e.printStackTrace();
+			}
+		}
+		values.put("dropAlarm", anyAlarm);
+		dropAlarm = anyAlarm;
+		metrics = Collections.unmodifiableMap(values);
+	}
+
+	/** latest sample, metric name to Long, Double or Boolean */
+	public Map<String, Object> getMetrics(){
+		return metrics;
+	}
+
+	/** true while an interface drops more than the threshold */
+	public boolean isDropAlarm(){
+		return dropAlarm;
+	}
+
+	public String toString(){
+		return "capture stats "+metrics;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException{
+		Object value = metrics.get(attribute);
+		if(value==null){
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes){
+		Map<String, Object> current = metrics;
+		AttributeList list = new AttributeList();
+		for(String attribute : attributes){
+			if(current.containsKey(attribute)){
+				list.add(new Attribute(attribute, current.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	/** all metrics are read only */
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+		throw new AttributeNotFoundException(attribute.getName()+" is read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes){
+		return new AttributeList();
+	}
+
+	/** there are no operations */
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException{
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo(){
+		Map<String, Object> current = metrics;
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[current.size()];
+		int i = 0;
+		for(Map.Entry<String, Object> metric : current.entrySet()){
+			attributes[i++] = new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+					metric.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Capture and queue statistics of router66",
+				attributes, null, new MBeanOperationInfo[0], null);
+	}
+
+	private class Sampler implements Runnable {
+		public void run(){
+			while(!stopped){
+				sample();
+				try{
+					Thread.sleep(intervalMillis);
+				}catch(InterruptedException e){
+					return;
+				}
+			}
+		}
+	}
+}
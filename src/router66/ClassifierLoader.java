@@ -0,0 +1,87 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds implementations of an interface listed in META-INF/services/<name of
+ * the interface> of every jar and directory on the class path, the format
+ * of java.util.ServiceLoader, which Java 5 doesn't have: one class name per
+ * line, # starts a comment. Classes that can't be loaded are reported and
+ * skipped, a class listed twice is created once.
+ */
+public class ClassifierLoader {
+	static final String PREFIX = "META-INF/services/";
+
+	/**
+	 * @param service
+	 * @param loader
+	 * @return a new instance of every implementation, in class path order
+	 */
+	public static <S> List<S> load(Class<S> service, ClassLoader loader){
+		Set<String> names = new LinkedHashSet<String>();
+		try{
+			Enumeration<URL> files = loader.getResources(PREFIX+service.getName());
+			while(files.hasMoreElements()){
+				read(files.nextElement(), names);
+			}
+		}catch(IOException e){
+			System.out.println("Could not list "+PREFIX+service.getName()+": "+e);
+		}
+		List<S> services = new ArrayList<S>();
+		for(String name : names){
+			try{
+				services.add(service.cast(Class.forName(name, true, loader).getConstructor().newInstance()));
+			}catch(ClassNotFoundException e){
+				System.out.println(service.getSimpleName()+" "+name+" not found");
+			}catch(ClassCastException e){
+				System.out.println(name+" is no "+service.getName());
+			}catch(InstantiationException e){
+				System.out.println("Could not create "+name+": "+e);
+			}catch(IllegalAccessException e){
+				System.out.println("Could not create "+name+": "+e);
+			}catch(NoSuchMethodException e){
+				System.out.println(name+" has no public constructor without arguments");
+			}catch(InvocationTargetException e){
+				System.out.println("Could not create "+name+": "+e.getCause());
+			}
+		}
+		return services;
+	}
+
+	public static <S> List<S> load(Class<S> service){
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return load(service, loader!=null ? loader : service.getClassLoader());
+	}
+
+	private static void read(URL file, Set<String> names){
+		try{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(file.openStream(), "UTF-8"));
+			try{
+				String line;
+				while((line = reader.readLine())!=null){
+					int comment = line.indexOf('#');
+					if(comment>=0){
+						line = line.substring(0, comment);
+					}
+					line = line.trim();
+					if(line.length()>0){
+						names.add(line);
+					}
+				}
+			}finally{
+				reader.close();
+			}
+		}catch(IOException e){
+			System.out.println("Could not read "+file+": "+e);
+		}
+	}
+}
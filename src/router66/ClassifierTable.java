@@ -0,0 +1,87 @@
+package router66;
+
+/**
+ * The dispatch table of the Sorter: for TCP destination ports, UDP
+ * destination ports and UDP source ports the PacketClassifier that handles
+ * them, so finding the classifier of a packet is one array lookup. Every
+ * port added is also added to the PortRegistry and with it to the capture
+ * filter. A port belongs to the classifier that registered it first.
+ * The table is filled while the classifiers are initialised, before the
+ * sorter threads start, lookups don't lock.
+ */
+public class ClassifierTable {
+	static final int TCP_DESTINATION = 0;
+	static final int UDP_DESTINATION = 1;
+	static final int UDP_SOURCE = 2;
+	static final String[] NAMES = {"tcp dst", "udp dst", "udp src"};
+
+	private final PortRegistry ports;
+	private final PacketClassifier[][] table = new PacketClassifier[3][];
+
+	public ClassifierTable(PortRegistry ports){
+		this.ports = ports;
+	}
+
+	public void addTcp(PacketClassifier classifier, int... ports){
+		if(add(TCP_DESTINATION, classifier, ports)){
+			this.ports.addTcp(ports);
+		}
+	}
+
+	public void addUdp(PacketClassifier classifier, int... ports){
+		if(add(UDP_DESTINATION, classifier, ports)){
+			this.ports.addUdp(ports);
+		}
+	}
+
+	/** for responses, e.g. DNS from port 53 */
+	public void addUdpSource(PacketClassifier classifier, int... ports){
+		if(add(UDP_SOURCE, classifier, ports)){
+			this.ports.addUdpSource(ports);
+		}
+	}
+
+	/**
+	 * @return true if all ports were free
+	 */
+	private synchronized boolean add(int kind, PacketClassifier classifier, int[] ports){
+		for(int port : ports){
+			if(port<0 || port>65535){
+				throw new IllegalArgumentException("no port: "+port);
+			}
+			PacketClassifier[] classifiers = table[kind];
+			if(classifiers!=null && classifiers[port]!=null && classifiers[port]!=classifier){
+				System.out.println(NAMES[kind]+" port "+port+" is classified by "+classifiers[port].getClass().getName()
+						+", ignoring "+classifier.getClass().getName());
+				return false;
+			}
+		}
+		if(table[kind]==null){
+			table[kind] = new PacketClassifier[65536];
+		}
+		for(int port : ports){
+			table[kind][port] = classifier;
+		}
+		return true;
+	}
+
+	/** @return the classifier of a TCP destination port or null */
+	public PacketClassifier tcp(int port){
+		return get(TCP_DESTINATION, port);
+	}
+
+	/** @return the classifier of a UDP destination port or null */
+	public PacketClassifier udp(int port){
+		return get(UDP_DESTINATION, port);
+	}
+
+	/** @return the classifier of a UDP source port or null */
+	public PacketClassifier udpSource(int port){
+		return get(UDP_SOURCE, port);
+	}
+
+	private PacketClassifier get(int kind, int port){
+		PacketClassifier[] classifiers = table[kind];
+		return classifiers==null || port<0 || port>65535 ? null : classifiers[port];
+	}
+}
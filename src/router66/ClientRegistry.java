@@ -0,0 +1,448 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Who a client is, looked up by address without making a String of it.
+ * Keys are 128 bit: an IPv6 address as it is, an IPv4 address or a MAC in
+ * the low bits behind a tag from ff00::/8, multicast, which never is a
+ * source address. They live in an open addressing table of primitive arrays.
+ *
+ * Every client gets a small id that stays the same for the whole run and
+ * can be used by later stages instead of the name. Clients named in the
+ * client file share the id of their name, so the IPv4, IPv6 and MAC address
+ * of one laptop are one client. Other addresses get an id of their own the
+ * first time they are seen, up to maxClients, and are named by the address.
+ *
+ * Names found on the wire, see DeviceNames, are given to addresses that are
+ * not in the client file with learn().
+ *
+ * The file has lines "address name", the address is IPv4, IPv6 or a MAC like
+ * 00:1e:c2:aa:bb:cc, the name is the rest of the line. # starts a comment.
+ * A changed file is reloaded, ids of names already known are kept.
+ *
+ * Changes are made under the lock and published as a new snapshot, lookups
+ * of known clients never wait. Only a new address takes the lock. The
+ * snapshot shares the arrays: a new address only fills an empty slot and a
+ * new id only appends a name, so they are written in place and copied only
+ * when the table grows or the file is reloaded. A lookup ignores ids above
+ * the snapshot it read, those are not published yet.
+ */
+public class ClientRegistry {
+	/** id of clients beyond maxClients */
+	public static final int UNKNOWN = 0;
+
+	static final long TAG_IPV4 = 0xff00000000000004L;
+	static final long TAG_MAC = 0xff00000000000006L;
+
+	private final File file;
+	private final int maxClients;
+	private final FileWatcher watcher;
+
+	/**
+	 * The tables as of the last publish, a lookup only reads the fields
+	 */
+	private static final class Snapshot {
+		final int mask;
+		final long[] keyHigh, keyLow;
+		final int[] ids;
+		final boolean[] configured;
+		final String[] names;
+		final int nextId;
+		final boolean full;		// no more ids to hand out
+
+		Snapshot(int mask, long[] keyHigh, long[] keyLow, int[] ids, boolean[] configured, String[] names, int nextId, boolean full){
+			this.mask = mask;
+			this.keyHigh = keyHigh;
+			this.keyLow = keyLow;
+			this.ids = ids;
+			this.configured = configured;
+			this.names = names;
+			this.nextId = nextId;
+			this.full = full;
+		}
+
+		/**
+		 * @return the id of the client, -1 if the address needs a new one or
+		 * was added after this snapshot
+		 */
+		int id(long high, long low, byte[] mac){
+			int slot = find(high, low);
+			if(slot>=0 && configured[slot]){
+				return ids[slot];
+			}
+			if(mac!=null && mac.length==6){
+				int macSlot = find(TAG_MAC, macKey(mac));
+				if(macSlot>=0){
+					return ids[macSlot];
+				}
+			}
+			if(slot>=0){
+				return ids[slot];
+			}
+			return full ? UNKNOWN : -1;
+		}
+
+		/**
+		 * @return the slot of a published key, else negative
+		 */
+		private int find(long high, long low){
+			int slot = ClientRegistry.find(mask, keyHigh, keyLow, ids, high, low);
+			// a slot filled after the publish may be seen in part
+			return slot>=0 && ids[slot]>=nextId ? -1 : slot;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+
+	// key to id, guarded by this
+	private int mask;
+	private long[] keyHigh, keyLow;
+	private int[] ids;					// 0 for an empty slot
+	private boolean[] configured;		// from the client file
+	private int size = 0;
+
+	// id to name, guarded by this
+	private String[] names = new String[64];
+	private int nextId = 1;
+	private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+	private long reloads = 0;
+	private long learned = 0;
+
+	/**
+	 * @param file the client file, read at once and whenever it changes
+	 * @param maxClients ids handed out at most
+	 * @param checkMillis how often the file is checked, 0 to never reload
+	 */
+	public ClientRegistry(File file, int maxClients, long checkMillis){
+		this.file = file;
+		this.maxClients = maxClients;
+		allocate(64);
+		names[UNKNOWN] = "unknown";
+		publish();
+		if(checkMillis>0){
+			watcher = new FileWatcher(file, checkMillis, new Runnable(){
+				public void run(){
+					reload();
+				}
+			});
+		}else{
+			watcher = null;
+		}
+		reload();
+	}
+
+	public void start(){
+		if(watcher!=null){
+			watcher.start();
+		}
+	}
+
+	private void allocate(int capacity){
+		mask = capacity-1;
+		keyHigh = new long[capacity];
+		keyLow = new long[capacity];
+		ids = new int[capacity];
+		configured = new boolean[capacity];
+	}
+
+	/**
+	 * Makes the changes visible to the lookups, called under the lock.
+	 */
+	private void publish(){
+		snapshot = new Snapshot(mask, keyHigh, keyLow, ids, configured, names, nextId, nextId>maxClients);
+	}
+
+	/**
+	 * Reads the client file. Addresses that are no longer in it get ids of
+	 * their own again. If the file can't be read the old names stay.
+	 * @return true if the names were replaced
+	 */
+	public boolean reload(){
+		Map<long[], String> entries = new LinkedHashMap<long[], String>();
+		try{
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try{
+				String line;
+				int number = 0;
+				while((line = reader.readLine())!=null){
+					number++;
+					int comment = line.indexOf('#');
+					if(comment>=0){
+						line = line.substring(0, comment);
+					}
+					line = line.trim();
+					if(line.length()==0){
+						continue;
+					}
+					int space = line.indexOf(' ');
+					int tab = line.indexOf('\t');
+					if(space<0 || tab>=0 && tab<space){
+						space = tab;
+					}
+					long[] key = space<0 ? null : parseKey(line.substring(0, space));
+					if(key==null){
+						System.out.println(file.getName()+":"+number+": expected address and name, skipping "+line);
+						continue;
+					}
+					entries.put(key, line.substring(space+1).trim());
+				}
+			}finally{
+				reader.close();
+			}
+		}catch(IOException e){
+			System.out.println("Could not read clients "+file+", keeping the names: "+e);
+			return false;
+		}
+		synchronized(this){
+			// keep the addresses seen so far, replace the configured ones
+			long[] oldHigh = keyHigh, oldLow = keyLow;
+			int[] oldIds = ids;
+			boolean[] oldConfigured = configured;
+			allocate(oldIds.length);
+			size = 0;
+			for(int i=0; i<oldIds.length; i++){
+				if(oldIds[i]!=0 && !oldConfigured[i]){
+					put(oldHigh[i], oldLow[i], oldIds[i], false);
+				}
+			}
+			for(Map.Entry<long[], String> entry : entries.entrySet()){
+				String name = entry.getValue();
+				Integer id = nameIds.get(name);
+				if(id==null){
+					id = Integer.valueOf(newId(name));
+					nameIds.put(name, id);
+				}
+				long[] key = entry.getKey();
+				put(key[0], key[1], id.intValue(), true);
+			}
+			reloads++;
+			publish();
+		}
+		System.out.println(file+": "+entries.size()+" client addresses");
+		return true;
+	}
+
+	/**
+	 * @return high and low word of an IPv4, IPv6 or MAC address, null if it is none
+	 */
+	static long[] parseKey(String s){
+		if(HostNormalizer.isIpv4(s, 0, s.length()) || HostNormalizer.isIpv6(s, 0, s.length())){
+			try{
+				// a literal, no lookup happens
+				return key(InetAddress.getByName(s));
+			}catch(IOException e){
+				return null;
+			}
+		}
+		String[] parts = s.split("[:-]");
+		if(parts.length!=6){
+			return null;
+		}
+		byte[] mac = new byte[6];
+		for(int i=0; i<6; i++){
+			if(parts[i].length()<1 || parts[i].length()>2){
+				return null;
+			}
+			try{
+				mac[i] = (byte)Integer.parseInt(parts[i], 16);
+			}catch(NumberFormatException e){
+				return null;
+			}
+		}
+		return new long[]{TAG_MAC, macKey(mac)};
+	}
+
+	private static long[] key(InetAddress address){
+		if(address instanceof Inet4Address){
+			return new long[]{TAG_IPV4, ipv4Key(address)};
+		}
+		byte[] b = address.getAddress();
+		return new long[]{toLong(b, 0), toLong(b, 8)};
+	}
+
+	/**
+	 * The hash code of an Inet4Address is its address, unlike getAddress it
+	 * does not copy it for every packet.
+	 */
+	private static long ipv4Key(InetAddress address){
+		return address.hashCode()&0xffffffffL;
+	}
+
+	private static long macKey(byte[] mac){
+		return toLong(mac, 0)>>>16;
+	}
+
+	private static long toLong(byte[] b, int offset){
+		long v = 0;
+		for(int i=offset; i<offset+8; i++){
+			v = v<<8 | (i<b.length ? b[i]&0xff : 0);
+		}
+		return v;
+	}
+
+	private static int hash(long high, long low){
+		long h = low*0x9e3779b97f4a7c15L ^ high*0xc2b2ae3d27d4eb4fL;
+		return (int)(h^(h>>>29));
+	}
+
+	private int find(long high, long low){
+		return find(mask, keyHigh, keyLow, ids, high, low);
+	}
+
+	private static int find(int mask, long[] keyHigh, long[] keyLow, int[] ids, long high, long low){
+		int i = hash(high, low)&mask;
+		while(ids[i]!=0){
+			if(keyLow[i]==low && keyHigh[i]==high){
+				return i;
+			}
+			i = (i+1)&mask;
+		}
+		return ~i;
+	}
+
+	/**
+	 * Adds or replaces a key, the id is written last so a lookup that sees
+	 * it in part does not stop at the slot.
+	 */
+	private void put(long high, long low, int id, boolean fromFile){
+		if(size+1>(mask+1)*3/4){
+			long[] oldHigh = keyHigh, oldLow = keyLow;
+			int[] oldIds = ids;
+			boolean[] oldConfigured = configured;
+			allocate(oldIds.length*2);
+			size = 0;
+			for(int i=0; i<oldIds.length; i++){
+				if(oldIds[i]!=0){
+					put(oldHigh[i], oldLow[i], oldIds[i], oldConfigured[i]);
+				}
+			}
+		}
+		int slot = find(high, low);
+		if(slot<0){
+			slot = ~slot;
+			size++;
+		}
+		keyHigh[slot] = high;
+		keyLow[slot] = low;
+		configured[slot] = fromFile;
+		ids[slot] = id;
+	}
+
+	private int newId(String name){
+		int id = nextId++;
+		if(id==names.length){
+			String[] grown = new String[names.length*2];
+			System.arraycopy(names, 0, grown, 0, names.length);
+			names = grown;
+		}
+		names[id] = name;
+		return id;
+	}
+
+	/**
+	 * @param address
+	 * @param mac source MAC of the frame or null, used if the address is not
+	 * in the client file
+	 * @return the id of the client, UNKNOWN if maxClients is reached
+	 */
+	public int id(InetAddress address, byte[] mac){
+		long high, low;
+		if(address instanceof Inet4Address){
+			high = TAG_IPV4;
+			low = ipv4Key(address);
+		}else{
+			byte[] b = address.getAddress();
+			high = toLong(b, 0);
+			low = toLong(b, 8);
+		}
+		int id = snapshot.id(high, low, mac);
+		if(id>=0){
+			return id;
+		}
+		return add(high, low, mac, address);
+	}
+
+	/**
+	 * Gives a new address an id, unless another thread just did.
+	 */
+	private synchronized int add(long high, long low, byte[] mac, InetAddress address){
+		int id = snapshot.id(high, low, mac);
+		if(id>=0){
+			return id;
+		}
+		id = newId(address.getHostAddress());
+		put(high, low, id, false);
+		publish();
+		return id;
+	}
+
+	public int id(InetAddress address){
+		return id(address, null);
+	}
+
+	/**
+	 * Names the client of an address that is not in the client file.
+	 * @param address
+	 * @param name e.g. the DHCP host name of the device
+	 * @return true if the name changed
+	 */
+	public synchronized boolean learn(InetAddress address, String name){
+		if(name==null || name.length()==0){
+			return false;
+		}
+		long[] key = key(address);
+		int slot = find(key[0], key[1]);
+		if(slot>=0 && configured[slot]){
+			return false;
+		}
+		int id = id(address, null);
+		if(id==UNKNOWN || name.equals(names[id])){
+			return false;
+		}
+		System.out.println("Client "+address.getHostAddress()+" is "+name);
+		names[id] = name;
+		learned++;
+		publish();
+		return true;
+	}
+
+	/**
+	 * @return the configured name of the client or its address
+	 */
+	public String name(int id){
+		Snapshot s = snapshot;
+		return id>=0 && id<s.nextId ? s.names[id] : null;
+	}
+
+	/**
+	 * @return the configured name of the client or its address
+	 */
+	public String name(InetAddress address, byte[] mac){
+		int id = id(address, mac);
+		// id published the snapshot that knows the id
+		return id==UNKNOWN ? address.getHostAddress() : snapshot.names[id];
+	}
+
+	public String name(InetAddress address){
+		return name(address, null);
+	}
+
+	/** ids handed out so far, ids are below this */
+	public int size(){
+		return snapshot.nextId;
+	}
+
+	public synchronized String toString(){
+		return "clients: "+(nextId-1)+" ids, "+nameIds.size()+" configured, "+learned+" learned, "+size+" addresses, "+reloads+" loads";
+	}
+}
@@ -0,0 +1,29 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+import jpcap.packet.TCPPacket;
+
+/**
+ * Prints the first packet with payload of connections to ports that are
+ * watched but not classified yet: 1515 and CUPS on 631.
+ */
+public class DebugClassifier implements PacketClassifier {
+	private Sorter sorter;
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.sorter = sorter;
+		table.addTcp(this, 1515, 631);
+	}
+
+	public void classify(IPPacket packet){
+		TCPPacket thePacket = (TCPPacket)packet;
+		if(!sorter.getFlows().update(thePacket)){
+			return;
+		}
+		if(thePacket.dst_port==631){
+			System.out.println("CUPS: "+packet.toString());
+		}else{
+			System.out.println("PORT "+thePacket.dst_port+": "+thePacket.toString());
+		}
+	}
+}
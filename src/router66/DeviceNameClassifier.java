@@ -0,0 +1,49 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+import jpcap.packet.UDPPacket;
+
+/**
+ * DHCP, mDNS and NetBIOS, the protocols devices announce their names with,
+ * see DeviceNames. Messenger popups sent over NetBIOS become MsgWriter events.
+ */
+public class DeviceNameClassifier implements PacketClassifier {
+	private Sorter sorter;
+	private MsgWriter msgWriter;
+	private DeviceNames deviceNames;
+	private final NetbiosDatagram datagram = new NetbiosDatagram();
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.sorter = sorter;
+		this.msgWriter = sorter.getMsgWriter();
+		this.deviceNames = sorter.getDeviceNames();
+		table.addUdp(this, 67, 68, 5353, 138);
+	}
+
+	public void classify(IPPacket packet){
+		UDPPacket udpPacket = (UDPPacket)packet;
+		switch (udpPacket.dst_port) {
+		// DHCP, the host names of the devices
+		case 67:
+		case 68:
+			deviceNames.dhcp(udpPacket);
+			break;
+		// MDNS aka Bonjour
+		case 5353:
+			deviceNames.mdns(udpPacket);
+			break;
+		// BROWSER
+		case 138:
+			if(datagram.parse(udpPacket.data)){
+				deviceNames.netbios(datagram);
+				if(datagram.kind()==NetbiosDatagram.Kind.MESSENGER){
+					msgWriter.wMessenger(new SortMsg(sorter.clientName(udpPacket), "",
+							datagram.messageFrom(), datagram.messageTo(), datagram.messageText()));
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package router66;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jpcap.packet.UDPPacket;
+
+/**
+ * Names clients by what their devices say about themselves on the LAN, so
+ * reports show "Annas-iPhone" instead of an address without anyone writing
+ * the client file:
+ *
+ * DHCP requests carry the host name (option 12) and the MAC, the ACK of the
+ * server tells which address the MAC got. mDNS responses announce the host
+ * name of an address as name.local, in PTR records under in-addr.arpa, and
+ * the friendly name of a device as fn= in the TXT record of a service, which
+ * points to the host with its SRV record. NetBIOS datagrams start with the
+ * source address and the computer name. ARP binds a MAC, whose name is known
+ * from an earlier DHCP request, to its current address.
+ *
+ * Names go to ClientRegistry.learn(), the client file still wins. MACs are
+ * remembered for maxEntries devices, the least recently seen is dropped.
+ */
+public class DeviceNames {
+	static final int BOOTP_LENGTH = 236;
+	static final int DHCP_MAGIC_COOKIE = 0x63825363;
+	static final int DHCP_OPTION_PAD = 0;
+	static final int DHCP_OPTION_HOST_NAME = 12;
+	static final int DHCP_OPTION_MESSAGE_TYPE = 53;
+	static final int DHCP_OPTION_END = 255;
+	static final int DHCP_ACK = 5;
+
+	static final String LOCAL = ".local";
+	static final String REVERSE_IPV4 = ".in-addr.arpa";
+	static final String FRIENDLY_NAME = "fn";
+
+	private final ClientRegistry clients;
+	private final DnsMessage message = new DnsMessage();		// guarded by this
+	// by MAC, guarded by this
+	private final Map<Long, String> macNames;
+	private final Map<Long, InetAddress> macAddresses;
+	// addresses named by the fn= of a service, host names don't replace them
+	private final Map<InetAddress, String> friendlyNames;
+
+	private long dhcp = 0;
+	private long mdns = 0;
+	private long netbios = 0;
+	private long arp = 0;
+	private long learned = 0;
+
+	/**
+	 * @param clients
+	 * @param maxEntries devices remembered by MAC
+	 */
+	public DeviceNames(ClientRegistry clients, int maxEntries){
+		this.clients = clients;
+		this.macNames = lru(maxEntries);
+		this.macAddresses = lru(maxEntries);
+		this.friendlyNames = lru(maxEntries);
+	}
+
+	private static <K, V> Map<K, V> lru(final int maxEntries){
+		return new LinkedHashMap<K, V>(64, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+				return size()>maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Reads a DHCP request of a client or the ACK of the server.
+	 * @param packet UDP to port 67 or 68
+	 * @return true if a client got a new name
+	 */
+	public synchronized boolean dhcp(UDPPacket packet){
+		byte[] data = packet.data;
+		if(data==null || data.length<BOOTP_LENGTH+4 || data[1]!=1 || data[2]!=6 || u32(data, BOOTP_LENGTH)!=DHCP_MAGIC_COOKIE){
+			return false;
+		}
+		dhcp++;
+		int op = data[0];
+		Long mac = Long.valueOf(macKey(data, 28));
+		String name = null;
+		int messageType = 0;
+		int p = BOOTP_LENGTH+4;
+		while(p<data.length){
+			int option = data[p]&0xff;
+			if(option==DHCP_OPTION_END){
+				break;
+			}
+			if(option==DHCP_OPTION_PAD){
+				p++;
+				continue;
+			}
+			if(p+1>=data.length){
+				break;
+			}
+			int length = data[p+1]&0xff;
+			int start = p+2;
+			p = start+length;
+			if(p>data.length){
+				break;
+			}
+			if(option==DHCP_OPTION_HOST_NAME){
+				name = text(data, start, p);
+			}else if(option==DHCP_OPTION_MESSAGE_TYPE && length==1){
+				messageType = data[start]&0xff;
+			}
+		}
+		if(op==1){
+			if(name!=null){
+				macNames.put(mac, name);
+			}
+			// ciaddr is set by clients that already have their address
+			InetAddress address = ipv4(data, 12);
+			if(address==null){
+				address = macAddresses.get(mac);
+			}else{
+				macAddresses.put(mac, address);
+			}
+			return address!=null && learn(address, macNames.get(mac));
+		}
+		if(op==2 && messageType==DHCP_ACK){
+			InetAddress address = ipv4(data, 16);
+			if(address==null){
+				// the ACK of an INFORM leaves yiaddr empty
+				address = ipv4(data, 12);
+			}
+			if(address==null){
+				return false;
+			}
+			macAddresses.put(mac, address);
+			return learn(address, macNames.get(mac));
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the host names and friendly names of an mDNS response.
+	 * @param packet UDP to port 5353
+	 * @return number of clients that got a new name
+	 */
+	public synchronized int mdns(UDPPacket packet){
+		if(!message.parse(packet.data)){
+			return 0;
+		}
+		mdns++;
+		int count = 0;
+		for(int i=0; i<message.answerCount(); i++){
+			int type = message.type(i);
+			if(type==DnsMessage.TYPE_TXT){
+				String friendly = message.txt(i, FRIENDLY_NAME);
+				if(friendly==null || friendly.trim().length()==0){
+					continue;
+				}
+				friendly = friendly.trim();
+				// instance -> SRV -> host -> address
+				String host = null;
+				for(int k=0; k<message.answerCount() && host==null; k++){
+					if(message.type(k)==DnsMessage.TYPE_SRV && message.owner(k).equals(message.owner(i))){
+						host = message.target(k);
+					}
+				}
+				for(int k=0; host!=null && k<message.answerCount(); k++){
+					int t = message.type(k);
+					if((t==DnsMessage.TYPE_A || t==DnsMessage.TYPE_AAAA) && message.owner(k).equals(host)){
+						InetAddress address = address(message.address(k));
+						if(address!=null){
+							friendlyNames.put(address, friendly);
+							if(learn(address, friendly)){
+								count++;
+							}
+						}
+					}
+				}
+			}else if(type==DnsMessage.TYPE_A || type==DnsMessage.TYPE_AAAA){
+				String host = localName(message.owner(i));
+				InetAddress address = address(message.address(i));
+				if(host!=null && address!=null && !friendlyNames.containsKey(address) && learn(address, host)){
+					count++;
+				}
+			}else if(type==DnsMessage.TYPE_PTR && message.owner(i).endsWith(REVERSE_IPV4)){
+				String host = localName(message.target(i));
+				InetAddress address = reverseIpv4(message.owner(i));
+				if(host!=null && address!=null && !friendlyNames.containsKey(address) && learn(address, host)){
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Names the sender of a NetBIOS datagram, by the name a host announcement
+	 * of the browser service is for, else by the source name.
+	 * @param datagram parsed from UDP to port 138
+	 * @return true if a client got a new name
+	 */
+	public synchronized boolean netbios(NetbiosDatagram datagram){
+		netbios++;
+		String name = datagram.browserOpcode()==NetbiosDatagram.BROWSER_HOST_ANNOUNCEMENT ? datagram.announcedName() : null;
+		if(name==null){
+			name = datagram.sourceName();
+		}
+		InetAddress address = ipv4(datagram.sourceAddressBytes(), 0);
+		return name!=null && address!=null && learn(address, name);
+	}
+
+	/**
+	 * Binds the sender of an ARP packet, whose name may be known from DHCP.
+	 * @param senderMac
+	 * @param senderAddress
+	 * @return true if a client got a new name
+	 */
+	public synchronized boolean arp(byte[] senderMac, byte[] senderAddress){
+		if(senderMac==null || senderMac.length!=6 || senderAddress==null || senderAddress.length!=4){
+			return false;
+		}
+		arp++;
+		// probes of a host that has no address yet
+		InetAddress address = ipv4(senderAddress, 0);
+		if(address==null){
+			return false;
+		}
+		Long mac = Long.valueOf(macKey(senderMac, 0));
+		if(!address.equals(macAddresses.get(mac))){
+			macAddresses.put(mac, address);
+		}
+		return learn(address, macNames.get(mac));
+	}
+
+	private boolean learn(InetAddress address, String name){
+		if(name==null || !clients.learn(address, name)){
+			return false;
+		}
+		learned++;
+		return true;
+	}
+
+	/**
+	 * @return host of host.local, null for other names
+	 */
+	private static String localName(String name){
+		if(name==null || !name.endsWith(LOCAL) || name.length()==LOCAL.length()){
+			return null;
+		}
+		return name.substring(0, name.length()-LOCAL.length());
+	}
+
+	/**
+	 * @return the address of 4.3.2.1.in-addr.arpa or null
+	 */
+	private static InetAddress reverseIpv4(String name){
+		String[] labels = name.substring(0, name.length()-REVERSE_IPV4.length()).split("\\.");
+		if(labels.length!=4){
+			return null;
+		}
+		byte[] b = new byte[4];
+		for(int i=0; i<4; i++){
+			if(labels[i].length()<1 || labels[i].length()>3){
+				return null;
+			}
+			int value = 0;
+			for(int k=0; k<labels[i].length(); k++){
+				char c = labels[i].charAt(k);
+				if(c<'0' || c>'9'){
+					return null;
+				}
+				value = value*10+(c-'0');
+			}
+			if(value>255){
+				return null;
+			}
+			b[3-i] = (byte)value;
+		}
+		return ipv4(b, 0);
+	}
+
+	/**
+	 * @return the IPv4 address at offset, null for 0.0.0.0
+	 */
+	private static InetAddress ipv4(byte[] data, int offset){
+		if(u32(data, offset)==0){
+			return null;
+		}
+		byte[] b = new byte[4];
+		System.arraycopy(data, offset, b, 0, 4);
+		return address(b);
+	}
+
+	private static InetAddress address(byte[] b){
+		try{
+			InetAddress address = InetAddress.getByAddress(b);
+			// link local IPv6 addresses change, the IPv4 address is what clients are seen with
+			return address instanceof Inet4Address || !address.isLinkLocalAddress() ? address : null;
+		}catch(UnknownHostException e){
+			return null;
+		}
+	}
+
+	private static String text(byte[] data, int start, int end){
+		while(end>start && (data[end-1]==0 || data[end-1]==' ')){
+			end--;
+		}
+		if(end==start){
+			return null;
+		}
+		char[] chars = new char[end-start];
+		for(int i=start; i<end; i++){
+			int c = data[i]&0xff;
+			if(c<' ' || c==127){
+				return null;
+			}
+			chars[i-start] = (char)c;
+		}
+		return new String(chars);
+	}
+
+	private static int u32(byte[] data, int p){
+		return (data[p]&0xff)<<24 | (data[p+1]&0xff)<<16 | (data[p+2]&0xff)<<8 | (data[p+3]&0xff);
+	}
+
+	private static long macKey(byte[] b, int offset){
+		long v = 0;
+		for(int i=offset; i<offset+6; i++){
+			v = v<<8 | (b[i]&0xff);
+		}
+		return v;
+	}
+
+	public synchronized String toString(){
+		return "device names: "+macNames.size()+" by mac, dhcp "+dhcp+" mdns "+mdns+" netbios "+netbios+" arp "+arp+" learned "+learned;
+	}
+}
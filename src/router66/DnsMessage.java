@@ -0,0 +1,305 @@
+package router66;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decoder for DNS responses as seen on UDP port 53 and mDNS on 5353. parse()
+ * walks the header, the questions and the answer, authority and additional
+ * sections once, following compression pointers, and keeps the A, AAAA,
+ * CNAME, PTR, SRV and TXT records. Names are lower case. An instance can be
+ * reused, it is not thread safe.
+ */
+public class DnsMessage {
+	static final int HEADER_LENGTH = 12;
+	static final int MAX_ANSWERS = 64;
+	static final int MAX_NAME_LENGTH = 255;
+	static final int MAX_POINTERS = 16;
+
+	public static final int TYPE_A = 1;
+	public static final int TYPE_CNAME = 5;
+	public static final int TYPE_PTR = 12;
+	public static final int TYPE_TXT = 16;
+	public static final int TYPE_AAAA = 28;
+	public static final int TYPE_SRV = 33;
+	static final int CLASS_IN = 1;
+	/** mDNS sets the top bit of the class, cache flush */
+	static final int CLASS_MASK = 0x7fff;
+
+	public static final int SECTION_ANSWER = 1;
+	public static final int SECTION_AUTHORITY = 2;
+	public static final int SECTION_ADDITIONAL = 3;
+
+	private byte[] data;
+	private int offset;
+	private int end;
+	private int id;
+	private int flags;
+	private String question;
+
+	private int answerCount;
+	private final int[] type = new int[MAX_ANSWERS];
+	private final long[] ttl = new long[MAX_ANSWERS];
+	private final String[] owner = new String[MAX_ANSWERS];
+	private final String[] target = new String[MAX_ANSWERS];		// CNAME, PTR and SRV
+	private final int[] dataStart = new int[MAX_ANSWERS];			// A, AAAA and TXT
+	private final int[] dataEnd = new int[MAX_ANSWERS];
+	private final int[] section = new int[MAX_ANSWERS];
+
+	private int nameEnd;		// set by readName, offset after the name in the record
+
+	public boolean parse(byte[] data){
+		return parse(data, 0, data==null ? 0 : data.length);
+	}
+
+	/**
+	 * @param data
+	 * @param offset start of the DNS message, the UDP payload
+	 * @param length
+	 * @return true if it is a response without error, records cut off by
+	 * the end of the payload are left out
+	 */
+	public boolean parse(byte[] data, int offset, int length){
+		this.data = data;
+		this.offset = offset;
+		this.end = offset+length;
+		answerCount = 0;
+		question = null;
+		if(data==null || length<HEADER_LENGTH){
+			return false;
+		}
+		id = u16(offset);
+		flags = u16(offset+2);
+		// QR must be set, RCODE 0
+		if((flags&0x8000)==0 || (flags&0x000f)!=0){
+			return false;
+		}
+		int questions = u16(offset+4);
+		int answers = u16(offset+6);
+		int authority = u16(offset+8);
+		int records = answers+authority+u16(offset+10);
+		int p = offset+HEADER_LENGTH;
+		for(int i=0; i<questions; i++){
+			String name = readName(p);
+			if(name==null || nameEnd+4>end){
+				return true;
+			}
+			if(i==0){
+				question = name;
+			}
+			p = nameEnd+4;			// type, class
+		}
+		for(int i=0; i<records && answerCount<MAX_ANSWERS; i++){
+			String name = readName(p);
+			if(name==null || nameEnd+10>end){
+				return true;
+			}
+			p = nameEnd;
+			int t = u16(p);
+			int c = u16(p+2);
+			long seconds = u32(p+4);
+			int rdLength = u16(p+8);
+			int rdStart = p+10;
+			p = rdStart+rdLength;
+			if(p>end){
+				return true;
+			}
+			if((c&CLASS_MASK)!=CLASS_IN){
+				continue;
+			}
+			if(t==TYPE_A && rdLength==4 || t==TYPE_AAAA && rdLength==16 || t==TYPE_TXT){
+				dataStart[answerCount] = rdStart;
+				dataEnd[answerCount] = p;
+				target[answerCount] = null;
+			}else if(t==TYPE_CNAME || t==TYPE_PTR || t==TYPE_SRV && rdLength>6){
+				// SRV: priority, weight and port before the target
+				String alias = readName(t==TYPE_SRV ? rdStart+6 : rdStart);
+				if(alias==null){
+					continue;
+				}
+				target[answerCount] = alias;
+			}else{
+				continue;
+			}
+			section[answerCount] = i<answers ? SECTION_ANSWER : i<answers+authority ? SECTION_AUTHORITY : SECTION_ADDITIONAL;
+			type[answerCount] = t;
+			ttl[answerCount] = seconds;
+			owner[answerCount] = name;
+			answerCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a possibly compressed name and sets nameEnd.
+	 * @return the name without the trailing dot, "" for the root, null if malformed
+	 */
+	private String readName(int p){
+		StringBuilder sb = new StringBuilder();
+		int pointers = 0;
+		nameEnd = -1;
+		while(true){
+			if(p>=end){
+				return null;
+			}
+			int length = data[p]&0xff;
+			if(length==0){
+				if(nameEnd<0){
+					nameEnd = p+1;
+				}
+				return sb.toString();
+			}
+			if((length&0xc0)==0xc0){
+				if(p+1>=end || ++pointers>MAX_POINTERS){
+					return null;
+				}
+				if(nameEnd<0){
+					nameEnd = p+2;
+				}
+				p = offset+((length&0x3f)<<8 | (data[p+1]&0xff));
+				continue;
+			}
+			if((length&0xc0)!=0 || p+1+length>end || sb.length()+length+1>MAX_NAME_LENGTH){
+				return null;
+			}
+			if(sb.length()>0){
+				sb.append('.');
+			}
+			for(int i=p+1; i<=p+length; i++){
+				int b = data[i]&0xff;
+				if(b>='A' && b<='Z'){
+					b += 'a'-'A';
+				}
+				sb.append((char)b);
+			}
+			p += 1+length;
+		}
+	}
+
+	private int u16(int p){
+		return (data[p]&0xff)<<8 | (data[p+1]&0xff);
+	}
+
+	private long u32(int p){
+		return (long)u16(p)<<16 | u16(p+2);
+	}
+
+	public int id(){
+		return id;
+	}
+
+	/** the first question name or null */
+	public String question(){
+		return question;
+	}
+
+	public int answerCount(){
+		return answerCount;
+	}
+
+	public int type(int i){
+		return type[i];
+	}
+
+	public long ttl(int i){
+		return ttl[i];
+	}
+
+	public String owner(int i){
+		return owner[i];
+	}
+
+	/** SECTION_ANSWER, SECTION_AUTHORITY or SECTION_ADDITIONAL */
+	public int section(int i){
+		return section[i];
+	}
+
+	/** the alias of a CNAME, the name of a PTR, the host of a SRV record */
+	public String target(int i){
+		return target[i];
+	}
+
+	/** the address of an A or AAAA answer */
+	public byte[] address(int i){
+		byte[] address = new byte[type[i]==TYPE_A ? 4 : 16];
+		System.arraycopy(data, dataStart[i], address, 0, address.length);
+		return address;
+	}
+
+	/**
+	 * @param i a TXT record
+	 * @param key case insensitive
+	 * @return the value of the first key=value string with that key or null
+	 */
+	public String txt(int i, String key){
+		int p = dataStart[i];
+		int n = key.length();
+		while(p<dataEnd[i]){
+			int length = data[p]&0xff;
+			int start = p+1;
+			int end = Math.min(start+length, dataEnd[i]);
+			if(end-start>n && data[start+n]=='='){
+				int k = 0;
+				while(k<n && Character.toLowerCase((char)data[start+k])==Character.toLowerCase(key.charAt(k))){
+					k++;
+				}
+				if(k==n){
+					try{
+						return new String(data, start+n+1, end-start-n-1, "UTF-8");
+					}catch(UnsupportedEncodingException e){
+						return null;
+					}
+				}
+			}
+			p = end;
+		}
+		return null;
+	}
+
+	/**
+	 * The name the client asked for that led to an answer: the owner, followed
+	 * back through the CNAME chain of the message.
+	 */
+	public String resolvedName(int i){
+		String name = owner[i];
+		for(int hops=0; hops<answerCount; hops++){
+			String alias = null;
+			for(int k=0; k<answerCount; k++){
+				if(type[k]==TYPE_CNAME && target[k].equals(name)){
+					alias = owner[k];
+					break;
+				}
+			}
+			if(alias==null){
+				break;
+			}
+			name = alias;
+		}
+		return name;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("dns response ").append(id).append(' ').append(question);
+		for(int i=0; i<answerCount; i++){
+			sb.append(", ").append(owner[i]).append(' ').append(ttl[i]).append(' ');
+			if(type[i]==TYPE_CNAME){
+				sb.append("CNAME ").append(target[i]);
+			}else if(type[i]==TYPE_PTR || type[i]==TYPE_SRV){
+				sb.append(type[i]==TYPE_PTR ? "PTR " : "SRV ").append(target[i]);
+			}else if(type[i]==TYPE_TXT){
+				sb.append("TXT ").append(dataEnd[i]-dataStart[i]).append(" bytes");
+			}else{
+				sb.append(type[i]==TYPE_A ? "A " : "AAAA ");
+				int start = dataStart[i];
+				if(type[i]==TYPE_A){
+					sb.append(data[start]&0xff).append('.').append(data[start+1]&0xff).append('.')
+						.append(data[start+2]&0xff).append('.').append(data[start+3]&0xff);
+				}else{
+					for(int k=0; k<16; k+=2){
+						sb.append(k==0 ? "" : ":").append(Integer.toHexString(u16(start+k)));
+					}
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,232 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of domains that blocks each domain and its subdomains, loaded from a
+ * file and reloaded when the file changes. Domains are kept as sorted 64 bit
+ * hashes, 8 bytes each however long the name is. The hash runs over the name
+ * from right to left, so one pass over a host yields the hashes of all its
+ * suffixes at label boundaries, com, example.com, www.example.com, and each is
+ * looked up with a binary search. An optional Bloom filter answers most misses
+ * without the search. A reload builds a new snapshot and swaps it in, lookups
+ * never wait.
+ *
+ * The file has one domain per line, # starts a comment. Lines of hosts files,
+ * "0.0.0.0 ads.example.com", are read too.
+ */
+public class DomainBlocklist {
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File file;
+	private final int bloomBitsPerDomain;
+	private final FileWatcher watcher;
+	private volatile Snapshot snapshot = new Snapshot(new long[0], 0);
+	private volatile long reloads = 0;
+
+	/**
+	 * Immutable, a lookup only reads the fields
+	 */
+	private static final class Snapshot {
+		final long[] hashes;		// sorted, distinct
+		final long[] bloom;			// null without Bloom filter
+		final int bloomMask;
+		final int bloomHashes;
+
+		Snapshot(long[] hashes, int bloomBitsPerDomain){
+			this.hashes = hashes;
+			if(bloomBitsPerDomain>0 && hashes.length>0){
+				long bits = Integer.highestOneBit(Math.max(64, Math.min(1<<30, hashes.length*bloomBitsPerDomain))*2-1);
+				this.bloom = new long[(int)(bits>>>6)];
+				this.bloomMask = (int)bits-1;
+				// k = ln 2 * bits per entry is optimal
+				this.bloomHashes = Math.max(1, Math.min(16, (int)Math.round(0.69*bits/hashes.length)));
+				for(long hash : hashes){
+					int h1 = (int)hash;
+					int h2 = (int)(hash>>>32)|1;
+					for(int i=0; i<bloomHashes; i++){
+						int bit = (h1+i*h2)&bloomMask;
+						bloom[bit>>>6] |= 1L<<bit;
+					}
+				}
+			}else{
+				this.bloom = null;
+				this.bloomMask = 0;
+				this.bloomHashes = 0;
+			}
+		}
+
+		boolean contains(long hash){
+			if(bloom!=null){
+				int h1 = (int)hash;
+				int h2 = (int)(hash>>>32)|1;
+				for(int i=0; i<bloomHashes; i++){
+					int bit = (h1+i*h2)&bloomMask;
+					if((bloom[bit>>>6]&1L<<bit)==0){
+						return false;
+					}
+				}
+			}
+			return Arrays.binarySearch(hashes, hash)>=0;
+		}
+	}
+
+	/**
+	 * @param file the list, read at once and whenever its modification time changes
+	 * @param bloomBitsPerDomain size of the Bloom filter, 0 for none
+	 * @param checkMillis how often the file is checked, 0 to never reload
+	 */
+	public DomainBlocklist(File file, int bloomBitsPerDomain, long checkMillis){
+		this.file = file;
+		this.bloomBitsPerDomain = bloomBitsPerDomain;
+		if(checkMillis>0){
+			watcher = new FileWatcher(file, checkMillis, new Runnable(){
+				public void run(){
+					reload();
+				}
+			});
+		}else{
+			watcher = null;
+		}
+		reload();
+	}
+
+	public void start(){
+		if(watcher!=null){
+			watcher.start();
+		}
+	}
+
+	/**
+	 * Reads the file and swaps the new list in. If the file can't be read the
+	 * old list stays.
+	 * @return true if the list was replaced
+	 */
+	public synchronized boolean reload(){
+		long[] hashes;
+		try{
+			hashes = read(file);
+		}catch(IOException e){
+			System.out.println("Could not read blocklist "+file+", keeping "+size()+" domains: "+e);
+			return false;
+		}
+		snapshot = new Snapshot(hashes, bloomBitsPerDomain);
+		reloads++;
+		System.out.println(file+": "+hashes.length+" blocked domains");
+		return true;
+	}
+
+	private static long[] read(File file) throws IOException{
+		long[] hashes = new long[1024];
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while((line = reader.readLine())!=null){
+				int comment = line.indexOf('#');
+				if(comment>=0){
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if(line.length()==0){
+					continue;
+				}
+				// hosts file: address and name, the name is the last field
+				int space = Math.max(line.lastIndexOf(' '), line.lastIndexOf('\t'));
+				String domain = line.substring(space+1);
+				if(domain.startsWith("*.")){
+					domain = domain.substring(2);
+				}
+				int end = domain.length();
+				if(end>0 && domain.charAt(end-1)=='.'){
+					end--;
+				}
+				if(end==0){
+					continue;
+				}
+				if(count==hashes.length){
+					long[] grown = new long[count*2];
+					System.arraycopy(hashes, 0, grown, 0, count);
+					hashes = grown;
+				}
+				hashes[count++] = hash(domain, end);
+			}
+		}finally{
+			reader.close();
+		}
+		Arrays.sort(hashes, 0, count);
+		int distinct = 0;
+		for(int i=0; i<count; i++){
+			if(distinct==0 || hashes[i]!=hashes[distinct-1]){
+				hashes[distinct++] = hashes[i];
+			}
+		}
+		long[] result = new long[distinct];
+		System.arraycopy(hashes, 0, result, 0, distinct);
+		return result;
+	}
+
+	/**
+	 * FNV-1a over domain[0, end) from right to left, lower case.
+	 */
+	static long hash(String domain, int end){
+		long h = FNV_OFFSET;
+		for(int i=end-1; i>=0; i--){
+			h = (h^lowerCase(domain.charAt(i)))*FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static char lowerCase(char c){
+		return c>='A' && c<='Z' ? (char)(c+('a'-'A')) : c;
+	}
+
+	/**
+	 * @param host case insensitive, a trailing dot or :port is ignored
+	 * @return true if the host or one of its parent domains is on the list
+	 */
+	public boolean contains(String host){
+		if(host==null){
+			return false;
+		}
+		Snapshot s = snapshot;
+		if(s.hashes.length==0){
+			return false;
+		}
+		int end = host.length();
+		int colon = host.indexOf(':');
+		if(colon>=0 && colon==host.lastIndexOf(':')){
+			end = colon;
+		}
+		if(end>0 && host.charAt(end-1)=='.'){
+			end--;
+		}
+		long h = FNV_OFFSET;
+		for(int i=end-1; i>=0; i--){
+			char c = host.charAt(i);
+			if(c=='.' && s.contains(h)){
+				return true;
+			}
+			h = (h^lowerCase(c))*FNV_PRIME;
+		}
+		return end>0 && s.contains(h);
+	}
+
+	public int size(){
+		return snapshot.hashes.length;
+	}
+
+	public long getReloads(){
+		return reloads;
+	}
+
+	public String toString(){
+		Snapshot s = snapshot;
+		return "blocklist "+file+": "+s.hashes.length+" domains, "+(s.bloom==null ? "no bloom filter" : s.bloomHashes+" bloom hashes")+", "+reloads+" loads";
+	}
+}
@@ -0,0 +1,271 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps host names to handlers by domain suffix. The rules are compiled into a
+ * trie over the labels of the name from right to left, so www.google.de is
+ * looked up as de, google, www and the cost depends on the length of the name,
+ * not on the number of rules. A pattern only matches whole labels: facebook.com
+ * matches facebook.com and www.facebook.com but not notfacebook.com. A label
+ * "*" matches any one label, e.g. google.* matches google.de. The most specific
+ * rule wins, an exact label over "*", and each rule can be limited to a
+ * protocol and a port.
+ *
+ * Rule files have one rule per line, "pattern protocol port handler", protocol
+ * tcp, udp or *, port a number or *, # starts a comment.
+ */
+public class DomainRules<H> {
+	public static final int ANY = -1;
+	public static final int TCP = 6;
+	public static final int UDP = 17;
+	static final String WILDCARD = "*";
+
+	private static final class Rule<H> {
+		final int protocol;
+		final int port;
+		final H handler;
+
+		Rule(int protocol, int port, H handler){
+			this.protocol = protocol;
+			this.port = port;
+			this.handler = handler;
+		}
+	}
+
+	private static final class Node<H> {
+		// while building
+		TreeMap<String, Node<H>> building = new TreeMap<String, Node<H>>();
+		List<Rule<H>> rules = new ArrayList<Rule<H>>();
+		// compiled, labels sorted for binary search
+		String[] labels;
+		Node<H>[] children;
+		Node<H> wildcard;
+
+		@SuppressWarnings("unchecked")
+		void compile(){
+			wildcard = building.remove(WILDCARD);
+			labels = building.keySet().toArray(new String[building.size()]);
+			children = (Node<H>[])building.values().toArray(new Node<?>[building.size()]);
+			building = null;
+			for(Node<H> child : children){
+				child.compile();
+			}
+			if(wildcard!=null){
+				wildcard.compile();
+			}
+		}
+
+		/**
+		 * @return the child for the label host[start, end) or null
+		 */
+		Node<H> child(String host, int start, int end){
+			int low = 0;
+			int high = labels.length-1;
+			while(low<=high){
+				int middle = (low+high)>>>1;
+				int c = compare(labels[middle], host, start, end);
+				if(c<0){
+					low = middle+1;
+				}else if(c>0){
+					high = middle-1;
+				}else{
+					return children[middle];
+				}
+			}
+			return null;
+		}
+
+		H select(int protocol, int port){
+			for(Rule<H> rule : rules){
+				if((rule.protocol==ANY || rule.protocol==protocol) && (rule.port==ANY || rule.port==port)){
+					return rule.handler;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Node<H> root = new Node<H>();
+	private int size = 0;
+	private volatile boolean compiled = false;
+
+	/**
+	 * @param pattern e.g. facebook.com or google.*
+	 * @param protocol TCP, UDP or ANY
+	 * @param port or ANY
+	 * @param handler
+	 */
+	public void add(String pattern, int protocol, int port, H handler){
+		if(compiled){
+			throw new IllegalStateException("rules are compiled");
+		}
+		String[] labels = pattern.toLowerCase().split("\\.");
+		Node<H> node = root;
+		for(int i=labels.length-1; i>=0; i--){
+			String label = labels[i];
+			if(label.length()==0 || !label.equals(WILDCARD) && label.indexOf('*')>=0){
+				throw new IllegalArgumentException("Not a domain pattern: "+pattern);
+			}
+			Node<H> child = node.building.get(label);
+			if(child==null){
+				child = new Node<H>();
+				node.building.put(label, child);
+			}
+			node = child;
+		}
+		node.rules.add(new Rule<H>(protocol, port, handler));
+		size++;
+	}
+
+	/**
+	 * Freezes the trie, add() is not allowed afterwards and match() is safe
+	 * to call from several threads.
+	 */
+	public synchronized DomainRules<H> compile(){
+		if(!compiled){
+			root.compile();
+			compiled = true;
+		}
+		return this;
+	}
+
+	/**
+	 * @param host case insensitive, a trailing dot or :port is ignored
+	 * @param protocol TCP or UDP
+	 * @param port destination port
+	 * @return the handler of the most specific rule or null
+	 */
+	public H match(String host, int protocol, int port){
+		if(host==null){
+			return null;
+		}
+		if(!compiled){
+			compile();
+		}
+		int end = host.length();
+		int colon = host.indexOf(':');
+		if(colon>=0 && colon==host.lastIndexOf(':')){
+			end = colon;
+		}
+		if(end>0 && host.charAt(end-1)=='.'){
+			end--;
+		}
+		return match(root, host, end, protocol, port);
+	}
+
+	/**
+	 * @param end end of the labels not matched yet, -1 if all are matched
+	 */
+	private H match(Node<H> node, String host, int end, int protocol, int port){
+		H found = null;
+		if(end>0){
+			int start = host.lastIndexOf('.', end-1)+1;
+			int next = start==0 ? -1 : start-1;
+			Node<H> child = node.child(host, start, end);
+			if(child!=null){
+				found = match(child, host, next, protocol, port);
+			}
+			if(found==null && node.wildcard!=null){
+				found = match(node.wildcard, host, next, protocol, port);
+			}
+		}
+		if(found==null){
+			found = node.select(protocol, port);
+		}
+		return found;
+	}
+
+	/**
+	 * Compares a lower case label with host[start, end) ignoring the case of the host.
+	 */
+	private static int compare(String label, String host, int start, int end){
+		int n = Math.min(label.length(), end-start);
+		for(int i=0; i<n; i++){
+			char c = host.charAt(start+i);
+			if(c>='A' && c<='Z'){
+				c += 'a'-'A';
+			}
+			int d = label.charAt(i)-c;
+			if(d!=0){
+				return d;
+			}
+		}
+		return label.length()-(end-start);
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Reads a rule file.
+	 * @param file
+	 * @param handlers the handler for each name used in the file
+	 * @return the compiled rules, lines with errors are reported and skipped
+	 * @throws IOException
+	 */
+	public static <H> DomainRules<H> load(File file, Map<String, H> handlers) throws IOException{
+		Reader reader = new FileReader(file);
+		try{
+			return load(reader, file.getName(), handlers);
+		}finally{
+			reader.close();
+		}
+	}
+
+	public static <H> DomainRules<H> load(Reader reader, String name, Map<String, H> handlers) throws IOException{
+		DomainRules<H> rules = new DomainRules<H>();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int number = 0;
+		while((line = lines.readLine())!=null){
+			number++;
+			int comment = line.indexOf('#');
+			if(comment>=0){
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if(line.length()==0){
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			try{
+				if(fields.length!=4){
+					throw new IllegalArgumentException("Expected pattern protocol port handler");
+				}
+				int protocol;
+				if(fields[1].equals("*")){
+					protocol = ANY;
+				}else if(fields[1].equalsIgnoreCase("tcp")){
+					protocol = TCP;
+				}else if(fields[1].equalsIgnoreCase("udp")){
+					protocol = UDP;
+				}else{
+					throw new IllegalArgumentException("Unknown protocol "+fields[1]);
+				}
+				int port = fields[2].equals("*") ? ANY : Integer.parseInt(fields[2]);
+				H handler = handlers.get(fields[3]);
+				if(handler==null){
+					throw new IllegalArgumentException("Unknown handler "+fields[3]);
+				}
+				rules.add(fields[0], protocol, port, handler);
+			}catch(IllegalArgumentException e){
+				System.out.println(name+":"+number+": "+e.getMessage()+", skipping "+line);
+			}
+		}
+		return rules.compile();
+	}
+
+	public String toString(){
+		return "domain rules: "+size;
+	}
+}
@@ -0,0 +1,19 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+
+/**
+ * The discovery broadcasts of Dropbox LAN sync on UDP 17500.
+ */
+public class DropboxLanClassifier implements PacketClassifier {
+	private Sorter sorter;
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.sorter = sorter;
+		table.addUdp(this, 17500);
+	}
+
+	public void classify(IPPacket packet){
+		sorter.getMsgWriter().wDropboxLan(new SortMsg(sorter.clientName(packet), ""));
+	}
+}
@@ -0,0 +1,290 @@
+package router66;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the network lookups of the MsgWriter, page titles, search hits and
+ * definitions, on threads of its own, so the thread that writes the messages
+ * never waits for a website. Each Source has a deadline, a limit of lookups
+ * at once and a circuit breaker: after some failures in a row the source is
+ * not asked for a while, then one lookup tries it again. Whatever is not back
+ * in time, not allowed or failed gets the fallback, a message without network
+ * data. The callbacks of finished lookups run on the callback executor, so a
+ * single thread can write all messages.
+ */
+public class Enricher {
+	/**
+	 * What to write once the lookup is done. Called on the thread that called
+	 * enrich if the lookup is not started, else on the callback executor, or
+	 * on a lookup or timer thread without one.
+	 */
+	public interface Callback {
+		/**
+		 * @param value what the lookup returned, never null
+		 */
+		void enriched(String value);
+
+		/**
+		 * The lookup failed, timed out, returned null or was not started.
+		 */
+		void fallback();
+	}
+
+	/**
+	 * A site or service lookups go to
+	 */
+	public static class Source {
+		private final String name;
+		private final long timeoutMillis;
+		private final Semaphore permits;
+		private final int maxConcurrent;
+		private final int failureThreshold;
+		private final long openMillis;
+		// circuit breaker, guarded by this
+		private int failures = 0;
+		private long openUntil = 0;
+		private boolean trying = false;
+		// statistics, guarded by this
+		private long succeeded = 0;
+		private long failed = 0;
+		private long timedOut = 0;
+		private long rejected = 0;
+		private long shortCircuited = 0;
+
+		Source(String name, long timeoutMillis, int maxConcurrent, int failureThreshold, long openMillis){
+			this.name = name;
+			this.timeoutMillis = timeoutMillis;
+			this.permits = new Semaphore(maxConcurrent);
+			this.maxConcurrent = maxConcurrent;
+			this.failureThreshold = failureThreshold;
+			this.openMillis = openMillis;
+		}
+
+		/**
+		 * @return false while the circuit is open, or it is half open and
+		 * its one trial is still running
+		 */
+		private synchronized boolean allow(){
+			if(failures<failureThreshold){
+				return true;
+			}
+			if(System.currentTimeMillis()<openUntil || trying){
+				shortCircuited++;
+				return false;
+			}
+			trying = true;
+			return true;
+		}
+
+		private synchronized void succeeded(){
+			succeeded++;
+			failures = 0;
+			trying = false;
+		}
+
+		private synchronized void failed(boolean timeout){
+			if(timeout){
+				timedOut++;
+			}else{
+				failed++;
+			}
+			failures++;
+			trying = false;
+			if(failures>=failureThreshold){
+				if(failures==failureThreshold){
+					System.out.println("Enricher: "+name+" failed "+failures+" times in a row, not asked for "+openMillis/1000+"s");
+				}
+				openUntil = System.currentTimeMillis()+openMillis;
+			}
+		}
+
+		private synchronized void rejected(){
+			rejected++;
+			// a half open trial that was never started
+			trying = false;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/** true while lookups are not started because of failures */
+		public synchronized boolean isOpen(){
+			return failures>=failureThreshold;
+		}
+
+		/**
+		 * @return lookups still running, also those past their deadline
+		 */
+		public int getRunning(){
+			return maxConcurrent-permits.availablePermits();
+		}
+
+		public synchronized String toString(){
+			return name+": "+(isOpen() ? "open" : "closed")+", running "+getRunning()+", succeeded "+succeeded
+				+" failed "+failed+" timed out "+timedOut+" rejected "+rejected+" short circuited "+shortCircuited;
+		}
+	}
+
+	private final ExecutorService lookups;
+	private final ScheduledExecutorService deadlines;
+	private volatile Executor callbacks;
+
+	/**
+	 * No thread is started before the first lookup.
+	 */
+	public Enricher(){
+		this.lookups = Executors.newCachedThreadPool(new Daemons("enricher"));
+		this.deadlines = Executors.newSingleThreadScheduledExecutor(new Daemons("enricher-deadline"));
+	}
+
+	/**
+	 * @param name for the statistics
+	 * @param timeoutMillis how long a lookup may take before the fallback is written
+	 * @param maxConcurrent lookups running at once, more get the fallback at once
+	 * @param failureThreshold failures and timeouts in a row that open the circuit
+	 * @param openMillis how long an open circuit gives the fallback before it tries again
+	 */
+	public Source addSource(String name, long timeoutMillis, int maxConcurrent, int failureThreshold, long openMillis){
+		return new Source(name, timeoutMillis, maxConcurrent, failureThreshold, openMillis);
+	}
+
+	/**
+	 * @param callbacks runs the callbacks of started lookups, null to call
+	 * them on the lookup or timer thread
+	 */
+	public void setCallbacks(Executor callbacks){
+		this.callbacks = callbacks;
+	}
+
+	/**
+	 * Starts a lookup and returns, the callback gets its value or the
+	 * fallback once it is done or the deadline of the source has passed.
+	 * Without a free permit or with an open circuit the fallback is called
+	 * right away on this thread. A lookup past its deadline keeps its permit
+	 * until it returns, so a hanging site cannot pile up threads: lookups
+	 * should have socket timeouts about as long as the deadline of their
+	 * source, else a hanging one blocks the source for good.
+	 * @param source
+	 * @param lookup returns the value or null if there is none
+	 * @param callback
+	 */
+	public void enrich(final Source source, final Callable<String> lookup, final Callback callback){
+		if(!source.allow()){
+			fallback(callback);
+			return;
+		}
+		if(!source.permits.tryAcquire()){
+			source.rejected();
+			fallback(callback);
+			return;
+		}
+		// whoever sets it writes the message, the lookup or the deadline
+		final AtomicBoolean settled = new AtomicBoolean();
+		lookups.execute(new Runnable(){
+			public void run(){
+				String value = null;
+				boolean ok = false;
+				try{
+					value = lookup.call();
+					ok = true;
+				}catch(Exception e){
+					// counted as a failure below, the website is not worth a stack trace
+				}finally{
+					source.permits.release();
+				}
+				if(!settled.compareAndSet(false, true)){
+					return;
+				}
+				if(ok){
+					source.succeeded();
+				}else{
+					source.failed(false);
+				}
+				final String result = value;
+				deliver(new Runnable(){
+					public void run(){
+						if(result!=null){
+							enriched(callback, result);
+						}else{
+							fallback(callback);
+						}
+					}
+				});
+			}
+		});
+		deadlines.schedule(new Runnable(){
+			public void run(){
+				if(settled.compareAndSet(false, true)){
+					source.failed(true);
+					deliver(new Runnable(){
+						public void run(){
+							fallback(callback);
+						}
+					});
+				}
+			}
+		}, source.timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void deliver(Runnable task){
+		Executor executor = callbacks;
+		if(executor==null){
+			task.run();
+		}else{
+			executor.execute(task);
+		}
+	}
+
+	private static void enriched(Callback callback, String value){
+		try{
+			callback.enriched(value);
+		}catch(RuntimeException e){
+			e.printStackTrace();
+		}
+	}
+
+	private static void fallback(Callback callback){
+		try{
+			callback.fallback();
+		}catch(RuntimeException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the threads, lookups still running are interrupted.
+	 */
+	public void shutdown(){
+		deadlines.shutdownNow();
+		lookups.shutdownNow();
+	}
+
+	/**
+	 * Names the threads and makes them daemons, a hanging website must not
+	 * keep the vm alive
+	 */
+	private static class Daemons implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Daemons(String prefix){
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, prefix+"-"+count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
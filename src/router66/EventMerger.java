@@ -0,0 +1,372 @@
+package router66;
+
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Puts the events of the Sorter shards back into capture time order before
+ * they reach the MsgWriter. Every shard writes to a Shard of its own, which
+ * only records the call with the time of the packet being classified. An
+ * event is released once every shard got past its time, or once it waited
+ * for the window, so a shard that falls behind delays the others by at most
+ * that long. The MsgWriter is only called on the merge thread, which also
+ * runs the Enricher callbacks handed to execute: an enriched message is
+ * written once its lookup returned or its deadline passed, after the events
+ * released in the meantime.
+ */
+public class EventMerger implements Executor {
+	/** how often a waiting merge thread looks at the watermarks again */
+	static final long POLL_MILLIS = 10;
+
+	/**
+	 * How far the shards got, told by the pipeline that feeds them
+	 */
+	public interface Progress {
+		/**
+		 * @param shard
+		 * @return capture time in microseconds the shard will record no older
+		 * events than, Long.MAX_VALUE if it has nothing left to classify
+		 */
+		long watermark(int shard);
+	}
+
+	/**
+	 * The MsgWriter method an event goes to
+	 */
+	enum Kind {
+		WEB_DOMAIN, SSL_DOMAIN, SEARCH_GOOGLE, DROPBOX_LAN, DROPBOX_WEB, YOUTUBE_WATCH,
+		FACEBOOK, IMAP, EVERNOTE, ADVERTISING, WIKIPEDIA, AMAZON, MESSENGER
+	}
+
+	/**
+	 * An event waiting in the merge queue
+	 */
+	private static class Event implements Comparable<Event> {
+		final Kind kind;
+		final SortMsg sMsg;
+		final long ts;			// capture time of the packet in microseconds
+		final long arrival;		// System.nanoTime() when queued
+		final long order;		// arrival order, keeps equal timestamps stable
+
+		Event(Kind kind, SortMsg sMsg, long ts, long arrival, long order){
+			this.kind = kind;
+			this.sMsg = sMsg;
+			this.ts = ts;
+			this.arrival = arrival;
+			this.order = order;
+		}
+
+		public int compareTo(Event other){
+			if(ts!=other.ts){
+				return ts<other.ts ? -1 : 1;
+			}
+			return order<other.order ? -1 : (order==other.order ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The MsgWriter of one shard, records the events instead of writing them.
+	 * Only the worker of the shard calls it.
+	 */
+	public class Shard extends MsgWriter {
+		private long time = Long.MIN_VALUE;
+
+		Shard(){
+			super(null);
+		}
+
+		/**
+		 * Sets the capture time of the packet that is classified next.
+		 */
+		public void setTime(long sec, long usec){
+			time = sec*1000000L+usec;
+		}
+
+		public void wWebDomain(SortMsg sMsg){
+			add(Kind.WEB_DOMAIN, sMsg, time);
+		}
+		public void wSSLDomain(SortMsg sMsg){
+			add(Kind.SSL_DOMAIN, sMsg, time);
+		}
+		public void wSearchGoogle(SortMsg sMsg){
+			add(Kind.SEARCH_GOOGLE, sMsg, time);
+		}
+		public void wDropboxLan(SortMsg sMsg){
+			add(Kind.DROPBOX_LAN, sMsg, time);
+		}
+		public void wDropboxWeb(SortMsg sMsg){
+			add(Kind.DROPBOX_WEB, sMsg, time);
+		}
+		public void wYoutubeWatch(SortMsg sMsg){
+			add(Kind.YOUTUBE_WATCH, sMsg, time);
+		}
+		public void wFacebook(SortMsg sMsg){
+			add(Kind.FACEBOOK, sMsg, time);
+		}
+		public void wIMAP(SortMsg sMsg){
+			add(Kind.IMAP, sMsg, time);
+		}
+		public void wEvernote(SortMsg sMsg){
+			add(Kind.EVERNOTE, sMsg, time);
+		}
+		public void wAdvertising(SortMsg sMsg){
+			add(Kind.ADVERTISING, sMsg, time);
+		}
+		public void wWikipedia(SortMsg sMsg){
+			add(Kind.WIKIPEDIA, sMsg, time);
+		}
+		public void wAmazon(SortMsg sMsg){
+			add(Kind.AMAZON, sMsg, time);
+		}
+		public void wMessenger(SortMsg sMsg){
+			add(Kind.MESSENGER, sMsg, time);
+		}
+	}
+
+	private final MsgWriter msgWriter;
+	private final Shard[] shards;
+	private final long windowNanos;
+	private final int maxQueued;
+	private final Thread merger;
+
+	private final PriorityQueue<Event> queue = new PriorityQueue<Event>();	// guarded by this
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();	// guarded by this
+	private Progress progress;
+	private boolean closed = false;
+	private boolean finished = false;
+	private long order = 0;
+	private long released = 0;
+	private long lastReleasedTs = Long.MIN_VALUE;
+	private long late = 0;
+	private long forced = 0;
+	private long failed = 0;
+	private int highWater = 0;
+
+	/**
+	 * @param msgWriter gets the merged events on the merge thread
+	 * @param shardCount
+	 * @param windowMillis how long an event waits for older events of other shards
+	 * @param maxQueued events held for reordering before the oldest is released anyway
+	 */
+	public EventMerger(MsgWriter msgWriter, int shardCount, long windowMillis, int maxQueued){
+		this.msgWriter = msgWriter;
+		this.windowNanos = windowMillis*1000000L;
+		this.maxQueued = maxQueued;
+		this.shards = new Shard[shardCount];
+		for(int i=0; i<shardCount; i++){
+			shards[i] = new Shard();
+		}
+		this.merger = new Thread(new Merger(), "event-merge");
+		this.merger.setDaemon(true);
+	}
+
+	public Shard getShard(int i){
+		return shards[i];
+	}
+
+	public int getShardCount(){
+		return shards.length;
+	}
+
+	/**
+	 * Starts the merge thread.
+	 * @param progress the pipeline that feeds the shards
+	 */
+	public synchronized void start(Progress progress){
+		this.progress = progress;
+		merger.start();
+	}
+
+	/**
+	 * Releases what is still queued and waits for the merge thread, to be
+	 * called once the shards classified their last packet.
+	 */
+	public void shutdown() throws InterruptedException{
+		synchronized(this){
+			closed = true;
+			notifyAll();
+		}
+		merger.join();
+	}
+
+	/**
+	 * Runs the task on the merge thread before the next event is released.
+	 * Tasks that come after the merge thread finished are dropped.
+	 */
+	public synchronized void execute(Runnable task){
+		if(finished){
+			return;
+		}
+		tasks.add(task);
+		notifyAll();
+	}
+
+	private synchronized void add(Kind kind, SortMsg sMsg, long ts){
+		queue.add(new Event(kind, sMsg, ts, System.nanoTime(), order++));
+		if(queue.size()>highWater){
+			highWater = queue.size();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Time every shard has reached, older events cannot be recorded anymore
+	 * unless packets were captured out of order.
+	 */
+	private long watermark(){
+		long min = Long.MAX_VALUE;
+		for(int i=0; i<shards.length; i++){
+			long watermark = progress.watermark(i);
+			if(watermark<min){
+				min = watermark;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Takes the next task, or else the next event in timestamp order,
+	 * waiting until it is safe to release.
+	 * @return null once the merger is shut down and nothing is queued
+	 */
+	private synchronized Object next() throws InterruptedException{
+		while(true){
+			if(!tasks.isEmpty()){
+				return tasks.removeFirst();
+			}
+			Event head = queue.peek();
+			if(head==null){
+				if(closed){
+					finished = true;
+					return null;
+				}
+				wait();
+				continue;
+			}
+			long waited = System.nanoTime()-head.arrival;
+			boolean full = queue.size()>maxQueued;
+			if(closed || head.ts<=watermark() || waited>=windowNanos || full){
+				queue.poll();
+				if(full && head.ts>watermark()){
+					forced++;
+				}
+				if(head.ts<lastReleasedTs){
+					late++;
+				}else{
+					lastReleasedTs = head.ts;
+				}
+				released++;
+				return head;
+			}
+			long remaining = (windowNanos-waited)/1000000;
+			wait(Math.max(1, Math.min(remaining, POLL_MILLIS)));
+		}
+	}
+
+	/**
+	 * Calls the MsgWriter method of the event.
+	 */
+	private void write(Event event){
+		SortMsg sMsg = event.sMsg;
+		switch(event.kind){
+			case WEB_DOMAIN:
+				msgWriter.wWebDomain(sMsg);
+				break;
+			case SSL_DOMAIN:
+				msgWriter.wSSLDomain(sMsg);
+				break;
+			case SEARCH_GOOGLE:
+				msgWriter.wSearchGoogle(sMsg);
+				break;
+			case DROPBOX_LAN:
+				msgWriter.wDropboxLan(sMsg);
+				break;
+			case DROPBOX_WEB:
+				msgWriter.wDropboxWeb(sMsg);
+				break;
+			case YOUTUBE_WATCH:
+				msgWriter.wYoutubeWatch(sMsg);
+				break;
+			case FACEBOOK:
+				msgWriter.wFacebook(sMsg);
+				break;
+			case IMAP:
+				msgWriter.wIMAP(sMsg);
+				break;
+			case EVERNOTE:
+				msgWriter.wEvernote(sMsg);
+				break;
+			case ADVERTISING:
+				msgWriter.wAdvertising(sMsg);
+				break;
+			case WIKIPEDIA:
+				msgWriter.wWikipedia(sMsg);
+				break;
+			case AMAZON:
+				msgWriter.wAmazon(sMsg);
+				break;
+			case MESSENGER:
+				msgWriter.wMessenger(sMsg);
+				break;
+		}
+	}
+
+	public synchronized int getQueued(){
+		return queue.size();
+	}
+
+	/** most events held for reordering at once */
+	public synchronized int getHighWater(){
+		return highWater;
+	}
+
+	/** events released after a newer one, their shard was behind by more than the window */
+	public synchronized long getLate(){
+		return late;
+	}
+
+	/** events released early because maxQueued was reached */
+	public synchronized long getForced(){
+		return forced;
+	}
+
+	public synchronized long getReleased(){
+		return released;
+	}
+
+	/** events and tasks the MsgWriter threw an exception on */
+	public synchronized long getFailed(){
+		return failed;
+	}
+
+	public synchronized String toString(){
+		return "events: "+shards.length+" shards, queued "+queue.size()+" (max "+highWater+") released "+released
+			+" late "+late+" forced "+forced+" failed "+failed;
+	}
+
+	private class Merger implements Runnable {
+		public void run(){
+			try{
+				Object next;
+				while((next = next())!=null){
+					try{
+						if(next instanceof Event){
+							write((Event)next);
+						}else{
+							((Runnable)next).run();
+						}
+					}catch(RuntimeException e){
+						// a broken message must not stop the others
+						e.printStackTrace();
+						synchronized(EventMerger.this){
+							failed++;
+						}
+					}
+				}
+			}catch(InterruptedException e){
+				e.printStackTrace();
+			}
+		}
+	}
+}
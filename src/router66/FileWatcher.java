@@ -0,0 +1,53 @@
+package router66;
+
+import java.io.File;
+
+/**
+ * Polls the modification time of a file on a daemon thread and runs a
+ * task whenever it changes, for configuration that is reloaded without
+ * restarting the capture.
+ */
+public class FileWatcher implements Runnable {
+	private final File file;
+	private final long checkMillis;
+	private final Runnable onChange;
+	private final Thread thread;
+	private long lastModified;
+
+	/**
+	 * @param file
+	 * @param checkMillis
+	 * @param onChange run on the watcher thread, the file was read before
+	 */
+	public FileWatcher(File file, long checkMillis, Runnable onChange){
+		this.file = file;
+		this.checkMillis = checkMillis;
+		this.onChange = onChange;
+		this.lastModified = file.lastModified();
+		this.thread = new Thread(this, "watch-"+file.getName());
+		thread.setDaemon(true);
+	}
+
+	public void start(){
+		thread.start();
+	}
+
+	public void run(){
+		while(true){
+			try{
+				Thread.sleep(checkMillis);
+			}catch(InterruptedException e){
+				return;
+			}
+			long modified = file.lastModified();
+			if(modified!=lastModified){
+				lastModified = modified;
+				try{
+					onChange.run();
+				}catch(RuntimeException e){
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package router66;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import jpcap.packet.TCPPacket;
+
+/**
+ * Connection tracking for TCP. Each direction of a connection gets one entry
+ * in an open addressing table with primitive keys (linear probing, deletion by
+ * backward shift), so looking up a packet allocates nothing for IPv4. update()
+ * tells the Sorter whether a packet is the first one of its flow worth
+ * classifying, every later packet only increases the flow's counters.
+ * The classification result is kept with the flow.
+ *
+ * Flows end with FIN or RST and stay a little longer so the teardown packets
+ * don't open a new flow, idle flows are dropped. Times are capture times.
+ */
+public class FlowTable {
+	static final byte EMPTY = 0;
+	static final byte OPEN = 1;
+	static final byte CLOSED = 2;
+
+	private final int maxFlows;
+	private final long idleMillis;
+	private final long closedMillis;
+	private final long sweepMillis;
+
+	private int mask;
+	private long[] srcHigh, srcLow, dstHigh, dstLow;
+	private int[] ports;
+	private byte[] state;
+	private boolean[] classified;
+	private long[] packets, bytes, firstSeen, lastSeen;
+	private Object[] results;
+	private int size = 0;
+	private long lastSweep = 0;
+
+	// key of the packet being looked up
+	private long kSrcHigh, kSrcLow, kDstHigh, kDstLow;
+	private int kPorts;
+
+	private long created = 0;
+	private long skipped = 0;
+	private long untracked = 0;
+	private long expired = 0;
+
+	/**
+	 * @param initialCapacity
+	 * @param maxFlows flows tracked at most, packets of further flows are classified every time
+	 * @param idleMillis open flows without packets for that long are dropped
+	 * @param closedMillis flows are kept that long after FIN or RST
+	 */
+	public FlowTable(int initialCapacity, int maxFlows, long idleMillis, long closedMillis){
+		this.maxFlows = maxFlows;
+		this.idleMillis = idleMillis;
+		this.closedMillis = closedMillis;
+		this.sweepMillis = Math.max(1000, Math.min(idleMillis, closedMillis)/2);
+		int capacity = Integer.highestOneBit(Math.max(16, initialCapacity));
+		if(capacity<initialCapacity){
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity){
+		mask = capacity-1;
+		srcHigh = new long[capacity];
+		srcLow = new long[capacity];
+		dstHigh = new long[capacity];
+		dstLow = new long[capacity];
+		ports = new int[capacity];
+		state = new byte[capacity];
+		classified = new boolean[capacity];
+		packets = new long[capacity];
+		bytes = new long[capacity];
+		firstSeen = new long[capacity];
+		lastSeen = new long[capacity];
+		results = new Object[capacity];
+	}
+
+	/**
+	 * Accounts a packet to its flow.
+	 * @param packet
+	 * @return true if the packet should be classified: the first packet with
+	 * payload of a flow, or any packet of a flow that could not be tracked
+	 */
+	public synchronized boolean update(TCPPacket packet){
+		long now = packet.sec*1000+packet.usec/1000;
+		if(now-lastSweep>=sweepMillis){
+			sweep(now);
+			lastSweep = now;
+		}
+		key(packet);
+		int slot = find();
+		if(slot>=0 && packet.syn && !packet.ack){
+			// a new connection on the same ports
+			delete(slot);
+			slot = -1;
+		}
+		if(slot<0){
+			if(packet.rst || packet.fin){
+				return false;
+			}
+			slot = insert(now);
+			if(slot<0){
+				untracked++;
+				return true;
+			}
+		}
+		packets[slot]++;
+		bytes[slot] += packet.len;
+		lastSeen[slot] = now;
+		if(packet.rst || packet.fin){
+			state[slot] = CLOSED;
+		}
+		if(!classified[slot] && packet.data!=null && packet.data.length>0){
+			classified[slot] = true;
+			return true;
+		}
+		skipped++;
+		return false;
+	}
+
+	/**
+	 * Remembers what the flow of the packet was classified as.
+	 */
+	public synchronized void setResult(TCPPacket packet, Object result){
+		key(packet);
+		int slot = find();
+		if(slot>=0){
+			results[slot] = result;
+		}
+	}
+
+	/**
+	 * @return what the flow of the packet was classified as or null
+	 */
+	public synchronized Object getResult(TCPPacket packet){
+		key(packet);
+		int slot = find();
+		return slot<0 ? null : results[slot];
+	}
+
+	private void key(TCPPacket packet){
+		InetAddress src = packet.src_ip;
+		InetAddress dst = packet.dst_ip;
+		if(src instanceof Inet4Address && dst instanceof Inet4Address){
+			// the hash code of an Inet4Address is the address, no array is copied
+			kSrcHigh = 0;
+			kSrcLow = src.hashCode()&0xffffffffL;
+			kDstHigh = 0;
+			kDstLow = dst.hashCode()&0xffffffffL;
+		}else{
+			byte[] s = src.getAddress();
+			byte[] d = dst.getAddress();
+			kSrcHigh = toLong(s, 0);
+			kSrcLow = toLong(s, 8);
+			kDstHigh = toLong(d, 0);
+			kDstLow = toLong(d, 8);
+		}
+		kPorts = packet.src_port<<16|packet.dst_port;
+	}
+
+	private static long toLong(byte[] b, int offset){
+		long v = 0;
+		for(int i=offset; i<offset+8 && i<b.length; i++){
+			v = v<<8 | (b[i]&0xff);
+		}
+		return v;
+	}
+
+	private static int hash(long srcHigh, long srcLow, long dstHigh, long dstLow, int ports){
+		long h = srcLow*0x9e3779b97f4a7c15L;
+		h ^= dstLow*0xc2b2ae3d27d4eb4fL;
+		h ^= (srcHigh^dstHigh)*0x165667b19e3779f9L;
+		h ^= ports*0x27d4eb2f165667c5L;
+		h ^= h>>>31;
+		return (int)(h^(h>>>17));
+	}
+
+	private int find(){
+		int i = hash(kSrcHigh, kSrcLow, kDstHigh, kDstLow, kPorts)&mask;
+		while(state[i]!=EMPTY){
+			if(ports[i]==kPorts && srcLow[i]==kSrcLow && dstLow[i]==kDstLow && srcHigh[i]==kSrcHigh && dstHigh[i]==kDstHigh){
+				return i;
+			}
+			i = (i+1)&mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the current key, growing the table up to maxFlows.
+	 * @return the slot or -1 if the table is full
+	 */
+	private int insert(long now){
+		if(size>=maxFlows){
+			return -1;
+		}
+		if(size+1>(mask+1)*3/4){
+			grow();
+		}
+		int i = hash(kSrcHigh, kSrcLow, kDstHigh, kDstLow, kPorts)&mask;
+		while(state[i]!=EMPTY){
+			i = (i+1)&mask;
+		}
+		srcHigh[i] = kSrcHigh;
+		srcLow[i] = kSrcLow;
+		dstHigh[i] = kDstHigh;
+		dstLow[i] = kDstLow;
+		ports[i] = kPorts;
+		state[i] = OPEN;
+		classified[i] = false;
+		packets[i] = 0;
+		bytes[i] = 0;
+		firstSeen[i] = now;
+		lastSeen[i] = now;
+		results[i] = null;
+		size++;
+		created++;
+		return i;
+	}
+
+	private void grow(){
+		long[] oSrcHigh = srcHigh, oSrcLow = srcLow, oDstHigh = dstHigh, oDstLow = dstLow;
+		int[] oPorts = ports;
+		byte[] oState = state;
+		boolean[] oClassified = classified;
+		long[] oPackets = packets, oBytes = bytes, oFirstSeen = firstSeen, oLastSeen = lastSeen;
+		Object[] oResults = results;
+		allocate((mask+1)*2);
+		for(int j=0; j<oState.length; j++){
+			if(oState[j]==EMPTY){
+				continue;
+			}
+			int i = hash(oSrcHigh[j], oSrcLow[j], oDstHigh[j], oDstLow[j], oPorts[j])&mask;
+			while(state[i]!=EMPTY){
+				i = (i+1)&mask;
+			}
+			srcHigh[i] = oSrcHigh[j];
+			srcLow[i] = oSrcLow[j];
+			dstHigh[i] = oDstHigh[j];
+			dstLow[i] = oDstLow[j];
+			ports[i] = oPorts[j];
+			state[i] = oState[j];
+			classified[i] = oClassified[j];
+			packets[i] = oPackets[j];
+			bytes[i] = oBytes[j];
+			firstSeen[i] = oFirstSeen[j];
+			lastSeen[i] = oLastSeen[j];
+			results[i] = oResults[j];
+		}
+	}
+
+	/**
+	 * Empties a slot and moves later entries of the probe sequence back,
+	 * so lookups never need tombstones.
+	 */
+	private void delete(int hole){
+		state[hole] = EMPTY;
+		results[hole] = null;
+		size--;
+		int i = hole;
+		while(true){
+			i = (i+1)&mask;
+			if(state[i]==EMPTY){
+				return;
+			}
+			int home = hash(srcHigh[i], srcLow[i], dstHigh[i], dstLow[i], ports[i])&mask;
+			// move i into the hole unless its home lies cyclically in (hole, i]
+			boolean stays = hole<=i ? (hole<home && home<=i) : (hole<home || home<=i);
+			if(stays){
+				continue;
+			}
+			srcHigh[hole] = srcHigh[i];
+			srcLow[hole] = srcLow[i];
+			dstHigh[hole] = dstHigh[i];
+			dstLow[hole] = dstLow[i];
+			ports[hole] = ports[i];
+			state[hole] = state[i];
+			classified[hole] = classified[i];
+			packets[hole] = packets[i];
+			bytes[hole] = bytes[i];
+			firstSeen[hole] = firstSeen[i];
+			lastSeen[hole] = lastSeen[i];
+			results[hole] = results[i];
+			state[i] = EMPTY;
+			results[i] = null;
+			hole = i;
+		}
+	}
+
+	/**
+	 * Drops idle and closed flows.
+	 */
+	private void sweep(long now){
+		int i = 0;
+		while(i<=mask){
+			boolean remove = state[i]==OPEN && now-lastSeen[i]>=idleMillis
+				|| state[i]==CLOSED && now-lastSeen[i]>=closedMillis;
+			if(remove){
+				// the next entry may be moved into i, look at i again
+				delete(i);
+				expired++;
+			}else{
+				i++;
+			}
+		}
+	}
+
+	public synchronized int size(){
+		return size;
+	}
+
+	public synchronized int capacity(){
+		return mask+1;
+	}
+
+	/** packets that only updated the counters of an already classified flow */
+	public synchronized long getSkipped(){
+		return skipped;
+	}
+
+	public synchronized String toString(){
+		return "flows: "+size+"/"+(mask+1)+" created "+created+" expired "+expired+" skipped "+skipped+" untracked "+untracked;
+	}
+}
@@ -0,0 +1,292 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reduces host names to their registrable domain, www.bbc.co.uk to bbc.co.uk,
+ * using the rules of the Public Suffix List compiled into a DomainRules trie.
+ * Address literals are recognised in one pass without exceptions and kept as
+ * they are. Results are lower case and interned in a bounded table, so a host
+ * seen before costs no allocation and returns the same String instance.
+ */
+public class HostNormalizer {
+	static final int INTERN_PROBES = 8;
+
+	/** per rule the number of labels of the public suffix it stands for */
+	private final DomainRules<Integer> suffixes;
+	private final String[] interned;
+	private final int internMask;
+
+	/**
+	 * @param suffixes compiled rules, see load()
+	 * @param internSize entries of the intern table, rounded up to a power of two
+	 */
+	public HostNormalizer(DomainRules<Integer> suffixes, int internSize){
+		this.suffixes = suffixes.compile();
+		int size = Integer.highestOneBit(Math.max(16, internSize));
+		if(size<internSize){
+			size <<= 1;
+		}
+		this.interned = new String[size];
+		this.internMask = size-1;
+	}
+
+	/**
+	 * Reads a file in the format of publicsuffix.org: one rule per line,
+	 * "*" for any label, "!" for exceptions, "//" starts a comment. Rules
+	 * that are not ASCII are skipped, hosts arrive in punycode.
+	 * @param file
+	 * @param internSize
+	 * @throws IOException
+	 */
+	public static HostNormalizer load(File file, int internSize) throws IOException{
+		DomainRules<Integer> rules = new DomainRules<Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while((line = reader.readLine())!=null){
+				line = line.trim();
+				int space = line.indexOf(' ');
+				if(space>=0){
+					line = line.substring(0, space);
+				}
+				if(line.length()==0 || line.startsWith("//") || !isAscii(line)){
+					continue;
+				}
+				boolean exception = line.charAt(0)=='!';
+				String rule = exception ? line.substring(1) : line;
+				int labels = 1;
+				for(int i=0; i<rule.length(); i++){
+					if(rule.charAt(i)=='.'){
+						labels++;
+					}
+				}
+				try{
+					// an exception rule makes its own name registrable
+					rules.add(rule, DomainRules.ANY, DomainRules.ANY, Integer.valueOf(exception ? labels-1 : labels));
+				}catch(IllegalArgumentException e){
+					System.out.println(file+": "+e.getMessage());
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return new HostNormalizer(rules, internSize);
+	}
+
+	private static boolean isAscii(String s){
+		for(int i=0; i<s.length(); i++){
+			if(s.charAt(i)>127){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param host a name or address, a trailing dot or :port is ignored
+	 * @return the registrable domain in lower case, an address literal without
+	 * port and brackets, or the host itself if it is a public suffix
+	 */
+	public String registrableDomain(String host){
+		int start = 0;
+		int end = host.length();
+		if(end>0 && host.charAt(0)=='['){
+			int close = host.indexOf(']');
+			if(close>0 && isIpv6(host, 1, close)){
+				return intern(host, 1, close);
+			}
+		}
+		int colon = host.indexOf(':');
+		if(colon>=0){
+			if(colon!=host.lastIndexOf(':')){
+				return isIpv6(host, 0, end) ? intern(host, 0, end) : host;
+			}
+			end = colon;
+		}
+		if(end>0 && host.charAt(end-1)=='.'){
+			end--;
+		}
+		if(isIpv4(host, 0, end)){
+			return intern(host, 0, end);
+		}
+		// the trie ignores port and trailing dot the same way
+		Integer match = suffixes.match(host, DomainRules.ANY, DomainRules.ANY);
+		// no rule: the last label is the public suffix
+		int labels = (match==null ? 1 : match.intValue())+1;
+		int i = end;
+		while(true){
+			i = host.lastIndexOf('.', i-1);
+			if(i<0){
+				break;
+			}
+			if(--labels==0){
+				start = i+1;
+				break;
+			}
+		}
+		return intern(host, start, end);
+	}
+
+	/**
+	 * @return true if host[start, end) is a dotted quad, each part 0 to 255
+	 */
+	public static boolean isIpv4(CharSequence host, int start, int end){
+		int parts = 0;
+		int digits = 0;
+		int value = 0;
+		for(int i=start; i<end; i++){
+			char c = host.charAt(i);
+			if(c>='0' && c<='9'){
+				value = value*10+(c-'0');
+				if(++digits>3 || value>255){
+					return false;
+				}
+			}else if(c=='.' && digits>0 && parts<3){
+				parts++;
+				digits = 0;
+				value = 0;
+			}else{
+				return false;
+			}
+		}
+		return parts==3 && digits>0;
+	}
+
+	/**
+	 * @return true if host[start, end) is an IPv6 address, "::" and a dotted
+	 * quad at the end allowed
+	 */
+	public static boolean isIpv6(CharSequence host, int start, int end){
+		int groups = 0;
+		int digits = 0;
+		boolean compressed = false;
+		int groupStart = start;
+		for(int i=start; i<end; i++){
+			char c = host.charAt(i);
+			if(c>='0' && c<='9' || c>='a' && c<='f' || c>='A' && c<='F'){
+				if(++digits>4){
+					return false;
+				}
+			}else if(c==':'){
+				if(i+1<end && host.charAt(i+1)==':'){
+					if(compressed){
+						return false;
+					}
+					compressed = true;
+					if(digits>0){
+						groups++;
+					}
+					i++;
+				}else if(digits==0){
+					return false;
+				}else{
+					groups++;
+				}
+				digits = 0;
+				groupStart = i+1;
+			}else if(c=='.'){
+				// embedded IPv4 counts as two groups
+				return isIpv4(host, groupStart, end) && (compressed ? groups<=5 : groups==6);
+			}else{
+				return false;
+			}
+		}
+		if(digits>0){
+			groups++;
+		}else if(end>start && host.charAt(end-1)==':' && !(end-start>=2 && host.charAt(end-2)==':')){
+			return false;
+		}
+		return compressed ? groups<=7 : groups==8;
+	}
+
+	/**
+	 * @return true if the host is an IPv4 or IPv6 literal, with or without port
+	 */
+	public static boolean isIpAddress(String host){
+		int end = host.length();
+		if(end>0 && host.charAt(0)=='['){
+			int close = host.indexOf(']');
+			return close>0 && isIpv6(host, 1, close);
+		}
+		int colon = host.indexOf(':');
+		if(colon>=0 && colon!=host.lastIndexOf(':')){
+			return isIpv6(host, 0, end);
+		}
+		return isIpv4(host, 0, colon>=0 ? colon : end);
+	}
+
+	/**
+	 * @return the lower case host[start, end), the same instance as last time
+	 * if it is still in the table
+	 */
+	private String intern(String host, int start, int end){
+		// same as String.hashCode() of the lower case range
+		int hash = 0;
+		for(int i=start; i<end; i++){
+			hash = 31*hash+lowerCase(host.charAt(i));
+		}
+		int home = (hash^hash>>>16)&internMask;
+		int free = -1;
+		for(int probe=0; probe<INTERN_PROBES; probe++){
+			int slot = (home+probe)&internMask;
+			String s = interned[slot];
+			if(s==null){
+				if(free<0){
+					free = slot;
+				}
+				continue;
+			}
+			if(s.hashCode()==hash && s.length()==end-start && equalsLowerCase(s, host, start, end)){
+				return s;
+			}
+		}
+		String s;
+		if(start==0 && end==host.length() && isLowerCase(host)){
+			s = host;
+		}else{
+			char[] chars = new char[end-start];
+			for(int i=start; i<end; i++){
+				chars[i-start] = lowerCase(host.charAt(i));
+			}
+			s = new String(chars);
+		}
+		// a full probe sequence loses its first entry, the table stays bounded
+		interned[free>=0 ? free : home] = s;
+		return s;
+	}
+
+	private static boolean equalsLowerCase(String lower, String host, int start, int end){
+		for(int i=start; i<end; i++){
+			if(lower.charAt(i-start)!=lowerCase(host.charAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isLowerCase(String s){
+		for(int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			if(c>='A' && c<='Z'){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char lowerCase(char c){
+		return c>='A' && c<='Z' ? (char)(c+('a'-'A')) : c;
+	}
+
+	public int getSuffixRules(){
+		return suffixes.size();
+	}
+
+	public String toString(){
+		return "host normalizer: "+suffixes.size()+" public suffix rules";
+	}
+}
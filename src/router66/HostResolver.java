@@ -0,0 +1,186 @@
+package router66;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import router66.RingBuffer.OverflowPolicy;
+import router66.RingBuffer.WaitStrategy;
+
+/**
+ * Reverse DNS without blocking the caller. lookup() only answers from a
+ * bounded LRU cache keyed by IPv4 or IPv6 address, a miss queues the address
+ * for a pool of lookup threads and returns null, so the packet is classified
+ * with the raw address and later packets get the name. Names are kept for
+ * ttlMillis, addresses without a name for negativeTtlMillis. An address is
+ * looked up only once however many packets ask for it while it is pending,
+ * an expired name is still answered until the new lookup is done.
+ */
+public class HostResolver {
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final RingBuffer<Entry> queue;
+	private final Thread[] threads;
+
+	private final Map<InetAddress, Entry> cache;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong resolved = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private static class Entry {
+		final InetAddress address;
+		String name;		// null if the address has no name
+		long expires;		// 0 while the first lookup is pending
+		boolean pending;
+
+		Entry(InetAddress address){
+			this.address = address;
+		}
+	}
+
+	/**
+	 * @param maxEntries addresses cached at most, the least recently used is dropped
+	 * @param ttlMillis how long a name is used before it is looked up again
+	 * @param negativeTtlMillis how long an address without a name is not looked up again
+	 * @param threadCount lookup threads
+	 * @param queueSize pending lookups at most, further misses are not queued
+	 */
+	public HostResolver(final int maxEntries, long ttlMillis, long negativeTtlMillis, int threadCount, int queueSize){
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.cache = new LinkedHashMap<InetAddress, Entry>(1024, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, HostResolver.Entry> eldest){
+				return size()>HostResolver.this.maxEntries;
+			}
+		};
+		this.queue = new RingBuffer<Entry>(queueSize, OverflowPolicy.DROP_NEWEST, WaitStrategy.BLOCKING);
+		this.threads = new Thread[threadCount];
+		for(int i=0; i<threadCount; i++){
+			threads[i] = new Thread(new Lookup(), "resolver-"+i);
+			threads[i].setDaemon(true);
+		}
+	}
+
+	public void start(){
+		for(Thread thread : threads){
+			thread.start();
+		}
+	}
+
+	public void shutdown(){
+		queue.close();
+	}
+
+	/**
+	 * @param address
+	 * @return the cached name of the address or null if it has none or is not
+	 * looked up yet, never blocks
+	 */
+	public String lookup(InetAddress address){
+		long now = System.currentTimeMillis();
+		Entry entry;
+		boolean queue;
+		synchronized(cache){
+			entry = cache.get(address);
+			if(entry==null){
+				entry = new Entry(address);
+				cache.put(address, entry);
+			}
+			queue = !entry.pending && now>=entry.expires;
+			if(queue){
+				entry.pending = true;
+			}
+			if(entry.expires==0){
+				misses.incrementAndGet();
+			}else{
+				hits.incrementAndGet();
+			}
+			if(!queue){
+				return entry.name;
+			}
+		}
+		if(!this.queue.offer(entry)){
+			rejected.incrementAndGet();
+			synchronized(cache){
+				entry.pending = false;
+			}
+		}
+		return entry.name;
+	}
+
+	/**
+	 * @return the cached name or the address as text
+	 */
+	public String lookupOrAddress(InetAddress address){
+		String name = lookup(address);
+		return name==null ? address.getHostAddress() : name;
+	}
+
+	private class Lookup implements Runnable {
+		public void run(){
+			Entry entry;
+			while((entry = queue.take())!=null){
+				String name = null;
+				try{
+					String text = entry.address.getHostAddress();
+					// an InetAddress made from the raw address has no name yet, this resolves it
+					name = InetAddress.getByAddress(entry.address.getAddress()).getCanonicalHostName();
+					if(name.equals(text)){
+						name = null;
+					}
+				}catch(Exception e){
+					name = null;
+				}
+				if(name==null){
+					failed.incrementAndGet();
+				}else{
+					resolved.incrementAndGet();
+				}
+				long now = System.currentTimeMillis();
+				synchronized(cache){
+					if(name!=null || entry.expires==0){
+						// keep a name that went stale rather than forget it over a failed refresh
+						entry.name = name;
+					}
+					entry.expires = now+(name==null ? negativeTtlMillis : ttlMillis);
+					entry.pending = false;
+				}
+			}
+		}
+	}
+
+	public int size(){
+		synchronized(cache){
+			return cache.size();
+		}
+	}
+
+	public int getQueued(){
+		return queue.size();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/** misses that were not looked up because the queue was full */
+	public long getRejected(){
+		return rejected.get();
+	}
+
+	public String toString(){
+		return "resolver: "+size()+"/"+maxEntries+" hits "+hits+" misses "+misses+" resolved "+resolved+" failed "+failed+" queued "+getQueued()+" rejected "+rejected;
+	}
+}
@@ -0,0 +1,147 @@
+package router66;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jpcap.packet.IPPacket;
+import jpcap.packet.TCPPacket;
+
+/**
+ * HTTP on port 80, classified per request head put together by the
+ * TcpReassembler and sent to the handler the domain rules name for the host.
+ * Search terms and page names are taken out of the request by the
+ * UrlExtractors of the same name in the extractors file.
+ */
+public class HttpClassifier implements PacketClassifier {
+	private Sorter sorter;
+	private MsgWriter msgWriter;
+	private DomainRules<Sorter.Handler> rules;
+	private UrlExtractor googleSearch, amazonSearch, amazonProduct, wikipediaPage;
+	private final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+	private final PercentDecoder decoder = new PercentDecoder();
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.sorter = sorter;
+		this.msgWriter = sorter.getMsgWriter();
+		this.rules = sorter.getRules();
+		this.googleSearch = sorter.getExtractor("google-search");
+		this.amazonSearch = sorter.getExtractor("amazon-search");
+		this.amazonProduct = sorter.getExtractor("amazon-product");
+		this.wikipediaPage = sorter.getExtractor("wikipedia-page");
+		table.addTcp(this, 80);
+	}
+
+	public void classify(IPPacket packet){
+		TCPPacket thePacket = (TCPPacket)packet;
+		// every segment goes to the reassembler, the flow only counts it
+		sorter.getFlows().update(thePacket);
+		String client = sorter.clientName(thePacket);
+		sorter.getReassembler().process(thePacket, requests);
+		for(HttpRequest request : requests){
+			sortHttp(thePacket, request, client);
+		}
+		requests.clear();
+	}
+
+	/**
+	 * @return the value of the extractor in the request, null if it has none
+	 * or the extractor is not configured
+	 */
+	private String extract(UrlExtractor extractor, HttpRequest http){
+		return extractor==null ? null : extractor.extract(http, decoder);
+	}
+
+	/**
+	 * Classifies a complete HTTP request head put together by the TcpReassembler.
+	 * @param thePacket the segment that completed the request
+	 * @param http
+	 * @param client
+	 */
+	private void sortHttp(TCPPacket thePacket, HttpRequest http, String client){
+		String host = Sorter.extractHost(thePacket, http);
+		if(!Sorter.validateIPAddress(host)){
+			String fullHost = http.host()!=null ? http.host() : host;
+			Sorter.Handler handler = rules.match(fullHost, DomainRules.TCP, thePacket.dst_port);
+			/**
+			 * Google Search
+			 */
+			if(handler==Sorter.Handler.GOOGLE_SEARCH){
+				String googleReturn=extract(googleSearch, http);
+				String gUrl = Sorter.extractURL(thePacket, http);
+				if(googleReturn!=null){
+					msgWriter.wSearchGoogle(new SortMsg(client, "", googleReturn,gUrl));
+				}
+			}
+			/**
+			 * dropbox Web
+			 */
+			else if(handler==Sorter.Handler.DROPBOX_WEB){
+				msgWriter.wDropboxWeb(new SortMsg(client, "",thePacket.toString()));
+			}
+			/**
+			 *  Youtube Web
+			 */
+			else if(handler==Sorter.Handler.YOUTUBE_WATCH){
+				String yUrl = Sorter.extractURL(thePacket, http);
+
+				if(yUrl.indexOf("watch?v")!=-1){
+					msgWriter.wYoutubeWatch(new SortMsg(client, "", yUrl));
+				}
+
+			}
+			/**
+			 * Advertising
+			 */
+			else if(handler==Sorter.Handler.ADVERTISING){
+				msgWriter.wAdvertising(new SortMsg(client, ""));
+			}
+			/**
+			 * Wikipedia
+			 */
+			else if(handler==Sorter.Handler.WIKIPEDIA){
+				String page = extract(wikipediaPage, http);
+				if(page!=null){
+					msgWriter.wWikipedia(new SortMsg(client, "", page));
+				}
+			}
+			/**
+			 * Facebook
+			 */
+			else if(handler==Sorter.Handler.FACEBOOK){
+				msgWriter.wFacebook(new SortMsg(client, ""));
+			}
+			/**
+			 * Amazon
+			 */
+			else if(handler==Sorter.Handler.AMAZON){
+
+				String searchString = extract(amazonSearch, http);
+				if(searchString!=null){
+					msgWriter.wAmazon(new SortMsg(client, "","0",searchString));
+				}else if(http.targetContains("/dp/")){
+					String productString = extract(amazonProduct, http);
+					if(productString!=null){
+						msgWriter.wAmazon(new SortMsg(client, "", "1", productString));
+					}
+				}else {
+					msgWriter.wAmazon(new SortMsg(client, "", "2"));
+				}
+
+			}
+			else if(handler==Sorter.Handler.IGNORE){
+				// ignored domains, no message
+			}
+			/**
+			 * Standard Website
+			 */
+			else{
+				/**
+				 * Check if Website is Blacklisted
+				 */
+				if(!sorter.getBlocklist().contains(fullHost)){
+					msgWriter.wWebDomain(new SortMsg(client, host));
+				}
+			}
+		}
+	}
+}
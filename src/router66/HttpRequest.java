@@ -0,0 +1,436 @@
+package router66;
+
+/**
+ * HTTP/1.x request head parser working on the payload bytes of a packet.
+ * parse() scans the request line and the headers once and only records
+ * offsets, Strings are created when they are asked for. An instance can
+ * be reused for the next packet, it is not thread safe.
+ */
+public class HttpRequest {
+	static final int MAX_HEADERS = 32;
+	static final int MAX_METHOD_LENGTH = 16;
+
+	private static final byte[] HOST = "host".getBytes();
+	private static final byte[] REFERER = "referer".getBytes();
+	private static final byte[] USER_AGENT = "user-agent".getBytes();
+
+	private byte[] data;
+	private int end;
+	private boolean request;
+	private boolean complete;
+	private int methodStart, methodEnd;
+	private int targetStart, targetEnd;
+	private int pathEnd;
+	private int queryStart;			// -1 without query
+	private int queryEnd;
+	private int versionStart, versionEnd;
+
+	private int headerCount;
+	private final int[] nameStart = new int[MAX_HEADERS];
+	private final int[] nameEnd = new int[MAX_HEADERS];
+	private final int[] valueStart = new int[MAX_HEADERS];
+	private final int[] valueEnd = new int[MAX_HEADERS];
+	private int host, referer, userAgent;	// header index or -1
+
+	private String method, target, path, query, hostValue, refererValue, userAgentValue;
+
+	/**
+	 * @param data payload, e.g. packet.data
+	 * @return true if the payload starts with an HTTP/1.x request line
+	 */
+	public boolean parse(byte[] data){
+		return parse(data, 0, data==null ? 0 : data.length);
+	}
+
+	/**
+	 * @param data
+	 * @param offset start of the request
+	 * @param length bytes available
+	 * @return true if the bytes start with an HTTP/1.x request line
+	 */
+	public boolean parse(byte[] data, int offset, int length){
+		reset();
+		this.data = data;
+		this.end = offset+length;
+		if(data==null){
+			return false;
+		}
+		int i = offset;
+		// method, upper case token
+		methodStart = i;
+		while(i<end && data[i]>='A' && data[i]<='Z' && i-methodStart<MAX_METHOD_LENGTH){
+			i++;
+		}
+		if(i==methodStart || i>=end || data[i]!=' '){
+			return false;
+		}
+		methodEnd = i++;
+		// request target, path and query
+		targetStart = i;
+		pathEnd = -1;
+		while(i<end && data[i]!=' ' && data[i]!='\r' && data[i]!='\n'){
+			byte b = data[i];
+			if(b=='?' && queryStart<0 && pathEnd<0){
+				pathEnd = i;
+				queryStart = i+1;
+			}else if(b=='#' && queryEnd<0){
+				if(pathEnd<0){
+					pathEnd = i;
+				}
+				queryEnd = i;
+			}
+			i++;
+		}
+		if(i==targetStart || i>=end || data[i]!=' '){
+			return false;
+		}
+		targetEnd = i++;
+		if(pathEnd<0){
+			pathEnd = targetEnd;
+		}
+		if(queryStart>=0 && queryEnd<0){
+			queryEnd = targetEnd;
+		}
+		// version
+		versionStart = i;
+		while(i<end && data[i]!='\r' && data[i]!='\n'){
+			i++;
+		}
+		versionEnd = i;
+		if(versionEnd-versionStart<8 || data[versionStart]!='H' || data[versionStart+1]!='T'
+				|| data[versionStart+2]!='T' || data[versionStart+3]!='P' || data[versionStart+4]!='/'){
+			return false;
+		}
+		request = true;
+		i = skipLineEnd(i);
+		// headers, a line cut off by the end of the packet is ignored
+		while(i<end){
+			if(data[i]=='\r' || data[i]=='\n'){
+				// the blank line ending the head, a lone \r may be cut off by the end of the packet
+				complete = data[i]=='\n' || i+1<end && data[i+1]=='\n';
+				break;
+			}
+			int lineStart = i;
+			int colon = -1;
+			while(i<end && data[i]!='\n'){
+				if(colon<0 && data[i]==':'){
+					colon = i;
+				}
+				i++;
+			}
+			if(i>=end){
+				break;
+			}
+			int lineEnd = i;
+			i++;
+			if(colon<0 || headerCount==MAX_HEADERS){
+				continue;
+			}
+			int v = colon+1;
+			while(v<lineEnd && (data[v]==' ' || data[v]=='\t')){
+				v++;
+			}
+			int e = lineEnd;
+			while(e>v && (data[e-1]=='\r' || data[e-1]==' ' || data[e-1]=='\t')){
+				e--;
+			}
+			nameStart[headerCount] = lineStart;
+			nameEnd[headerCount] = colon;
+			valueStart[headerCount] = v;
+			valueEnd[headerCount] = e;
+			if(host<0 && nameEquals(headerCount, HOST)){
+				host = headerCount;
+			}else if(referer<0 && nameEquals(headerCount, REFERER)){
+				referer = headerCount;
+			}else if(userAgent<0 && nameEquals(headerCount, USER_AGENT)){
+				userAgent = headerCount;
+			}
+			headerCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Cheap test whether bytes can be the start of a request: an upper case
+	 * method, a space and a target. Does not need the whole request line.
+	 */
+	public static boolean isRequestStart(byte[] data, int offset, int length){
+		int end = offset+length;
+		int i = offset;
+		while(i<end && data[i]>='A' && data[i]<='Z' && i-offset<MAX_METHOD_LENGTH){
+			i++;
+		}
+		return i>offset && i+1<end && data[i]==' ' && data[i+1]!=' ';
+	}
+
+	private void reset(){
+		request = false;
+		complete = false;
+		queryStart = -1;
+		queryEnd = -1;
+		headerCount = 0;
+		host = -1;
+		referer = -1;
+		userAgent = -1;
+		method = null;
+		target = null;
+		path = null;
+		query = null;
+		hostValue = null;
+		refererValue = null;
+		userAgentValue = null;
+	}
+
+	private int skipLineEnd(int i){
+		if(i<end && data[i]=='\r'){
+			i++;
+		}
+		if(i<end && data[i]=='\n'){
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Compares a header name case insensitive with a lower case name.
+	 */
+	private boolean nameEquals(int header, byte[] lowerCase){
+		int start = nameStart[header];
+		if(nameEnd[header]-start!=lowerCase.length){
+			return false;
+		}
+		for(int i=0; i<lowerCase.length; i++){
+			int b = data[start+i];
+			if(b>='A' && b<='Z'){
+				b += 'a'-'A';
+			}
+			if(b!=lowerCase[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String string(int start, int end){
+		// header bytes are ISO-8859-1
+		char[] chars = new char[end-start];
+		for(int i=start; i<end; i++){
+			chars[i-start] = (char)(data[i]&0xff);
+		}
+		return new String(chars);
+	}
+
+	public boolean isRequest(){
+		return request;
+	}
+
+	/** true if the empty line after the headers is in the payload */
+	public boolean isComplete(){
+		return complete;
+	}
+
+	public byte[] data(){
+		return data;
+	}
+
+	public String method(){
+		if(method==null && request){
+			method = string(methodStart, methodEnd);
+		}
+		return method;
+	}
+
+	public boolean isGet(){
+		return request && methodEnd-methodStart==3 && data[methodStart]=='G' && data[methodStart+1]=='E' && data[methodStart+2]=='T';
+	}
+
+	/** the request target as sent, path, query and fragment */
+	public String target(){
+		if(target==null && request){
+			target = string(targetStart, targetEnd);
+		}
+		return target;
+	}
+
+	public int targetStart(){
+		return targetStart;
+	}
+
+	public int targetEnd(){
+		return targetEnd;
+	}
+
+	/** the target up to the query */
+	public String path(){
+		if(path==null && request){
+			path = string(targetStart, pathEnd);
+		}
+		return path;
+	}
+
+	public int pathEnd(){
+		return pathEnd;
+	}
+
+	/** the raw query without '?' or null */
+	public String query(){
+		if(query==null && request && queryStart>=0){
+			query = string(queryStart, queryEnd);
+		}
+		return query;
+	}
+
+	/** offset of the query or -1 */
+	public int queryStart(){
+		return queryStart;
+	}
+
+	public int queryEnd(){
+		return queryEnd;
+	}
+
+	/**
+	 * The raw, still percent encoded value of a query parameter.
+	 * @param name
+	 * @return the value of the first parameter with that name or null
+	 */
+	public String queryParameter(String name){
+		int start = queryParameterStart(name);
+		if(start<0){
+			return null;
+		}
+		int e = start;
+		while(e<queryEnd && data[e]!='&'){
+			e++;
+		}
+		return string(start, e);
+	}
+
+	/**
+	 * @return offset of the value of the first parameter with that name or -1
+	 */
+	public int queryParameterStart(String name){
+		if(!request || queryStart<0){
+			return -1;
+		}
+		int n = name.length();
+		int i = queryStart;
+		while(i<queryEnd){
+			// i is at the start of a parameter
+			boolean match = i+n<queryEnd && data[i+n]=='=';
+			for(int k=0; match && k<n; k++){
+				match = data[i+k]==name.charAt(k);
+			}
+			if(match){
+				return i+n+1;
+			}
+			while(i<queryEnd && data[i]!='&'){
+				i++;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the request target contains the ASCII string
+	 */
+	public boolean targetContains(String s){
+		return request && indexOf(s, targetStart, targetEnd)>=0;
+	}
+
+	/**
+	 * @return offset of the ASCII string between from and to or -1
+	 */
+	public int indexOf(String s, int from, int to){
+		int n = s.length();
+		for(int i=from; i+n<=to; i++){
+			int k = 0;
+			while(k<n && data[i+k]==s.charAt(k)){
+				k++;
+			}
+			if(k==n){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int headerCount(){
+		return headerCount;
+	}
+
+	public String headerName(int i){
+		return string(nameStart[i], nameEnd[i]);
+	}
+
+	public String headerValue(int i){
+		return string(valueStart[i], valueEnd[i]);
+	}
+
+	public int headerValueStart(int i){
+		return valueStart[i];
+	}
+
+	public int headerValueEnd(int i){
+		return valueEnd[i];
+	}
+
+	/**
+	 * @param name case insensitive
+	 * @return index of the first header with that name or -1
+	 */
+	public int findHeader(String name){
+		byte[] lowerCase = name.toLowerCase().getBytes();
+		for(int i=0; i<headerCount; i++){
+			if(nameEquals(i, lowerCase)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name case insensitive
+	 * @return the value of the first header with that name or null
+	 */
+	public String header(String name){
+		int i = findHeader(name);
+		return i<0 ? null : headerValue(i);
+	}
+
+	/** index of the Host header or -1 */
+	public int hostHeader(){
+		return host;
+	}
+
+	public String host(){
+		if(hostValue==null && host>=0){
+			hostValue = headerValue(host);
+		}
+		return hostValue;
+	}
+
+	/** index of the Referer header or -1 */
+	public int refererHeader(){
+		return referer;
+	}
+
+	public String referer(){
+		if(refererValue==null && referer>=0){
+			refererValue = headerValue(referer);
+		}
+		return refererValue;
+	}
+
+	public String userAgent(){
+		if(userAgentValue==null && userAgent>=0){
+			userAgentValue = headerValue(userAgent);
+		}
+		return userAgentValue;
+	}
+
+	public String toString(){
+		return request ? method()+" "+target()+" host "+host()+" referer "+referer()+" user agent "+userAgent() : "no http request";
+	}
+}
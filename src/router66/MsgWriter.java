@@ -1,25 +1,105 @@
 package router66;
 
 import java.io.BufferedReader;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
 import rita.RiGoogleSearch;
-import rita.RiHtmlParser;
 import rita.RiLexicon;
 
 public class MsgWriter{
 	final static Pattern defineExtract = Pattern.compile("<div class\\=\"dndata\">(.*?)</div>");
+	/**
+	 * Network lookups for the messages: deadline, lookups at once, failures
+	 * in a row after which a source is not asked, and for how long
+	 */
+	final static int YOUTUBE_TIMEOUT_MILLIS = 3000;
+	final static int YOUTUBE_CONCURRENT = 4;
+	final static int GOOGLE_TIMEOUT_MILLIS = 2000;
+	final static int GOOGLE_CONCURRENT = 1;
+	final static int DICTIONARY_TIMEOUT_MILLIS = 2000;
+	final static int DICTIONARY_CONCURRENT = 1;
+	final static int LOOKUP_FAILURES = 5;
+	final static long LOOKUP_PAUSE_MILLIS = 60*1000;
 	
 	private Writer writer;
-	RiGoogleSearch gp = new RiGoogleSearch();
-	RiLexicon lex = new RiLexicon();
-	RiHtmlParser rhp = new RiHtmlParser(null);
+	private RiGoogleSearch gp;
+	private RiLexicon lex;
+	private final Enricher enricher;
+	private final Enricher.Source youtube;
+	private final Enricher.Source google;
+	private final Enricher.Source dictionary;
 	
+	/**
+	 * Without an Enricher, every message that needs a lookup gets its fallback.
+	 */
 	public MsgWriter(Writer writer){
+		this(writer, null);
+	}
+	
+	/**
+	 * @param writer
+	 * @param enricher runs the lookups, shut down by whoever created it
+	 */
+	public MsgWriter(Writer writer, Enricher enricher){
 		this.writer = writer;
+		this.enricher = enricher;
+		if(enricher!=null){
+			youtube = enricher.addSource("youtube", YOUTUBE_TIMEOUT_MILLIS, YOUTUBE_CONCURRENT, LOOKUP_FAILURES, LOOKUP_PAUSE_MILLIS);
+			google = enricher.addSource("google", GOOGLE_TIMEOUT_MILLIS, GOOGLE_CONCURRENT, LOOKUP_FAILURES, LOOKUP_PAUSE_MILLIS);
+			dictionary = enricher.addSource("dictionary", DICTIONARY_TIMEOUT_MILLIS, DICTIONARY_CONCURRENT, LOOKUP_FAILURES, LOOKUP_PAUSE_MILLIS);
+		}else{
+			youtube = null;
+			google = null;
+			dictionary = null;
+		}
+	}
+	
+	/**
+	 * The rita helpers are created on first use, the lexicon takes a while
+	 * to load and a MsgWriter that records events never needs them.
+	 */
+	private synchronized RiGoogleSearch googleSearch(){
+		if(gp==null){
+			gp = new RiGoogleSearch(){
+				// getCount has no timeouts of its own, a hanging request would keep its permit
+				protected void setRequestHeaders(HttpURLConnection connection){
+					super.setRequestHeaders(connection);
+					connection.setConnectTimeout(GOOGLE_TIMEOUT_MILLIS);
+					connection.setReadTimeout(GOOGLE_TIMEOUT_MILLIS);
+				}
+			};
+		}
+		return gp;
+	}
+	
+	private synchronized RiLexicon lexicon(){
+		if(lex==null){
+			lex = new RiLexicon();
+		}
+		return lex;
+	}
+	
+	/**
+	 * @return the youtube, google and dictionary lookups, none without an Enricher
+	 */
+	public Enricher.Source[] getSources(){
+		if(enricher==null){
+			return new Enricher.Source[0];
+		}
+		return new Enricher.Source[]{youtube, google, dictionary};
+	}
+	
+	private void enrich(Enricher.Source source, Callable<String> lookup, Enricher.Callback callback){
+		if(enricher==null){
+			callback.fallback();
+			return;
+		}
+		enricher.enrich(source, lookup, callback);
 	}
 	public void wWebDomain(SortMsg sMsg){
 		String msg = null;
@@ -81,19 +161,37 @@ public class MsgWriter{
 		}
 		writeOut(msg, sMsg);
 	}
-	public void wSearchGoogle(SortMsg sMsg){
+	public void wSearchGoogle(final SortMsg sMsg){
 		int rMsg = (int)(Math.random()*6);
 		String msg = null;
 		switch(rMsg){
 			case 0:
-				msg = sMsg.getClient()+" got "+gp.getCount("\""+sMsg.getAddArgs()[0]+"\"")+" google hits for "+sMsg.getAddArgs()[0]+".";
-				break;
+			case 5:
+				// the hit count is written once google answered, else the plain search
+				final boolean hits = rMsg==0;
+				enrich(google, new Callable<String>(){
+					public String call(){
+						return String.valueOf(googleSearch().getCount("\""+sMsg.getAddArgs()[0]+"\""));
+					}
+				}, new Enricher.Callback(){
+					public void enriched(String count){
+						if(hits){
+							writeOut(sMsg.getClient()+" got "+count+" google hits for "+sMsg.getAddArgs()[0]+".", sMsg);
+						}else{
+							writeOut("Google got "+count+"pages for you, "+sMsg.getClient()+".", sMsg);
+						}
+					}
+					public void fallback(){
+						writeOut(sMsg.getClient()+" searched for "+sMsg.getAddArgs()[0]+".", sMsg);
+					}
+				});
+				return;
 			case 1:
-				String[] rhyme = lex.similarBySound(sMsg.getAddArgs()[0]);
+				String[] rhyme = lexicon().similarBySound(sMsg.getAddArgs()[0]);
 				msg = sMsg.getClient()+" searched for "+sMsg.getAddArgs()[0]+". Did he mean "+rhyme[0]+" or "+rhyme[1]+"?";
 				break;
 			case 2:
-				String[] rhymes = lex.similarBySound(sMsg.getAddArgs()[0]);
+				String[] rhymes = lexicon().similarBySound(sMsg.getAddArgs()[0]);
 				msg = sMsg.getAddArgs()[0]+", "+rhymes[0]+", "+rhymes[1]+" …";
 				break;
 			case 3:
@@ -102,9 +200,6 @@ public class MsgWriter{
 			case 4:
 				msg = sMsg.getClient()+" is looking for "+sMsg.getAddArgs()[0]+".";
 				break;
-			case 5:
-				msg = "Google got "+gp.getCount("\""+sMsg.getAddArgs()[0]+"\"")+"pages for you, "+sMsg.getClient()+".";
-				break;
 			default:
 				break;
 		}
@@ -156,12 +251,28 @@ public class MsgWriter{
 		}
 		writeOut(msg, sMsg);
 	}
-	public void wYoutubeWatch(SortMsg sMsg){
+	public void wYoutubeWatch(final SortMsg sMsg){
+		enrich(youtube, new Callable<String>(){
+			public String call() throws Exception{
+				return youtubeTitle("http://"+sMsg.getAddArgs()[0]);
+			}
+		}, new Enricher.Callback(){
+			public void enriched(String title){
+				writeYoutube(title, sMsg);
+			}
+			public void fallback(){
+				writeYoutube(null, sMsg);
+			}
+		});
+	}
+	/**
+	 * @return the title of a youtube page, null if it has none
+	 */
+	private static String youtubeTitle(String url) throws Exception{
 			String title = null;
-			BufferedReader reader;
+			Boolean tFound = false;
+			BufferedReader reader = WebsiteReader.read(url, YOUTUBE_TIMEOUT_MILLIS);		// website wird gelesen
 			try {
-				Boolean tFound = false;
-				reader = WebsiteReader.read("http://"+sMsg.getAddArgs()[0]);		// website wird gelesen
 				String line = reader.readLine();
 				while (line != null) {					// zeile f�r zeile wird durchgegangen
 					if(tFound){							// letzte zeile war title
@@ -173,11 +284,15 @@ public class MsgWriter{
 					}
 					line = reader.readLine(); 
 				}
-			} catch (Exception e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+			} finally {
+				reader.close();
 			}
-			
+			return title;
+	}
+	/**
+	 * @param title of the video or null if the page could not be read in time
+	 */
+	private void writeYoutube(String title, SortMsg sMsg){
 			String msg = null;
 			if(title!=null){
 				switch((int)(Math.random()*3)){
@@ -247,6 +362,24 @@ public class MsgWriter{
 		}
 		writeOut(msg, sMsg);
 	}
+	/**
+	 * @param sMsg client of the sender, addArgs from, to and text of the popup
+	 */
+	public void wMessenger(SortMsg sMsg){
+		String msg = null;
+		String[] popup = sMsg.getAddArgs();
+		switch((int)(Math.random()*2)){
+			case 0:
+				msg = popup[0]+" pops up on "+popup[1]+": "+popup[2];
+				break;
+			case 1:
+				msg = sMsg.getClient()+" sends "+popup[1]+" a message. ### "+popup[2];
+				break;
+			default:
+				break;
+		}
+		writeOut(msg, sMsg);
+	}
 	public void wIMAP(SortMsg sMsg){
 		String theServer;
 		if(sMsg.getServer().indexOf("1e100")!=-1){
@@ -316,28 +449,55 @@ public class MsgWriter{
 		}
 		writeOut(msg, sMsg);
 	}
-	public void wWikipedia(SortMsg sMsg){
+	public void wWikipedia(final SortMsg sMsg){
 		String msg = null;
 		int rMsg = (int)(Math.random()*2);
 		switch(rMsg){
 			case 0:
-				String definitionReturn = rhp.fetch("http://dictionary.reference.com/browse/"+sMsg.getAddArgs()[0]);
-				Matcher m = defineExtract.matcher(definitionReturn);
-				String definition= null;
-				m.find();
-				definition = (((m.group().replaceAll("\\<.*?>","")).replaceAll("[ \t]+$", "")));
-				if(definition!=null){
-					msg = sMsg.getAddArgs()[0]+"? ### "+definition;
-				}
-				break;
+				enrich(dictionary, new Callable<String>(){
+					public String call() throws Exception{
+						return definition(sMsg.getAddArgs()[0]);
+					}
+				}, new Enricher.Callback(){
+					public void enriched(String definition){
+						writeOut(sMsg.getAddArgs()[0]+"? ### "+definition, sMsg);
+					}
+					public void fallback(){
+						writeOut(wikipediaVisit(sMsg), sMsg);
+					}
+				});
+				return;
 			case 1:
-				msg = sMsg.getClient()+" learns on wikipedia something about "+sMsg.getAddArgs()[0]+".";		
+				msg = wikipediaVisit(sMsg);
 				break;
 			default:
 				break;
 		}
 			writeOut(msg, sMsg);
 	}
+	private static String wikipediaVisit(SortMsg sMsg){
+		return sMsg.getClient()+" learns on wikipedia something about "+sMsg.getAddArgs()[0]+".";
+	}
+	/**
+	 * @return the first definition of the word on dictionary.reference.com or null
+	 */
+	private static String definition(String word) throws Exception{
+		StringBuilder page = new StringBuilder();
+		BufferedReader reader = WebsiteReader.read("http://dictionary.reference.com/browse/"+word, DICTIONARY_TIMEOUT_MILLIS);
+		try{
+			String line;
+			while((line = reader.readLine())!=null){
+				page.append(line).append('\n');
+			}
+		}finally{
+			reader.close();
+		}
+		Matcher m = defineExtract.matcher(page);
+		if(!m.find()){
+			return null;
+		}
+		return (((m.group().replaceAll("\\<.*?>","")).replaceAll("[ \t]+$", "")));
+	}
 	public void wAmazon(SortMsg sMsg){
 		String msg = null;
 		if(sMsg.getAddArgs()[0].equals("0")){
@@ -0,0 +1,366 @@
+package router66;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+
+import jpcap.JpcapCaptor;
+import jpcap.NetworkInterface;
+import jpcap.PacketBatchReceiver;
+import jpcap.PacketReceiver;
+import jpcap.packet.Packet;
+
+/**
+ * Captures on several interfaces at once, e.g. LAN and WLAN of the router,
+ * one thread per interface. The streams are merged in Packet.sec/usec order
+ * before they are handed to the receiver. A packet is released as soon as
+ * every interface has delivered something newer, or once it waited for the
+ * reorder window, so an idle interface delays the others by at most that long.
+ * Once maxQueued packets wait, the capture threads wait too and the kernel
+ * buffers what comes in meanwhile, or drops it.
+ */
+public class MultiCapture {
+	/** how often each capture thread refreshes its statistics */
+	static final long STAT_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * A packet waiting in the merge queue
+	 */
+	private static class Entry implements Comparable<Entry> {
+		final Packet packet;
+		final long ts;			// capture time in microseconds
+		final long arrival;		// System.nanoTime() when queued
+		final long order;		// arrival order, keeps equal timestamps stable
+
+		Entry(Packet packet, long arrival, long order){
+			this.packet = packet;
+			this.ts = packet.sec*1000000L+packet.usec;
+			this.arrival = arrival;
+			this.order = order;
+		}
+
+		public int compareTo(Entry other){
+			if(ts!=other.ts){
+				return ts<other.ts ? -1 : 1;
+			}
+			return order<other.order ? -1 : (order==other.order ? 0 : 1);
+		}
+	}
+
+	private final NetworkInterface[] devices;
+	private final JpcapCaptor[] captors;
+	private final Capture[] captures;
+	private final PacketReceiver receiver;
+	private final PacketBatchReceiver batchReceiver;
+	private final long windowNanos;
+	private final int maxQueued;
+	private final int batchSize;
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();	// guarded by this
+	private long order = 0;
+	private long released = 0;
+	private long lastReleasedTs = Long.MIN_VALUE;
+	private long late = 0;
+	private long forced = 0;
+	private long blocked = 0;
+	private int highWater = 0;
+	private int running;
+	private final Thread merger;
+
+	/**
+	 * Opens all devices.
+	 * @param devices
+	 * @param snaplen
+	 * @param promisc
+	 * @param timeout read timeout in ms, also bounds how long a batch waits
+	 * @param receiver gets the merged stream on the merge thread, in batches
+	 * if it is a PacketBatchReceiver
+	 * @param windowMillis how long a packet waits for older packets of other interfaces
+	 * @param maxQueued packets held for reordering before the oldest is released
+	 * anyway and the capture threads wait, at most one batch more are queued
+	 * @param batchSize packets per JpcapCaptor.dispatchBatch and per batch released
+	 */
+	public MultiCapture(NetworkInterface[] devices, int snaplen, boolean promisc, int timeout,
+			PacketReceiver receiver, long windowMillis, int maxQueued, int batchSize) throws IOException{
+		this.devices = devices;
+		this.receiver = receiver;
+		this.batchReceiver = receiver instanceof PacketBatchReceiver ? (PacketBatchReceiver)receiver : null;
+		this.windowNanos = windowMillis*1000000L;
+		this.maxQueued = maxQueued;
+		this.batchSize = batchSize;
+		this.captors = new JpcapCaptor[devices.length];
+		this.captures = new Capture[devices.length];
+		for(int i=0; i<devices.length; i++){
+			captors[i] = JpcapCaptor.openDevice(devices[i], snaplen, promisc, timeout);
+			captures[i] = new Capture(i);
+		}
+		this.merger = new Thread(new Merger(), "capture-merge");
+		this.merger.setDaemon(true);
+	}
+
+	public JpcapCaptor getCaptor(int i){
+		return captors[i];
+	}
+
+	public void start(){
+		running = captures.length;
+		merger.start();
+		for(Capture capture : captures){
+			capture.thread.start();
+		}
+	}
+
+	/**
+	 * Stops capturing, releases what is still queued and closes the devices.
+	 */
+	public void shutdown() throws InterruptedException{
+		for(Capture capture : captures){
+			capture.stopped = true;
+			captors[capture.index].breakLoop();
+		}
+		for(Capture capture : captures){
+			capture.thread.join();
+		}
+		merger.join();
+		for(JpcapCaptor captor : captors){
+			captor.close();
+		}
+	}
+
+	/**
+	 * Waits until all capture threads ended and the queue is drained.
+	 */
+	public void join() throws InterruptedException{
+		merger.join();
+	}
+
+	private synchronized void add(Packet[] packets, int count, Capture capture){
+		if(queue.size()>=maxQueued){
+			blocked++;
+			boolean interrupted = false;
+			while(queue.size()>=maxQueued){
+				try{
+					wait();
+				}catch(InterruptedException e){
+					// keep the packets, the merge thread frees room anyway
+					interrupted = true;
+				}
+			}
+			if(interrupted){
+				Thread.currentThread().interrupt();
+			}
+		}
+		long now = System.nanoTime();
+		for(int i=0; i<count; i++){
+			Entry entry = new Entry(packets[i], now, order++);
+			queue.add(entry);
+			if(entry.ts>capture.latestTs){
+				capture.latestTs = entry.ts;
+			}
+		}
+		capture.packets += count;
+		if(queue.size()>highWater){
+			highWater = queue.size();
+		}
+		notifyAll();
+	}
+
+	private synchronized void finished(Capture capture){
+		running--;
+		capture.latestTs = Long.MAX_VALUE;
+		notifyAll();
+	}
+
+	/**
+	 * Timestamp every running interface has reached, older packets cannot arrive
+	 * anymore unless an interface delivers out of order.
+	 */
+	private long watermark(){
+		long min = Long.MAX_VALUE;
+		for(Capture capture : captures){
+			if(capture.latestTs<min){
+				min = capture.latestTs;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Takes the next packets in timestamp order, waiting until the first one
+	 * is safe to release.
+	 * @param batch gets the packets that can be released now
+	 * @return number of packets, 0 once all interfaces stopped and the queue is empty
+	 */
+	private synchronized int next(Packet[] batch) throws InterruptedException{
+		int count = 0;
+		while(true){
+			Entry head = queue.peek();
+			if(head==null){
+				if(count>0){
+					break;
+				}
+				if(running==0){
+					return 0;
+				}
+				wait();
+				continue;
+			}
+			long waited = System.nanoTime()-head.arrival;
+			boolean full = queue.size()>=maxQueued;
+			if(head.ts<=watermark() || waited>=windowNanos || full){
+				queue.poll();
+				if(full && head.ts>watermark()){
+					forced++;
+				}
+				if(head.ts<lastReleasedTs){
+					late++;
+				}else{
+					lastReleasedTs = head.ts;
+				}
+				released++;
+				batch[count++] = head.packet;
+				if(count==batch.length){
+					break;
+				}
+				continue;
+			}
+			if(count>0){
+				break;
+			}
+			long remaining = (windowNanos-waited)/1000000;
+			wait(Math.max(1, remaining));
+		}
+		// there is room for the capture threads again
+		notifyAll();
+		return count;
+	}
+
+	public synchronized int getQueued(){
+		return queue.size();
+	}
+
+	/** most packets held for reordering at once */
+	public synchronized int getHighWater(){
+		return highWater;
+	}
+
+	/** packets released after a newer one, their interface was behind by more than the window */
+	public synchronized long getLate(){
+		return late;
+	}
+
+	/** packets released early because maxQueued was reached */
+	public synchronized long getForced(){
+		return forced;
+	}
+
+	public synchronized long getReleased(){
+		return released;
+	}
+
+	/** batches a capture thread had to wait with because maxQueued was reached */
+	public synchronized long getBlocked(){
+		return blocked;
+	}
+
+	/** packets received by the kernel on interface i, see JpcapCaptor.updateStat */
+	public int getReceived(int i){
+		return captures[i].received;
+	}
+
+	/** packets dropped by the kernel on interface i */
+	public int getDropped(int i){
+		return captures[i].dropped;
+	}
+
+	public synchronized String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("merge: queued "+queue.size()+" (max "+highWater+") released "+released+" late "+late+" forced "+forced+" blocked "+blocked);
+		for(Capture capture : captures){
+			sb.append("\n  "+devices[capture.index].name+": captured "+capture.packets
+					+" received "+capture.received+" dropped "+capture.dropped);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Capture thread of one interface
+	 */
+	private class Capture implements Runnable, PacketBatchReceiver, PacketReceiver {
+		final int index;
+		final Thread thread;
+		volatile boolean stopped = false;
+		volatile int received;
+		volatile int dropped;
+		long latestTs = Long.MIN_VALUE;	// guarded by MultiCapture.this
+		long packets = 0;				// guarded by MultiCapture.this
+		private final Packet[] single = new Packet[1];
+		private long lastStat = 0;
+
+		Capture(int index){
+			this.index = index;
+			this.thread = new Thread(this, "capture-"+devices[index].name);
+			this.thread.setDaemon(true);
+		}
+
+		public void run(){
+			JpcapCaptor captor = captors[index];
+			try{
+				try{
+					while(!stopped && captor.dispatchBatch(batchSize, this)>=0){
+						updateStat(captor);
+					}
+				}catch(UnsatisfiedLinkError e){
+					// libjpcap built before dispatchBatch was added
+					while(!stopped && captor.processPacket(batchSize, this)>=0){
+						updateStat(captor);
+					}
+				}
+			}finally{
+				finished(this);
+			}
+		}
+
+		private void updateStat(JpcapCaptor captor){
+			long now = System.currentTimeMillis();
+			if(now-lastStat>=STAT_INTERVAL_MILLIS){
+				lastStat = now;
+				captor.updateStat();
+				received = captor.received_packets;
+				dropped = captor.dropped_packets;
+			}
+		}
+
+		public void receivePackets(Packet[] packets, int count){
+			add(packets, count, this);
+		}
+
+		public void receivePacket(Packet packet){
+			single[0] = packet;
+			add(single, 1, this);
+			single[0] = null;
+		}
+	}
+
+	private class Merger implements Runnable {
+		public void run(){
+			try{
+				Packet[] batch = new Packet[Math.max(1, batchSize)];
+				int count;
+				while((count = next(batch))>0){
+					if(batchReceiver!=null){
+						batchReceiver.receivePackets(batch, count);
+					}else{
+						for(int i=0; i<count; i++){
+							receiver.receivePacket(batch[i]);
+						}
+					}
+					for(int i=0; i<count; i++){
+						batch[i] = null;
+					}
+				}
+			}catch(InterruptedException e){
+				e.printStackTrace();
+			}
+		}
+	}
+}
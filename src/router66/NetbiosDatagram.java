@@ -0,0 +1,345 @@
+package router66;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads a NetBIOS datagram (UDP 138, RFC 1002 4.4) and the SMB mailslot
+ * write it carries, by offsets into the payload. Names are decoded from the
+ * first level encoding directly into chars, strings are only made when an
+ * accessor asks for them. Two kinds of mailslot are recognised: browser
+ * announcements of \MAILSLOT\BROWSE, which name the computer that sends
+ * them, and messenger popups of \MAILSLOT\MESSNGR with sender, recipient and
+ * text. An instance can be reused, it is not thread safe.
+ */
+public class NetbiosDatagram {
+	static final int DIRECT_UNIQUE = 0x10;
+	static final int BROADCAST = 0x12;
+	static final int HEADER_LENGTH = 14;
+	static final int ENCODED_NAME_LENGTH = 32;
+	static final int NAME_LENGTH = 15;
+
+	static final int SMB_HEADER_LENGTH = 32;
+	static final int SMB_COM_TRANSACTION = 0x25;
+	static final int TRANSACTION_WORDS = 17;
+	static final int MAILSLOT_WRITE = 1;
+
+	static final int BROWSER_HOST_ANNOUNCEMENT = 1;
+	static final int BROWSER_DOMAIN_ANNOUNCEMENT = 12;
+	static final int BROWSER_LOCAL_MASTER_ANNOUNCEMENT = 15;
+	static final int BROWSER_SERVER_NAME_OFFSET = 6;
+
+	static final String MAILSLOT_BROWSE = "\\MAILSLOT\\BROWSE";
+	static final String MAILSLOT_MESSENGER = "\\MAILSLOT\\MESSNGR";
+	/** popups are written in the OEM code page of the sender */
+	static final String OEM_CHARSET = "Cp866";
+
+	public enum Kind {
+		/** a datagram without a mailslot we know */
+		OTHER,
+		/** host, domain or local master announcement of the browser service */
+		BROWSER_ANNOUNCEMENT,
+		/** a popup of net send or WinPopup */
+		MESSENGER
+	}
+
+	private byte[] data;
+	private int type;
+	private int sourceAddress;
+	private int sourcePort;
+	private final char[] sourceName = new char[NAME_LENGTH];
+	private int sourceNameLength;
+	private int sourceSuffix;
+	private final char[] destinationName = new char[NAME_LENGTH];
+	private int destinationNameLength;
+	private int destinationSuffix;
+	private Kind kind;
+	private int browserOpcode;
+	private int announcedStart, announcedEnd;		// server name of an announcement
+	private int fromStart, fromEnd, toStart, toEnd, textStart, textEnd;	// of a popup
+
+	public boolean parse(byte[] data){
+		return parse(data, 0, data==null ? 0 : data.length);
+	}
+
+	/**
+	 * @param data
+	 * @param offset start of the datagram, the UDP payload
+	 * @param length
+	 * @return true if it is a direct or broadcast datagram with valid names
+	 */
+	public boolean parse(byte[] data, int offset, int length){
+		this.data = data;
+		kind = Kind.OTHER;
+		sourceNameLength = 0;
+		destinationNameLength = 0;
+		browserOpcode = -1;
+		announcedStart = announcedEnd = -1;
+		if(data==null || length<HEADER_LENGTH){
+			return false;
+		}
+		int end = offset+length;
+		type = data[offset]&0xff;
+		if(type<DIRECT_UNIQUE || type>BROADCAST){
+			return false;
+		}
+		sourceAddress = u32(offset+4);
+		sourcePort = u16(offset+8);
+		// dgm_length counts from the source name
+		end = Math.min(end, offset+HEADER_LENGTH+u16(offset+10));
+		int p = offset+HEADER_LENGTH;
+		int nameEnd = decodeName(data, p, end, sourceName);
+		if(nameEnd<0){
+			return false;
+		}
+		sourceNameLength = trimmedLength(sourceName);
+		sourceSuffix = suffix(p);
+		p = nameEnd;
+		nameEnd = decodeName(data, p, end, destinationName);
+		if(nameEnd<0){
+			return false;
+		}
+		destinationNameLength = trimmedLength(destinationName);
+		destinationSuffix = suffix(p);
+		smb(nameEnd, end);
+		return true;
+	}
+
+	/**
+	 * Decodes a first level encoded name, RFC 1001 14.1, and skips its scope.
+	 * @param data
+	 * @param p the length byte in front of the 32 encoded characters
+	 * @param end
+	 * @param name receives the 15 characters in front of the suffix byte
+	 * @return the offset behind the name, -1 if it is malformed
+	 */
+	static int decodeName(byte[] data, int p, int end, char[] name){
+		if(p+1+ENCODED_NAME_LENGTH>end || data[p]!=ENCODED_NAME_LENGTH){
+			return -1;
+		}
+		for(int i=0; i<ENCODED_NAME_LENGTH/2; i++){
+			int high = data[p+1+2*i]-'A';
+			int low = data[p+2+2*i]-'A';
+			if(high<0 || high>15 || low<0 || low>15){
+				return -1;
+			}
+			if(i<NAME_LENGTH){
+				name[i] = (char)(high<<4 | low);
+			}
+		}
+		p += 1+ENCODED_NAME_LENGTH;
+		// scope labels up to the root label
+		while(p<end && data[p]!=0){
+			p += 1+(data[p]&0xff);
+		}
+		return p<end ? p+1 : -1;
+	}
+
+	/**
+	 * @return the length without the padding spaces, 0 if a control character is in the name
+	 */
+	private static int trimmedLength(char[] name){
+		int length = 0;
+		for(int i=0; i<NAME_LENGTH; i++){
+			char c = name[i];
+			if(c<' ' && c!=0 || c==127){
+				return 0;
+			}
+			if(c!=' ' && c!=0){
+				length = i+1;
+			}
+		}
+		return length;
+	}
+
+	private int suffix(int p){
+		return (data[p+ENCODED_NAME_LENGTH-1]-'A')<<4 | (data[p+ENCODED_NAME_LENGTH]-'A');
+	}
+
+	/**
+	 * Reads the SMB transaction of a mailslot write.
+	 */
+	private void smb(int p, int end){
+		int smb = p;
+		if(p+SMB_HEADER_LENGTH+1>end || data[p]!=(byte)0xff || data[p+1]!='S' || data[p+2]!='M' || data[p+3]!='B'
+				|| (data[p+4]&0xff)!=SMB_COM_TRANSACTION){
+			return;
+		}
+		p += SMB_HEADER_LENGTH;
+		int words = data[p]&0xff;
+		int bytesStart = p+1+2*words+2;
+		if(words<TRANSACTION_WORDS || bytesStart>end || u16le(p+1+2*14)!=MAILSLOT_WRITE){
+			return;
+		}
+		int dataCount = u16le(p+1+2*11);
+		int dataStart = smb+u16le(p+1+2*12);
+		int dataEnd = Math.min(end, dataStart+dataCount);
+		if(dataStart<bytesStart || dataStart>dataEnd){
+			return;
+		}
+		// the transaction name leads the bytes, ASCII and terminated by 0
+		int nameEnd = indexOfZero(bytesStart, end);
+		if(nameEnd<0){
+			return;
+		}
+		if(equalsIgnoreCase(bytesStart, nameEnd, MAILSLOT_BROWSE)){
+			if(dataStart+BROWSER_SERVER_NAME_OFFSET+1>dataEnd){
+				return;
+			}
+			browserOpcode = data[dataStart]&0xff;
+			if(browserOpcode!=BROWSER_HOST_ANNOUNCEMENT && browserOpcode!=BROWSER_DOMAIN_ANNOUNCEMENT
+					&& browserOpcode!=BROWSER_LOCAL_MASTER_ANNOUNCEMENT){
+				return;
+			}
+			// opcode, update count, periodicity, 16 bytes name padded with 0
+			announcedStart = dataStart+BROWSER_SERVER_NAME_OFFSET;
+			int zero = indexOfZero(announcedStart, Math.min(dataEnd, announcedStart+16));
+			announcedEnd = zero<0 ? Math.min(dataEnd, announcedStart+16) : zero;
+			kind = Kind.BROWSER_ANNOUNCEMENT;
+		}else if(equalsIgnoreCase(bytesStart, nameEnd, MAILSLOT_MESSENGER)){
+			// sender, recipient and text, each terminated by 0
+			fromStart = dataStart;
+			fromEnd = indexOfZero(fromStart, dataEnd);
+			if(fromEnd<0){
+				return;
+			}
+			toStart = fromEnd+1;
+			toEnd = indexOfZero(toStart, dataEnd);
+			if(toEnd<0){
+				return;
+			}
+			textStart = toEnd+1;
+			textEnd = indexOfZero(textStart, dataEnd);
+			if(textEnd<0){
+				textEnd = dataEnd;
+			}
+			kind = Kind.MESSENGER;
+		}
+	}
+
+	private int indexOfZero(int p, int end){
+		for(int i=p; i<end; i++){
+			if(data[i]==0){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, String s){
+		if(end-start!=s.length()){
+			return false;
+		}
+		for(int i=start; i<end; i++){
+			int c = data[i]&0xff;
+			if(c>='a' && c<='z'){
+				c -= 'a'-'A';
+			}
+			if(c!=s.charAt(i-start)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int u16(int p){
+		return (data[p]&0xff)<<8 | (data[p+1]&0xff);
+	}
+
+	/** SMB is little endian */
+	private int u16le(int p){
+		return (data[p]&0xff) | (data[p+1]&0xff)<<8;
+	}
+
+	private int u32(int p){
+		return u16(p)<<16 | u16(p+2);
+	}
+
+	private String oem(int start, int end){
+		try{
+			return new String(data, start, end-start, OEM_CHARSET);
+		}catch(UnsupportedEncodingException e){
+			char[] chars = new char[end-start];
+			for(int i=start; i<end; i++){
+				chars[i-start] = (char)(data[i]&0xff);
+			}
+			return new String(chars);
+		}
+	}
+
+	/** DIRECT_UNIQUE, 0x11 direct group or BROADCAST */
+	public int type(){
+		return type;
+	}
+
+	/** the IPv4 address of the sender as int, as in the header */
+	public int sourceAddress(){
+		return sourceAddress;
+	}
+
+	/** the IPv4 address of the sender, in network byte order */
+	public byte[] sourceAddressBytes(){
+		return new byte[]{(byte)(sourceAddress>>>24), (byte)(sourceAddress>>>16), (byte)(sourceAddress>>>8), (byte)sourceAddress};
+	}
+
+	public int sourcePort(){
+		return sourcePort;
+	}
+
+	/** the computer or group name of the sender without padding, null if empty */
+	public String sourceName(){
+		return sourceNameLength==0 ? null : new String(sourceName, 0, sourceNameLength);
+	}
+
+	/** the 16th byte of the source name, 0x00 workstation, 0x20 server ... */
+	public int sourceSuffix(){
+		return sourceSuffix;
+	}
+
+	public String destinationName(){
+		return destinationNameLength==0 ? null : new String(destinationName, 0, destinationNameLength);
+	}
+
+	public int destinationSuffix(){
+		return destinationSuffix;
+	}
+
+	public Kind kind(){
+		return kind;
+	}
+
+	/** BROWSER_HOST_ANNOUNCEMENT, BROWSER_DOMAIN_ANNOUNCEMENT or BROWSER_LOCAL_MASTER_ANNOUNCEMENT */
+	public int browserOpcode(){
+		return browserOpcode;
+	}
+
+	/** the server or domain name of a browser announcement or null */
+	public String announcedName(){
+		return kind==Kind.BROWSER_ANNOUNCEMENT && announcedEnd>announcedStart ? oem(announcedStart, announcedEnd) : null;
+	}
+
+	/** sender of a popup or null */
+	public String messageFrom(){
+		return kind==Kind.MESSENGER ? oem(fromStart, fromEnd) : null;
+	}
+
+	/** recipient of a popup or null */
+	public String messageTo(){
+		return kind==Kind.MESSENGER ? oem(toStart, toEnd) : null;
+	}
+
+	/** text of a popup or null */
+	public String messageText(){
+		return kind==Kind.MESSENGER ? oem(textStart, textEnd) : null;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("NetBIOS ");
+		sb.append(sourceName()).append(" -> ").append(destinationName());
+		if(kind==Kind.BROWSER_ANNOUNCEMENT){
+			sb.append(" announces ").append(announcedName());
+		}else if(kind==Kind.MESSENGER){
+			sb.append(" popup from ").append(messageFrom()).append(" to ").append(messageTo()).append(": ").append(messageText());
+		}
+		return sb.toString();
+	}
+}
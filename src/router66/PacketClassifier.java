@@ -0,0 +1,26 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+
+/**
+ * Classifies the packets of the ports it declares. The Sorter finds the
+ * implementations with ClassifierLoader, listed in
+ * META-INF/services/router66.PacketClassifier of any jar on the class path,
+ * so a new protocol needs no change of the Sorter. Implementations need a
+ * public constructor without arguments. Every Sorter shard has instances of
+ * its own, classify() is only called by the worker of the shard, so parsers
+ * and buffers can be kept in fields.
+ */
+public interface PacketClassifier {
+	/**
+	 * Called once before the first packet, registers the ports.
+	 * @param sorter the state of the shard: MsgWriter, rules, clients, flows ...
+	 * @param table e.g. table.addTcp(this, 80)
+	 */
+	void init(Sorter sorter, ClassifierTable table);
+
+	/**
+	 * @param packet a TCPPacket or UDPPacket on one of the registered ports
+	 */
+	void classify(IPPacket packet);
+}
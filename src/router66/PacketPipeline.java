@@ -0,0 +1,197 @@
+package router66;
+
+import jpcap.PacketBatchReceiver;
+import jpcap.PacketReceiver;
+import jpcap.packet.Packet;
+
+import router66.RingBuffer.OverflowPolicy;
+import router66.RingBuffer.WaitStrategy;
+
+/**
+ * Stage between capture and classification. The capture thread only puts the
+ * packet into a ring and returns, so a slow regex, DNS lookup or website fetch
+ * no longer stalls JpcapCaptor.loopPacket. Packets are routed by a hash of the
+ * client address, every ring has one worker with a Sorter shard of its own:
+ * the packets of a client are classified in order and flows and parsers are
+ * never shared between workers. The EventMerger puts the events of the
+ * shards back into capture time order.
+ */
+public class PacketPipeline implements PacketReceiver, PacketBatchReceiver, EventMerger.Progress {
+	private final EventMerger events;
+	private final Worker[] workers;
+
+	/**
+	 * @param shards one Sorter per worker, writing to the shards of events
+	 * @param events
+	 * @param capacity packets queued in all rings together
+	 * @param overflowPolicy
+	 * @param waitStrategy
+	 */
+	public PacketPipeline(Sorter[] shards, EventMerger events, int capacity, OverflowPolicy overflowPolicy, WaitStrategy waitStrategy){
+		this.events = events;
+		this.workers = new Worker[shards.length];
+		int ringCapacity = Math.max(1, capacity/shards.length);
+		for(int i=0; i<shards.length; i++){
+			workers[i] = new Worker(i, shards[i], new RingBuffer<Packet>(ringCapacity, overflowPolicy, waitStrategy));
+		}
+	}
+
+	public void start(){
+		events.start(this);
+		for(Worker worker : workers){
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * @return index of the worker for a Sorter.clientHash
+	 */
+	static int shard(int clientHash, int shards){
+		int h = clientHash^(clientHash>>>16);
+		return (h&0x7fffffff)%shards;
+	}
+
+	private Worker route(Packet packet){
+		if(workers.length==1){
+			return workers[0];
+		}
+		return workers[shard(workers[0].sorter.clientHash(packet), workers.length)];
+	}
+
+	/**
+	 * Called on the capture thread, only enqueues.
+	 */
+	public void receivePacket(Packet packet){
+		Worker worker = route(packet);
+		worker.routed++;
+		worker.ring.offer(packet);
+	}
+
+	/**
+	 * Called on the capture thread by JpcapCaptor.dispatchBatch, the batch
+	 * is split by worker and each part is enqueued under one lock.
+	 */
+	public void receivePackets(Packet[] packets, int count){
+		for(int i=0; i<count; i++){
+			Worker worker = route(packets[i]);
+			if(worker.batch.length==worker.batched){
+				Packet[] batch = new Packet[Math.max(count, 2*worker.batched)];
+				System.arraycopy(worker.batch, 0, batch, 0, worker.batched);
+				worker.batch = batch;
+			}
+			worker.batch[worker.batched++] = packets[i];
+		}
+		// all parts count as routed before any is classified, a worker that
+		// looks idle must not get an older packet than the others
+		for(Worker worker : workers){
+			worker.routed += worker.batched;
+		}
+		for(Worker worker : workers){
+			if(worker.batched>0){
+				worker.ring.offerAll(worker.batch, 0, worker.batched);
+				for(int i=0; i<worker.batched; i++){
+					worker.batch[i] = null;
+				}
+				worker.batched = 0;
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting packets and waits until the workers have classified
+	 * what is left in the rings and the events are written.
+	 */
+	public void shutdown() throws InterruptedException{
+		for(Worker worker : workers){
+			worker.ring.close();
+		}
+		for(Worker worker : workers){
+			worker.thread.join();
+		}
+		events.shutdown();
+	}
+
+	public long watermark(int shard){
+		Worker worker = workers[shard];
+		RingBuffer<Packet> ring = worker.ring;
+		// finished first: if it equals routed, all the shard got is classified
+		long finished = worker.done+ring.getDroppedNewest()+ring.getDroppedOldest();
+		if(finished==worker.routed){
+			return Long.MAX_VALUE;
+		}
+		return worker.lastTs;
+	}
+
+	public int getShards(){
+		return workers.length;
+	}
+
+	public RingBuffer<Packet> getRing(int shard){
+		return workers[shard].ring;
+	}
+
+	public long getClassified(){
+		long classified = 0;
+		for(Worker worker : workers){
+			classified += worker.done-worker.failed;
+		}
+		return classified;
+	}
+
+	/** packets the Sorter threw an exception on */
+	public long getFailed(){
+		long failed = 0;
+		for(Worker worker : workers){
+			failed += worker.failed;
+		}
+		return failed;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("pipeline: "+workers.length+" workers, classified "+getClassified()+", failed "+getFailed());
+		for(Worker worker : workers){
+			sb.append("\n  "+worker.thread.getName()+": "+worker.ring);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Classifies the packets of one shard
+	 */
+	private class Worker implements Runnable {
+		final Sorter sorter;
+		final EventMerger.Shard shardEvents;
+		final RingBuffer<Packet> ring;
+		final Thread thread;
+		Packet[] batch = new Packet[0];		// capture thread only
+		int batched = 0;					// capture thread only
+		volatile long routed = 0;			// written by the capture thread only
+		volatile long done = 0;
+		volatile long failed = 0;
+		volatile long lastTs = Long.MIN_VALUE;
+
+		Worker(int index, Sorter sorter, RingBuffer<Packet> ring){
+			this.sorter = sorter;
+			this.shardEvents = events.getShard(index);
+			this.ring = ring;
+			this.thread = new Thread(this, "sorter-"+index);
+			this.thread.setDaemon(true);
+		}
+
+		public void run(){
+			Packet packet;
+			while((packet = ring.take())!=null){
+				shardEvents.setTime(packet.sec, packet.usec);
+				try{
+					sorter.sortPacket(packet);
+				}catch(RuntimeException e){
+					// malformed or unexpected payloads must not kill the worker
+					failed++;
+				}
+				lastTs = packet.sec*1000000L+packet.usec;
+				done++;
+			}
+		}
+	}
+}
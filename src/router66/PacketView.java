@@ -0,0 +1,468 @@
+package router66;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import jpcap.JpcapCaptor;
+import jpcap.packet.ARPPacket;
+import jpcap.packet.EthernetPacket;
+import jpcap.packet.IPPacket;
+import jpcap.packet.Packet;
+import jpcap.packet.TCPPacket;
+import jpcap.packet.UDPPacket;
+
+/**
+ * Flyweight over a captured frame in a ByteBuffer. One instance is reused for
+ * every frame, the Ethernet, IP and TCP/UDP headers are decoded on demand and
+ * nothing is allocated unless toPacket() is called.
+ * All offsets returned are absolute indexes into buffer().
+ */
+public class PacketView {
+	public static final int DLT_NULL = 0;
+	public static final int DLT_EN10MB = 1;
+	public static final int DLT_RAW = 12;
+	public static final int DLT_LOOP = 108;
+	public static final int DLT_LINUX_SLL = 113;
+
+	public static final int ETHERTYPE_IP = 0x0800;
+	public static final int ETHERTYPE_ARP = 0x0806;
+	public static final int ETHERTYPE_VLAN = 0x8100;
+	public static final int ETHERTYPE_IPV6 = 0x86dd;
+
+	public static final int TCP_FIN = 0x01;
+	public static final int TCP_SYN = 0x02;
+	public static final int TCP_RST = 0x04;
+	public static final int TCP_PSH = 0x08;
+	public static final int TCP_ACK = 0x10;
+	public static final int TCP_URG = 0x20;
+
+	private ByteBuffer buffer;
+	private int frameOffset;
+	private int caplen;
+	private int len;
+	private long sec;
+	private long usec;
+	private int datalink;
+
+	// decoded on demand, -2 means not decoded yet, -1 not present
+	private int etherType;
+	private int networkOffset;
+	private int ipProtocol;
+	private int transportOffset;
+	private int payloadOffset;
+	private int payloadEnd;
+
+	/**
+	 * Points the view at a frame.
+	 * @param buffer
+	 * @param frameOffset index of the first byte of the frame
+	 * @param caplen captured bytes
+	 * @param len length of the packet on the wire
+	 * @param sec
+	 * @param usec
+	 * @param datalink pcap datalink type, e.g. DLT_EN10MB
+	 */
+	public void wrap(ByteBuffer buffer, int frameOffset, int caplen, int len, long sec, long usec, int datalink){
+		this.buffer = buffer;
+		this.frameOffset = frameOffset;
+		this.caplen = caplen;
+		this.len = len;
+		this.sec = sec;
+		this.usec = usec;
+		this.datalink = datalink;
+		this.etherType = -2;
+		this.networkOffset = -2;
+		this.ipProtocol = -2;
+		this.transportOffset = -2;
+		this.payloadOffset = -2;
+		this.payloadEnd = -2;
+	}
+
+	/**
+	 * Points the view at a record written by JpcapCaptor.dispatchRaw.
+	 * @param buffer
+	 * @param recordOffset
+	 * @return offset of the next record
+	 */
+	public int wrapRaw(ByteBuffer buffer, int recordOffset){
+		int caplen = buffer.getInt(recordOffset+12);
+		wrap(buffer, recordOffset+JpcapCaptor.RAW_HEADER_LENGTH, caplen, buffer.getInt(recordOffset+16),
+				buffer.getLong(recordOffset), buffer.getInt(recordOffset+8)&0xffffffffL, buffer.getInt(recordOffset+20));
+		return recordOffset+((JpcapCaptor.RAW_HEADER_LENGTH+caplen+3)&~3);
+	}
+
+	public ByteBuffer buffer(){
+		return buffer;
+	}
+
+	public int frameOffset(){
+		return frameOffset;
+	}
+
+	public int caplen(){
+		return caplen;
+	}
+
+	public int len(){
+		return len;
+	}
+
+	public long sec(){
+		return sec;
+	}
+
+	public long usec(){
+		return usec;
+	}
+
+	public int datalink(){
+		return datalink;
+	}
+
+	/** end of the captured bytes, exclusive */
+	public int frameEnd(){
+		return frameOffset+caplen;
+	}
+
+	/**
+	 * @return ethertype of the network layer or -1 if unknown
+	 */
+	public int etherType(){
+		if(etherType==-2){
+			decodeDatalink();
+		}
+		return etherType;
+	}
+
+	/**
+	 * @return offset of the IP or ARP header or -1
+	 */
+	public int networkOffset(){
+		if(networkOffset==-2){
+			decodeDatalink();
+		}
+		return networkOffset;
+	}
+
+	public boolean isIpv4(){
+		return etherType()==ETHERTYPE_IP && networkOffset+20<=frameEnd();
+	}
+
+	public boolean isIpv6(){
+		return etherType()==ETHERTYPE_IPV6 && networkOffset+40<=frameEnd();
+	}
+
+	public boolean isArp(){
+		return etherType()==ETHERTYPE_ARP;
+	}
+
+	/**
+	 * @return IP protocol of the transport header (6 TCP, 17 UDP ...) or -1
+	 */
+	public int ipProtocol(){
+		if(ipProtocol==-2){
+			decodeNetwork();
+		}
+		return ipProtocol;
+	}
+
+	public boolean isTcp(){
+		return ipProtocol()==IPPacket.IPPROTO_TCP && transportOffset+20<=frameEnd();
+	}
+
+	public boolean isUdp(){
+		return ipProtocol()==IPPacket.IPPROTO_UDP && transportOffset+8<=frameEnd();
+	}
+
+	/**
+	 * @return offset of the TCP/UDP header or -1
+	 */
+	public int transportOffset(){
+		if(transportOffset==-2){
+			decodeNetwork();
+		}
+		return transportOffset;
+	}
+
+	/** IPv4 source address as int, 0 if this is no IPv4 packet */
+	public int srcIpv4(){
+		return isIpv4() ? buffer.getInt(networkOffset+12) : 0;
+	}
+
+	/** IPv4 destination address as int, 0 if this is no IPv4 packet */
+	public int dstIpv4(){
+		return isIpv4() ? buffer.getInt(networkOffset+16) : 0;
+	}
+
+	/** offset of the 4 or 16 address bytes of the source */
+	public int srcAddressOffset(){
+		return isIpv4() ? networkOffset+12 : networkOffset+8;
+	}
+
+	/** offset of the 4 or 16 address bytes of the destination */
+	public int dstAddressOffset(){
+		return isIpv4() ? networkOffset+16 : networkOffset+24;
+	}
+
+	/** 4 for IPv4, 16 for IPv6 */
+	public int addressLength(){
+		return isIpv4() ? 4 : 16;
+	}
+
+	/** TCP or UDP source port, -1 for other protocols */
+	public int srcPort(){
+		return isTcp() || isUdp() ? buffer.getShort(transportOffset)&0xffff : -1;
+	}
+
+	/** TCP or UDP destination port, -1 for other protocols */
+	public int dstPort(){
+		return isTcp() || isUdp() ? buffer.getShort(transportOffset+2)&0xffff : -1;
+	}
+
+	/** TCP sequence number, -1 for other protocols */
+	public long tcpSequence(){
+		return isTcp() ? buffer.getInt(transportOffset+4)&0xffffffffL : -1;
+	}
+
+	/** TCP acknowledgement number, -1 for other protocols */
+	public long tcpAck(){
+		return isTcp() ? buffer.getInt(transportOffset+8)&0xffffffffL : -1;
+	}
+
+	/** TCP flags, see TCP_SYN etc., 0 for other protocols */
+	public int tcpFlags(){
+		return isTcp() ? buffer.get(transportOffset+13)&0xff : 0;
+	}
+
+	public boolean hasTcpFlag(int flag){
+		return (tcpFlags()&flag)!=0;
+	}
+
+	/**
+	 * @return offset of the TCP/UDP payload, the end of the frame for other protocols
+	 */
+	public int payloadOffset(){
+		if(payloadOffset==-2){
+			decodeNetwork();
+		}
+		return payloadOffset;
+	}
+
+	/**
+	 * @return end of the payload, exclusive. Ethernet padding behind the IP packet is cut off.
+	 */
+	public int payloadEnd(){
+		if(payloadEnd==-2){
+			decodeNetwork();
+		}
+		return payloadEnd;
+	}
+
+	public int payloadLength(){
+		return payloadEnd()-payloadOffset();
+	}
+
+	/** byte at an absolute index, as unsigned value */
+	public int getUnsignedByte(int index){
+		return buffer.get(index)&0xff;
+	}
+
+	private void decodeDatalink(){
+		int end = frameEnd();
+		int type = -1;
+		int offset = -1;
+		switch(datalink){
+			case DLT_EN10MB:
+				if(frameOffset+14<=end){
+					type = buffer.getShort(frameOffset+12)&0xffff;
+					offset = frameOffset+14;
+					while(type==ETHERTYPE_VLAN && offset+4<=end){
+						type = buffer.getShort(offset+2)&0xffff;
+						offset += 4;
+					}
+				}
+				break;
+			case DLT_LINUX_SLL:
+				if(frameOffset+16<=end){
+					type = buffer.getShort(frameOffset+14)&0xffff;
+					offset = frameOffset+16;
+				}
+				break;
+			case DLT_NULL:
+			case DLT_LOOP:
+				offset = frameOffset+4;
+				if(offset<end){
+					type = ipEtherType(offset);
+				}
+				break;
+			case DLT_RAW:
+			case 14:	// DLT_RAW on OpenBSD
+				offset = frameOffset;
+				if(offset<end){
+					type = ipEtherType(offset);
+				}
+				break;
+			default:
+				break;
+		}
+		etherType = type;
+		networkOffset = type==-1 ? -1 : offset;
+	}
+
+	private int ipEtherType(int offset){
+		switch(buffer.get(offset)>>4&0x0f){
+			case 4:
+				return ETHERTYPE_IP;
+			case 6:
+				return ETHERTYPE_IPV6;
+			default:
+				return -1;
+		}
+	}
+
+	private void decodeNetwork(){
+		int protocol = -1;
+		int offset = -1;
+		int end = frameEnd();
+		if(isIpv4()){
+			int fragment = buffer.getShort(networkOffset+6)&0x1fff;
+			int totalLength = buffer.getShort(networkOffset+2)&0xffff;
+			if(totalLength>=20 && networkOffset+totalLength<end){
+				end = networkOffset+totalLength;	// ethernet padding
+			}
+			if(fragment==0){
+				protocol = buffer.get(networkOffset+9)&0xff;
+				offset = networkOffset+((buffer.get(networkOffset)&0x0f)<<2);
+			}
+		}else if(isIpv6()){
+			protocol = buffer.get(networkOffset+6)&0xff;
+			offset = networkOffset+40;
+			// skip hop-by-hop, routing, fragment and destination options
+			while((protocol==0 || protocol==43 || protocol==44 || protocol==60) && offset+8<=end){
+				int next = buffer.get(offset)&0xff;
+				offset += protocol==44 ? 8 : ((buffer.get(offset+1)&0xff)+1)<<3;
+				protocol = next;
+			}
+		}
+		if(offset>end){
+			protocol = -1;
+		}
+		ipProtocol = protocol;
+		transportOffset = protocol==-1 ? -1 : offset;
+
+		int payload = end;
+		if(protocol==IPPacket.IPPROTO_TCP && offset+20<=end){
+			payload = offset+((buffer.get(offset+12)>>4&0x0f)<<2);
+		}else if(protocol==IPPacket.IPPROTO_UDP && offset+8<=end){
+			payload = offset+8;
+		}
+		payloadOffset = payload>end ? end : payload;
+		payloadEnd = end;
+	}
+
+	/**
+	 * Copies the payload into an array.
+	 * @return number of bytes copied
+	 */
+	public int copyPayload(byte[] dst, int dstOffset, int max){
+		int n = Math.min(payloadLength(), max);
+		for(int i=0; i<n; i++){
+			dst[dstOffset+i] = buffer.get(payloadOffset+i);
+		}
+		return n;
+	}
+
+	private byte[] copy(int from, int to){
+		byte[] bytes = new byte[to-from];
+		for(int i=from; i<to; i++){
+			bytes[i-from] = buffer.get(i);
+		}
+		return bytes;
+	}
+
+	private InetAddress address(int offset) throws UnknownHostException{
+		return InetAddress.getByAddress(copy(offset, offset+addressLength()));
+	}
+
+	/**
+	 * Creates the jpcap packet object for this frame, the same Sorter.sortPacket
+	 * gets from JpcapCaptor. Allocates, only use it for frames that are classified.
+	 * @return a TCPPacket, UDPPacket, ARPPacket for IPv4 over ethernet or a
+	 * plain Packet for everything else
+	 */
+	public Packet toPacket(){
+		Packet packet;
+		try{
+			if(isTcp()){
+				int flags = tcpFlags();
+				TCPPacket tcp = new TCPPacket(srcPort(), dstPort(), tcpSequence(), tcpAck(),
+						(flags&TCP_URG)!=0, (flags&TCP_ACK)!=0, (flags&TCP_PSH)!=0, (flags&TCP_RST)!=0,
+						(flags&TCP_SYN)!=0, (flags&TCP_FIN)!=0, (flags&0x80)!=0, (flags&0x40)!=0,
+						buffer.getShort(transportOffset+14)&0xffff, buffer.getShort(transportOffset+18)&0xffff);
+				setIpValues(tcp);
+				packet = tcp;
+			}else if(isUdp()){
+				UDPPacket udp = new UDPPacket(srcPort(), dstPort());
+				udp.length = buffer.getShort(transportOffset+4)&0xffff;
+				setIpValues(udp);
+				packet = udp;
+			}else if(isArp() && networkOffset+28<=frameEnd() && buffer.get(networkOffset+4)==6 && buffer.get(networkOffset+5)==4){
+				ARPPacket arp = new ARPPacket();
+				arp.hardtype = buffer.getShort(networkOffset);
+				arp.prototype = buffer.getShort(networkOffset+2);
+				arp.hlen = 6;
+				arp.plen = 4;
+				arp.operation = buffer.getShort(networkOffset+6);
+				arp.sender_hardaddr = copy(networkOffset+8, networkOffset+14);
+				arp.sender_protoaddr = copy(networkOffset+14, networkOffset+18);
+				arp.target_hardaddr = copy(networkOffset+18, networkOffset+24);
+				arp.target_protoaddr = copy(networkOffset+24, networkOffset+28);
+				packet = arp;
+			}else{
+				packet = new Packet();
+			}
+		}catch(UnknownHostException e){
+			// only thrown for illegal address lengths
+			packet = new Packet();
+		}catch(IllegalArgumentException e){
+			// IPv4 mapped address in an IPv6 header
+			packet = new Packet();
+		}
+		packet.sec = sec;
+		packet.usec = usec;
+		packet.caplen = caplen;
+		packet.len = len;
+		packet.header = copy(frameOffset, payloadOffset());
+		packet.data = copy(payloadOffset(), payloadEnd());
+		if(datalink==DLT_EN10MB && caplen>=14){
+			EthernetPacket ether = new EthernetPacket();
+			ether.dst_mac = copy(frameOffset, frameOffset+6);
+			ether.src_mac = copy(frameOffset+6, frameOffset+12);
+			ether.frametype = buffer.getShort(frameOffset+12);
+			packet.datalink = ether;
+		}
+		return packet;
+	}
+
+	private void setIpValues(IPPacket ip) throws UnknownHostException{
+		if(isIpv4()){
+			int flags = buffer.getShort(networkOffset+6)&0xffff;
+			int tos = buffer.get(networkOffset+1)&0xff;
+			ip.setIPv4Parameter(tos>>5, (tos&0x10)!=0, (tos&0x08)!=0, (tos&0x04)!=0, tos&0x03,
+					(flags&0x8000)!=0, (flags&0x4000)!=0, (flags&0x2000)!=0, flags&0x1fff,
+					buffer.getShort(networkOffset+4)&0xffff, buffer.get(networkOffset+8)&0xff, ipProtocol(),
+					address(networkOffset+12), address(networkOffset+16));
+			ip.length = buffer.getShort(networkOffset+2);
+		}else{
+			int word = buffer.getInt(networkOffset);
+			ip.setIPv6Parameter(word>>20&0xff, word&0xfffff, ipProtocol(), buffer.get(networkOffset+7)&0xff,
+					address(networkOffset+8), address(networkOffset+24));
+			ip.length = buffer.getShort(networkOffset+4);
+		}
+	}
+
+	public String toString(){
+		return sec+":"+usec+" proto "+ipProtocol()+" "+srcPort()+" > "+dstPort()+" caplen "+caplen;
+	}
+}
@@ -0,0 +1,164 @@
+package router66;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jpcap.packet.UDPPacket;
+
+/**
+ * Learns which names the clients resolved from the DNS responses on the wire.
+ * Every A and AAAA answer is remembered per client as server address to the
+ * name the client asked for, so a connection can be named without any lookup
+ * of our own, and two clients reaching the same CDN address for different
+ * sites each get their own name. Entries live as long as the record's TTL but
+ * at least minTtlMillis, capped by maxTtlMillis. Times are capture times, the
+ * least recently used entry is dropped beyond maxEntries.
+ */
+public class PassiveDns {
+	private final int maxEntries;
+	private final long minTtlMillis;
+	private final long maxTtlMillis;
+	private final DnsMessage message = new DnsMessage();		// guarded by this
+	private final Map<Key, Entry> entries;
+
+	private long responses = 0;
+	private long learned = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Client and server address, IPv4 in the low word of the low halves
+	 */
+	private static final class Key {
+		final long clientHigh, clientLow, serverHigh, serverLow;
+
+		Key(long clientHigh, long clientLow, long serverHigh, long serverLow){
+			this.clientHigh = clientHigh;
+			this.clientLow = clientLow;
+			this.serverHigh = serverHigh;
+			this.serverLow = serverLow;
+		}
+
+		public int hashCode(){
+			long h = clientLow*0x9e3779b97f4a7c15L ^ serverLow*0xc2b2ae3d27d4eb4fL ^ (clientHigh^serverHigh)*0x165667b19e3779f9L;
+			return (int)(h^(h>>>32));
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key k = (Key)o;
+			return clientLow==k.clientLow && serverLow==k.serverLow && clientHigh==k.clientHigh && serverHigh==k.serverHigh;
+		}
+	}
+
+	private static final class Entry {
+		String name;
+		long expires;
+	}
+
+	public PassiveDns(final int maxEntries, long minTtlMillis, long maxTtlMillis){
+		this.maxEntries = maxEntries;
+		this.minTtlMillis = minTtlMillis;
+		this.maxTtlMillis = maxTtlMillis;
+		this.entries = new LinkedHashMap<Key, Entry>(1024, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, PassiveDns.Entry> eldest){
+				return size()>maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Reads the answers of a DNS response sent to a client.
+	 * @param packet UDP from source port 53
+	 * @return number of addresses learned
+	 */
+	public synchronized int learn(UDPPacket packet){
+		if(!message.parse(packet.data)){
+			return 0;
+		}
+		responses++;
+		long now = packet.sec*1000+packet.usec/1000;
+		InetAddress client = packet.dst_ip;
+		long clientHigh = high(client);
+		long clientLow = low(client);
+		int count = 0;
+		for(int i=0; i<message.answerCount(); i++){
+			int type = message.type(i);
+			if(type!=DnsMessage.TYPE_A && type!=DnsMessage.TYPE_AAAA || message.section(i)!=DnsMessage.SECTION_ANSWER){
+				continue;
+			}
+			byte[] server = message.address(i);
+			Key key = new Key(clientHigh, clientLow, toLong(server, 0, server.length-8), toLong(server, server.length-8, server.length));
+			Entry entry = entries.get(key);
+			if(entry==null){
+				entry = new Entry();
+				entries.put(key, entry);
+			}
+			entry.name = message.resolvedName(i);
+			entry.expires = now+Math.min(maxTtlMillis, Math.max(minTtlMillis, message.ttl(i)*1000));
+			count++;
+		}
+		learned += count;
+		return count;
+	}
+
+	/**
+	 * @param client
+	 * @param server
+	 * @param now capture time in milliseconds
+	 * @return the name the client resolved to reach the server or null
+	 */
+	public synchronized String lookup(InetAddress client, InetAddress server, long now){
+		Key key = new Key(high(client), low(client), high(server), low(server));
+		Entry entry = entries.get(key);
+		if(entry!=null && now>=entry.expires){
+			entries.remove(key);
+			entry = null;
+		}
+		if(entry==null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.name;
+	}
+
+	private static long high(InetAddress address){
+		if(address instanceof Inet4Address){
+			return 0;
+		}
+		byte[] b = address.getAddress();
+		return toLong(b, 0, b.length-8);
+	}
+
+	private static long low(InetAddress address){
+		if(address instanceof Inet4Address){
+			// the hash code of an Inet4Address is the address, no array is copied
+			return address.hashCode()&0xffffffffL;
+		}
+		byte[] b = address.getAddress();
+		return toLong(b, b.length-8, b.length);
+	}
+
+	private static long toLong(byte[] b, int from, int to){
+		long v = 0;
+		for(int i=Math.max(0, from); i<to; i++){
+			v = v<<8 | (b[i]&0xff);
+		}
+		return v;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized String toString(){
+		return "passive dns: "+entries.size()+"/"+maxEntries+" responses "+responses+" learned "+learned+" hits "+hits+" misses "+misses;
+	}
+}
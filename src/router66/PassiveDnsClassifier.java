@@ -0,0 +1,21 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+import jpcap.packet.UDPPacket;
+
+/**
+ * DNS responses to the clients, they name the servers of later connections,
+ * see PassiveDns.
+ */
+public class PassiveDnsClassifier implements PacketClassifier {
+	private PassiveDns passiveDns;
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.passiveDns = sorter.getPassiveDns();
+		table.addUdpSource(this, 53);
+	}
+
+	public void classify(IPPacket packet){
+		passiveDns.learn((UDPPacket)packet);
+	}
+}
@@ -0,0 +1,410 @@
+package router66;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import jpcap.PacketReceiver;
+import jpcap.packet.Packet;
+
+/**
+ * Reads pcap (micro and nano second resolution, both byte orders) and pcapng
+ * files without libpcap. The file is memory mapped in windows, so captures
+ * larger than 2GB work, and the records are read in place through a PacketView.
+ * split() cuts a file into record aligned ranges that can be read in parallel.
+ */
+public class PcapFileReader {
+	static final int PCAP_MAGIC_MICRO = 0xa1b2c3d4;
+	static final int PCAP_MAGIC_NANO = 0xa1b23c4d;
+	static final int PCAPNG_SHB = 0x0a0d0d0a;
+	static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	static final int PCAPNG_IDB = 1;
+	static final int PCAPNG_OPB = 2;
+	static final int PCAPNG_SPB = 3;
+	static final int PCAPNG_EPB = 6;
+	static final int PCAPNG_IF_TSRESOL = 9;
+
+	static final int PCAP_FILE_HEADER_LENGTH = 24;
+	static final int PCAP_RECORD_HEADER_LENGTH = 16;
+
+	/** bytes mapped at once */
+	static final long WINDOW_SIZE = 256L<<20;
+
+	private final File file;
+	private final FileChannel channel;
+	private final RandomAccessFile raf;
+	private final boolean pcapng;
+	private final long end;
+	private long position;
+
+	// pcap
+	private ByteOrder order;
+	private boolean nanosecond;
+	private int datalink;
+	private int snaplen;
+
+	// pcapng, interfaces of the current section
+	private int[] ifLinktypes = new int[0];
+	private int[] ifSnaplens = new int[0];
+	private long[] ifUnitsPerSecond = new long[0];
+
+	private MappedByteBuffer window;	// big endian, for the frames
+	private ByteBuffer headers;			// same content in file byte order
+	private long windowStart;
+	private long windowEnd;
+	private long packetStart;			// offset of the record or block last returned
+	private PacketView view;
+
+	/**
+	 * Opens a capture file and reads its file/section header.
+	 * @param file
+	 * @throws IOException if the file is no pcap or pcapng file
+	 */
+	public PcapFileReader(File file) throws IOException{
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.end = channel.size();
+		if(end<PCAP_FILE_HEADER_LENGTH){
+			close();
+			throw new IOException("Not a capture file: "+file);
+		}
+		map(0, Math.min(end, 64));
+		int magic = window.getInt(0);
+		if(magic==PCAPNG_SHB){
+			pcapng = true;
+			position = 0;
+		}else{
+			pcapng = false;
+			readFileHeader();
+			position = PCAP_FILE_HEADER_LENGTH;
+		}
+	}
+
+	/**
+	 * A reader for the range [start, end) of the same file, sharing the
+	 * format state of the reader at start.
+	 */
+	private PcapFileReader(PcapFileReader other, long start, long end) throws IOException{
+		this.file = other.file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.pcapng = other.pcapng;
+		this.end = end;
+		this.position = start;
+		this.order = other.order;
+		this.nanosecond = other.nanosecond;
+		this.datalink = other.datalink;
+		this.snaplen = other.snaplen;
+		this.ifLinktypes = other.ifLinktypes.clone();
+		this.ifSnaplens = other.ifSnaplens.clone();
+		this.ifUnitsPerSecond = other.ifUnitsPerSecond.clone();
+	}
+
+	private void readFileHeader() throws IOException{
+		int magic = window.getInt(0);
+		if(magic==PCAP_MAGIC_MICRO || magic==PCAP_MAGIC_NANO){
+			order = ByteOrder.BIG_ENDIAN;
+		}else if(Integer.reverseBytes(magic)==PCAP_MAGIC_MICRO || Integer.reverseBytes(magic)==PCAP_MAGIC_NANO){
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		}else{
+			close();
+			throw new IOException("Not a pcap or pcapng file: "+file);
+		}
+		nanosecond = magic==PCAP_MAGIC_NANO;
+		headers.order(order);
+		snaplen = headers.getInt(16);
+		datalink = headers.getInt(20)&0x0fffffff;
+	}
+
+	/**
+	 * Maps [start, start+length) unless it is already inside the current window.
+	 */
+	private void map(long start, long length) throws IOException{
+		if(window!=null && start>=windowStart && start+length<=windowEnd){
+			return;
+		}
+		long size = Math.min(channel.size()-start, Math.max(WINDOW_SIZE, length));
+		if(size<length){
+			throw new IOException("Truncated record at "+start+" in "+file);
+		}
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		headers = window.duplicate().order(order==null ? ByteOrder.BIG_ENDIAN : order);
+		windowStart = start;
+		windowEnd = start+size;
+	}
+
+	private int index(long offset){
+		return (int)(offset-windowStart);
+	}
+
+	/**
+	 * Points the view at the next packet.
+	 * @param view
+	 * @return false at the end of the file or range
+	 */
+	public boolean next(PacketView view) throws IOException{
+		return pcapng ? nextBlock(view) : nextRecord(view);
+	}
+
+	private boolean nextRecord(PacketView view) throws IOException{
+		if(position+PCAP_RECORD_HEADER_LENGTH>end){
+			return false;
+		}
+		map(position, PCAP_RECORD_HEADER_LENGTH);
+		int i = index(position);
+		long sec = headers.getInt(i)&0xffffffffL;
+		long frac = headers.getInt(i+4)&0xffffffffL;
+		int caplen = headers.getInt(i+8);
+		int len = headers.getInt(i+12);
+		if(caplen<0 || position+PCAP_RECORD_HEADER_LENGTH+caplen>end){
+			throw new IOException("Truncated record at "+position+" in "+file);
+		}
+		map(position, PCAP_RECORD_HEADER_LENGTH+caplen);
+		i = index(position);
+		packetStart = position;
+		view.wrap(window, i+PCAP_RECORD_HEADER_LENGTH, caplen, len, sec, nanosecond ? frac/1000 : frac, datalink);
+		position += PCAP_RECORD_HEADER_LENGTH+caplen;
+		return true;
+	}
+
+	private boolean nextBlock(PacketView view) throws IOException{
+		while(position+12<=end){
+			map(position, 12);
+			int i = index(position);
+			int type = headers.getInt(i);
+			if(type==PCAPNG_SHB){
+				readSectionHeader();
+				i = index(position);
+			}
+			int length = headers.getInt(i+4);
+			if(length<12 || position+length>channel.size()){
+				throw new IOException("Bad block length "+length+" at "+position+" in "+file);
+			}
+			map(position, length);
+			i = index(position);
+			long blockStart = position;
+			position += length;
+			switch(type){
+				case PCAPNG_IDB:
+					readInterface(i, length);
+					break;
+				case PCAPNG_EPB: {
+					int iface = headers.getInt(i+8);
+					long ts = (headers.getInt(i+12)&0xffffffffL)<<32 | headers.getInt(i+16)&0xffffffffL;
+					int caplen = headers.getInt(i+20);
+					int len = headers.getInt(i+24);
+					wrap(view, i+28, caplen, len, ts, iface, blockStart);
+					return true;
+				}
+				case PCAPNG_OPB: {
+					int iface = headers.getShort(i+8)&0xffff;
+					long ts = (headers.getInt(i+12)&0xffffffffL)<<32 | headers.getInt(i+16)&0xffffffffL;
+					int caplen = headers.getInt(i+20);
+					int len = headers.getInt(i+24);
+					wrap(view, i+28, caplen, len, ts, iface, blockStart);
+					return true;
+				}
+				case PCAPNG_SPB: {
+					int len = headers.getInt(i+8);
+					int caplen = Math.min(len, length-16);
+					if(ifSnaplens.length>0 && ifSnaplens[0]>0){
+						caplen = Math.min(caplen, ifSnaplens[0]);
+					}
+					// simple packet blocks have no timestamp
+					wrap(view, i+12, caplen, len, 0, 0, blockStart);
+					return true;
+				}
+				default:
+					break;
+			}
+		}
+		return false;
+	}
+
+	private void wrap(PacketView view, int frame, int caplen, int len, long ts, int iface, long blockStart) throws IOException{
+		if(iface<0 || iface>=ifLinktypes.length){
+			throw new IOException("Unknown interface "+iface+" at "+blockStart+" in "+file);
+		}
+		if(caplen<0 || frame+caplen>index(position)){
+			throw new IOException("Bad captured length "+caplen+" at "+blockStart+" in "+file);
+		}
+		packetStart = blockStart;
+		long units = ifUnitsPerSecond[iface];
+		long sec = ts/units;
+		view.wrap(window, frame, caplen, len, sec, usec(ts%units, units), ifLinktypes[iface]);
+	}
+
+	/**
+	 * @param fraction of a second in units, below units
+	 * @param units per second, if_tsresol of the interface
+	 * @return the fraction in microseconds, fraction*1000000 overflows beyond
+	 * about 2^43 units per second
+	 */
+	static long usec(long fraction, long units){
+		if(units%1000000==0){
+			return fraction/(units/1000000);
+		}
+		if(units<=Long.MAX_VALUE/1000000){
+			return fraction*1000000/units;
+		}
+		// a binary resolution that fine, double is precise enough for microseconds
+		return Math.min(999999, (long)((double)fraction/units*1000000));
+	}
+
+	/**
+	 * A new section starts, its byte order may differ from the one before.
+	 */
+	private void readSectionHeader() throws IOException{
+		map(position, 12);
+		int i = index(position);
+		int magic = window.getInt(i+8);
+		if(magic==PCAPNG_BYTE_ORDER_MAGIC){
+			order = ByteOrder.BIG_ENDIAN;
+		}else if(Integer.reverseBytes(magic)==PCAPNG_BYTE_ORDER_MAGIC){
+			order = ByteOrder.LITTLE_ENDIAN;
+		}else{
+			throw new IOException("Bad section header at "+position+" in "+file);
+		}
+		headers.order(order);
+		ifLinktypes = new int[0];
+		ifSnaplens = new int[0];
+		ifUnitsPerSecond = new long[0];
+	}
+
+	private void readInterface(int i, int length){
+		int n = ifLinktypes.length;
+		int[] linktypes = new int[n+1];
+		int[] snaplens = new int[n+1];
+		long[] units = new long[n+1];
+		System.arraycopy(ifLinktypes, 0, linktypes, 0, n);
+		System.arraycopy(ifSnaplens, 0, snaplens, 0, n);
+		System.arraycopy(ifUnitsPerSecond, 0, units, 0, n);
+		linktypes[n] = headers.getShort(i+8)&0xffff;
+		snaplens[n] = headers.getInt(i+12);
+		units[n] = 1000000;
+		// options
+		int o = i+16;
+		int optionsEnd = i+length-4;
+		while(o+4<=optionsEnd){
+			int code = headers.getShort(o)&0xffff;
+			int optionLength = headers.getShort(o+2)&0xffff;
+			if(code==0){
+				break;
+			}
+			if(code==PCAPNG_IF_TSRESOL && optionLength>=1){
+				int resol = headers.get(o+4)&0xff;
+				int exponent = resol&0x7f;
+				if((resol&0x80)!=0){
+					units[n] = exponent<63 ? 1L<<exponent : 1L<<62;
+				}else{
+					long u = 1;
+					for(int e=0; e<exponent && u<=Long.MAX_VALUE/10; e++){
+						u *= 10;
+					}
+					units[n] = u;
+				}
+			}
+			o += 4+((optionLength+3)&~3);
+		}
+		ifLinktypes = linktypes;
+		ifSnaplens = snaplens;
+		ifUnitsPerSecond = units;
+	}
+
+	/**
+	 * Reads the next packet as a jpcap object, like JpcapCaptor.getPacket.
+	 * @return the packet or null at the end of the file
+	 */
+	public Packet nextPacket() throws IOException{
+		if(view==null){
+			view = new PacketView();
+		}
+		return next(view) ? view.toPacket() : null;
+	}
+
+	/**
+	 * Reads packets and hands them to the handler, like JpcapCaptor.loopPacket.
+	 * @param count number of packets, -1 for all
+	 * @param handler
+	 * @return number of packets read
+	 */
+	public int loopPacket(int count, PacketReceiver handler) throws IOException{
+		int n = 0;
+		Packet packet;
+		while((count<0 || n<count) && (packet = nextPacket())!=null){
+			handler.receivePacket(packet);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Cuts the rest of the file into about equally sized ranges that start
+	 * at record boundaries. Only the record headers are read to find them.
+	 * Each returned reader has its own mapping and can be used on its own thread.
+	 * This reader is not moved.
+	 * @param parts
+	 * @return at most parts readers, fewer for small files
+	 */
+	public PcapFileReader[] split(int parts) throws IOException{
+		List<PcapFileReader> readers = new ArrayList<PcapFileReader>();
+		PcapFileReader scan = new PcapFileReader(this, position, end);
+		long step = Math.max(1, (end-position)/parts);
+		long boundary = position+step;
+		PcapFileReader current = new PcapFileReader(this, position, end);
+		PacketView skip = new PacketView();
+		try{
+			while(readers.size()<parts-1 && scan.next(skip)){
+				long start = scan.packetStart;
+				if(start>=boundary && start>current.position){
+					// cut in front of a packet, the interfaces known there are copied along
+					PcapFileReader next = new PcapFileReader(scan, start, end);
+					readers.add(current.limit(start));
+					current = next;
+					boundary = start+step;
+				}
+			}
+		}finally{
+			scan.close();
+		}
+		readers.add(current);
+		return readers.toArray(new PcapFileReader[readers.size()]);
+	}
+
+	private PcapFileReader limit(long end) throws IOException{
+		PcapFileReader limited = new PcapFileReader(this, position, end);
+		close();
+		return limited;
+	}
+
+	public boolean isPcapng(){
+		return pcapng;
+	}
+
+	/** datalink of a pcap file, pcapng stores one per interface */
+	public int getDatalink(){
+		return datalink;
+	}
+
+	public long getPosition(){
+		return position;
+	}
+
+	public long getEnd(){
+		return end;
+	}
+
+	public void close() throws IOException{
+		window = null;
+		headers = null;
+		raf.close();
+	}
+}
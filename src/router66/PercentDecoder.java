@@ -0,0 +1,123 @@
+package router66;
+
+/**
+ * Decodes percent encoded URL parts in one pass: %XX escapes, UTF-8
+ * sequences and characters that stand for a space, e.g. '+' in a query,
+ * go straight into a char buffer that is reused for the next call. Bytes
+ * that are no valid UTF-8 are read as ISO-8859-1, which older sites still
+ * send, a broken escape is kept as it is. An instance is not thread safe.
+ */
+public class PercentDecoder {
+	private char[] buffer = new char[256];
+	private int length;
+
+	/**
+	 * @param data
+	 * @param start
+	 * @param end
+	 * @param spaces characters that are decoded to a space, e.g. "+"
+	 * @return the decoded data[start, end)
+	 */
+	public String decode(byte[] data, int start, int end, String spaces){
+		if(buffer.length<end-start){
+			buffer = new char[Math.max(end-start, buffer.length*2)];
+		}
+		length = 0;
+		// the UTF-8 sequence being decoded
+		int codePoint = 0;
+		int needed = 0;
+		int sequenceStart = 0;
+		int i = start;
+		while(i<end){
+			int b = data[i]&0xff;
+			int next = i+1;
+			if(b=='%' && i+2<end){
+				int high = hex(data[i+1]);
+				int low = hex(data[i+2]);
+				if(high>=0 && low>=0){
+					b = high<<4 | low;
+					next = i+3;
+				}
+			}else if(spaces.indexOf(b)>=0){
+				b = ' ';
+			}
+			if(needed>0){
+				if((b&0xc0)==0x80){
+					codePoint = codePoint<<6 | (b&0x3f);
+					if(--needed==0){
+						appendCodePoint(codePoint);
+					}
+					i = next;
+					continue;
+				}
+				// broken sequence: its bytes were ISO-8859-1, b is read anew
+				latin1(data, sequenceStart, i, spaces);
+				needed = 0;
+			}
+			if(b<0x80){
+				append((char)b);
+			}else if(b>=0xc2 && b<=0xf4){
+				needed = b<0xe0 ? 1 : b<0xf0 ? 2 : 3;
+				codePoint = b&(0x3f>>needed);
+				sequenceStart = i;
+			}else{
+				append((char)b);
+			}
+			i = next;
+		}
+		if(needed>0){
+			latin1(data, sequenceStart, end, spaces);
+		}
+		return new String(buffer, 0, length);
+	}
+
+	/**
+	 * Appends the bytes of data[start, end) one char each, escapes decoded.
+	 */
+	private void latin1(byte[] data, int start, int end, String spaces){
+		int i = start;
+		while(i<end){
+			int b = data[i]&0xff;
+			if(b=='%' && i+2<end && hex(data[i+1])>=0 && hex(data[i+2])>=0){
+				b = hex(data[i+1])<<4 | hex(data[i+2]);
+				i += 3;
+			}else{
+				if(spaces.indexOf(b)>=0){
+					b = ' ';
+				}
+				i++;
+			}
+			append((char)b);
+		}
+	}
+
+	private void appendCodePoint(int codePoint){
+		if(codePoint<0x10000){
+			append((char)codePoint);
+		}else if(codePoint<=0x10ffff){
+			codePoint -= 0x10000;
+			append((char)(0xd800 | codePoint>>10));
+			append((char)(0xdc00 | codePoint&0x3ff));
+		}else{
+			append('\ufffd');
+		}
+	}
+
+	private void append(char c){
+		// a multi byte sequence never gives more chars than it has bytes
+		buffer[length++] = c;
+	}
+
+	private static int hex(byte b){
+		if(b>='0' && b<='9'){
+			return b-'0';
+		}
+		if(b>='a' && b<='f'){
+			return b-'a'+10;
+		}
+		if(b>='A' && b<='F'){
+			return b-'A'+10;
+		}
+		return -1;
+	}
+}
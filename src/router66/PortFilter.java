@@ -0,0 +1,64 @@
+package router66;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jpcap.JpcapCaptor;
+
+/**
+ * Keeps the BPF filter of the attached captors in sync with a PortRegistry.
+ * The filter is installed on attach and again whenever ports are added or removed.
+ */
+public class PortFilter implements PortRegistry.Listener {
+	private final PortRegistry registry;
+	private final CopyOnWriteArrayList<JpcapCaptor> captors = new CopyOnWriteArrayList<JpcapCaptor>();
+	private volatile String installed;
+
+	public PortFilter(PortRegistry registry){
+		this.registry = registry;
+		registry.addListener(this);
+	}
+
+	/**
+	 * Installs the current filter on the captor and keeps it up to date.
+	 * @param captor
+	 * @throws IOException if libpcap rejects the filter
+	 */
+	public void attach(JpcapCaptor captor) throws IOException{
+		captors.add(captor);
+		String filter = registry.toFilter();
+		captor.setFilter(filter, true);
+		installed = filter;
+		System.out.println("PortFilter: "+filter);
+	}
+
+	public void detach(JpcapCaptor captor){
+		captors.remove(captor);
+	}
+
+	public void portsChanged(PortRegistry registry){
+		String filter = registry.toFilter();
+		for(JpcapCaptor captor : captors){
+			try{
+				captor.setFilter(filter, true);
+			}catch(IOException e){
+				// the old filter stays active
+				e.printStackTrace();
+				return;
+			}
+		}
+		installed = filter;
+		System.out.println("PortFilter: "+filter);
+	}
+
+	/** the expression last installed on all captors */
+	public String getInstalled(){
+		return installed;
+	}
+
+	/** stops following the registry */
+	public void close(){
+		registry.removeListener(this);
+		captors.clear();
+	}
+}
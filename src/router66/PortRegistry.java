@@ -0,0 +1,142 @@
+package router66;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The TCP and UDP destination ports the classifiers are interested in, UDP
+ * source ports for responses like DNS and whether ARP is, declared in one
+ * place by the ClassifierTable. The Sorter looks packets up here, and
+ * PortFilter compiles the same set into the kernel BPF filter, so packets
+ * nobody classifies don't cross JNI at all. Listeners are told about every
+ * change.
+ */
+public class PortRegistry {
+	/**
+	 * Notified after ports were added or removed
+	 */
+	public interface Listener {
+		void portsChanged(PortRegistry registry);
+	}
+
+	private final boolean[] tcp = new boolean[65536];
+	private final boolean[] udp = new boolean[65536];
+	private final boolean[] udpSource = new boolean[65536];
+	private volatile boolean arp = false;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public boolean handlesTcp(int port){
+		return port>=0 && port<65536 && tcp[port];
+	}
+
+	public boolean handlesUdp(int port){
+		return port>=0 && port<65536 && udp[port];
+	}
+
+	public boolean handlesUdpSource(int port){
+		return port>=0 && port<65536 && udpSource[port];
+	}
+
+	public boolean handlesArp(){
+		return arp;
+	}
+
+	public void setArp(boolean arp){
+		boolean changed;
+		synchronized(this){
+			changed = this.arp!=arp;
+			this.arp = arp;
+		}
+		if(changed){
+			for(Listener listener : listeners){
+				listener.portsChanged(this);
+			}
+		}
+	}
+
+	public void addTcp(int... ports){
+		set(tcp, ports, true);
+	}
+
+	public void removeTcp(int... ports){
+		set(tcp, ports, false);
+	}
+
+	public void addUdp(int... ports){
+		set(udp, ports, true);
+	}
+
+	public void removeUdp(int... ports){
+		set(udp, ports, false);
+	}
+
+	public void addUdpSource(int... ports){
+		set(udpSource, ports, true);
+	}
+
+	public void removeUdpSource(int... ports){
+		set(udpSource, ports, false);
+	}
+
+	private void set(boolean[] table, int[] ports, boolean value){
+		boolean changed = false;
+		synchronized(this){
+			for(int port : ports){
+				if(port<0 || port>65535){
+					throw new IllegalArgumentException("Not a port: "+port);
+				}
+				if(table[port]!=value){
+					table[port] = value;
+					changed = true;
+				}
+			}
+		}
+		if(changed){
+			for(Listener listener : listeners){
+				listener.portsChanged(this);
+			}
+		}
+	}
+
+	public void addListener(Listener listener){
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener){
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Compiles the registered ports into a pcap filter expression,
+	 * e.g. "tcp dst port 80 or tcp dst port 443 or udp dst port 138".
+	 * @return the expression, one matching nothing if no port is registered
+	 */
+	public synchronized String toFilter(){
+		StringBuilder sb = new StringBuilder();
+		append(sb, "tcp dst", tcp);
+		append(sb, "udp dst", udp);
+		append(sb, "udp src", udpSource);
+		if(arp){
+			sb.append(sb.length()>0 ? " or arp" : "arp");
+		}
+		if(sb.length()==0){
+			// no frame is shorter than 0 bytes
+			return "less 0";
+		}
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String direction, boolean[] table){
+		for(int port=0; port<table.length; port++){
+			if(table[port]){
+				if(sb.length()>0){
+					sb.append(" or ");
+				}
+				sb.append(direction).append(" port ").append(port);
+			}
+		}
+	}
+
+	public String toString(){
+		return toFilter();
+	}
+}
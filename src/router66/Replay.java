@@ -0,0 +1,132 @@
+package router66;
+
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+
+import jpcap.packet.Packet;
+
+/**
+ * Replays a capture file through the same Run/Sorter/MsgWriter/Writer chain
+ * as live traffic, keeping the recorded inter-arrival times scaled by a speed
+ * factor. Used to reproduce load spikes and to measure how much headroom the
+ * pipeline has.
+ *
+ * Usage: Replay file [speed]
+ * speed is a factor like 1 or 10, or max to replay as fast as possible.
+ */
+public class Replay {
+	/** speed value for as fast as possible */
+	public static final double MAX_SPEED = 0;
+
+	/** don't park for less, the timer is not that precise */
+	private static final long MIN_PARK_NANOS = 50000;
+
+	private final PcapFileReader reader;
+	private final Run run;
+	private final double speed;
+
+	private long packets = 0;
+	private long bytes = 0;
+	private long maxLagNanos = 0;
+	private long readNanos = 0;
+	private long drainNanos = 0;
+
+	/**
+	 * @param reader
+	 * @param run receives the packets, its pipeline must be started
+	 * @param speed 1 for real time, 10 for ten times faster, MAX_SPEED for no pacing
+	 */
+	public Replay(PcapFileReader reader, Run run, double speed){
+		this.reader = reader;
+		this.run = run;
+		this.speed = speed;
+	}
+
+	/**
+	 * Feeds all packets of the file into the Run and waits until the
+	 * pipeline has classified what is still queued.
+	 */
+	public void replay() throws Exception{
+		long start = System.nanoTime();
+		long firstTs = -1;
+		Packet packet;
+		while((packet = reader.nextPacket())!=null){
+			if(speed!=MAX_SPEED){
+				long ts = packet.sec*1000000000L+packet.usec*1000L;
+				if(firstTs<0){
+					firstTs = ts;
+				}
+				long due = start+(long)((ts-firstTs)/speed);
+				long wait = due-System.nanoTime();
+				while(wait>=MIN_PARK_NANOS){
+					LockSupport.parkNanos(wait);
+					wait = due-System.nanoTime();
+				}
+				if(-wait>maxLagNanos){
+					maxLagNanos = -wait;
+				}
+			}
+			run.receivePacket(packet);
+			packets++;
+			bytes += packet.len;
+		}
+		readNanos = System.nanoTime()-start;
+		run.shutdown();
+		drainNanos = System.nanoTime()-start-readNanos;
+	}
+
+	public long getPackets(){
+		return packets;
+	}
+
+	/** how far the replay fell behind the scaled capture clock at worst */
+	public long getMaxLagNanos(){
+		return maxLagNanos;
+	}
+
+	public String toString(){
+		PacketPipeline pipeline = run.getPipeline();
+		int highWater = 0;
+		int capacity = 0;
+		long blocked = 0;
+		long droppedNewest = 0;
+		long droppedOldest = 0;
+		for(int i=0; i<pipeline.getShards(); i++){
+			RingBuffer<Packet> ring = pipeline.getRing(i);
+			highWater = Math.max(highWater, ring.getHighWater());
+			capacity = ring.capacity();
+			blocked += ring.getBlocked();
+			droppedNewest += ring.getDroppedNewest();
+			droppedOldest += ring.getDroppedOldest();
+		}
+		double seconds = readNanos/1e9;
+		double total = (readNanos+drainNanos)/1e9;
+		return "replay at "+(speed==MAX_SPEED ? "max" : speed+"x")+" speed\n"
+			+"  read "+packets+" packets, "+bytes+" bytes in "+seconds+"s, "
+				+(long)(packets/seconds)+" packets/s offered, max lag "+maxLagNanos/1000000+"ms\n"
+			+"  classified "+pipeline.getClassified()+" in "+total+"s, "
+				+(long)(pipeline.getClassified()/total)+" packets/s, failed "+pipeline.getFailed()+"\n"
+			+"  queue max depth "+highWater+"/"+capacity+" of "+pipeline.getShards()+" shards, blocked "+blocked
+				+", dropped newest "+droppedNewest+", dropped oldest "+droppedOldest;
+	}
+
+	public static void main(String[] args) throws Exception{
+		if(args.length<1){
+			System.out.println("Usage: Replay file [speed|max]");
+			return;
+		}
+		double speed = 1;
+		if(args.length>1){
+			speed = args[1].equals("max") ? MAX_SPEED : Double.parseDouble(args[1]);
+		}
+		PcapFileReader reader = new PcapFileReader(new File(args[0]));
+		Run run = new Run();
+		run.getPipeline().start();
+		Replay replay = new Replay(reader, run, speed);
+		replay.replay();
+		reader.close();
+		System.out.println(replay);
+		// the Writer's socket server would keep the vm alive
+		System.exit(0);
+	}
+}
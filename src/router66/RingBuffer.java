@@ -0,0 +1,310 @@
+package router66;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer between the capture thread and the classification workers.
+ * The slot array is allocated once, the capacity is rounded up to a power of two.
+ * What happens on a full ring is decided by the {@link OverflowPolicy}, how an
+ * idle producer or consumer waits by the {@link WaitStrategy}.
+ */
+public class RingBuffer<E> {
+	/**
+	 * What offer() does when the ring is full
+	 */
+	public enum OverflowPolicy {
+		/** the producer waits for a free slot */
+		BLOCK,
+		/** the offered element is thrown away */
+		DROP_NEWEST,
+		/** the oldest queued element is overwritten */
+		DROP_OLDEST
+	}
+
+	/**
+	 * How a thread waits for a slot or an element
+	 */
+	public enum WaitStrategy {
+		/** lock and condition, lowest cpu usage */
+		BLOCKING,
+		/** spin a little, then park for SLEEP_NANOS */
+		SLEEPING,
+		/** spin a little, then Thread.yield() */
+		YIELDING,
+		/** spin, lowest latency, burns a core */
+		BUSY_SPIN
+	}
+
+	private static final int SPIN_TRIES = 100;
+	private static final long SLEEP_NANOS = 100000;
+
+	private final Object[] slots;
+	private final int mask;
+	private final OverflowPolicy overflowPolicy;
+	private final WaitStrategy waitStrategy;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private long head = 0;		// next slot to take, guarded by lock
+	private long tail = 0;		// next slot to fill, guarded by lock
+	private volatile boolean closed = false;
+	private volatile int highWater = 0;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong droppedNewest = new AtomicLong();
+	private final AtomicLong droppedOldest = new AtomicLong();
+
+	public RingBuffer(int capacity, OverflowPolicy overflowPolicy, WaitStrategy waitStrategy){
+		if(capacity<1){
+			throw new IllegalArgumentException("capacity must be positive: "+capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size<capacity){
+			size<<=1;
+		}
+		this.slots = new Object[size];
+		this.mask = size-1;
+		this.overflowPolicy = overflowPolicy;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Puts an element into the ring, applying the overflow policy if it is full.
+	 * @param e
+	 * @return false if the element was dropped
+	 */
+	public boolean offer(E e){
+		lock.lock();
+		try{
+			boolean accepted = put(e);
+			if(accepted && waitStrategy==WaitStrategy.BLOCKING){
+				notEmpty.signal();
+			}
+			return accepted;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts count elements of a batch into the ring under a single lock,
+	 * applying the overflow policy to each of them.
+	 * @param batch
+	 * @param offset
+	 * @param count
+	 * @return number of elements that were not dropped
+	 */
+	public int offerAll(E[] batch, int offset, int count){
+		int accepted = 0;
+		lock.lock();
+		try{
+			for(int i=offset; i<offset+count; i++){
+				if(put(batch[i])){
+					accepted++;
+				}
+			}
+			if(accepted>0 && waitStrategy==WaitStrategy.BLOCKING){
+				notEmpty.signalAll();
+			}
+			return accepted;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stores one element, the lock must be held.
+	 */
+	private boolean put(E e){
+		if(closed){
+			return false;
+		}
+		int tries = 0;
+		while(tail-head==slots.length){
+			switch(overflowPolicy){
+				case DROP_NEWEST:
+					droppedNewest.incrementAndGet();
+					return false;
+				case DROP_OLDEST:
+					slots[(int)head&mask] = null;
+					head++;
+					droppedOldest.incrementAndGet();
+					break;
+				case BLOCK:
+					if(tries==0){
+						blocked.incrementAndGet();
+					}
+					if(waitStrategy==WaitStrategy.BLOCKING){
+						// part of a batch may be queued but not yet signalled
+						notEmpty.signalAll();
+						notFull.awaitUninterruptibly();
+					}else{
+						lock.unlock();
+						idle(tries);
+						lock.lock();
+					}
+					tries++;
+					if(closed){
+						return false;
+					}
+					break;
+			}
+		}
+		slots[(int)tail&mask] = e;
+		tail++;
+		published.incrementAndGet();
+		int depth = (int)(tail-head);
+		if(depth>highWater){
+			highWater = depth;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the oldest element, waiting according to the wait strategy.
+	 * @return the element or null once the ring is closed and drained
+	 */
+	@SuppressWarnings("unchecked")
+	public E take(){
+		lock.lock();
+		try{
+			int tries = 0;
+			while(tail==head){
+				if(closed){
+					return null;
+				}
+				if(waitStrategy==WaitStrategy.BLOCKING){
+					notEmpty.awaitUninterruptibly();
+				}else{
+					lock.unlock();
+					idle(tries++);
+					lock.lock();
+				}
+			}
+			int index = (int)head&mask;
+			E e = (E)slots[index];
+			slots[index] = null;
+			head++;
+			if(waitStrategy==WaitStrategy.BLOCKING){
+				notFull.signal();
+			}
+			return e;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the oldest element without waiting.
+	 * @return the element or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll(){
+		lock.lock();
+		try{
+			if(tail==head){
+				return null;
+			}
+			int index = (int)head&mask;
+			E e = (E)slots[index];
+			slots[index] = null;
+			head++;
+			if(waitStrategy==WaitStrategy.BLOCKING){
+				notFull.signal();
+			}
+			return e;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting elements and wakes up every waiting thread.
+	 * Elements already in the ring can still be taken.
+	 */
+	public void close(){
+		lock.lock();
+		try{
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	private void idle(int tries){
+		if(tries<SPIN_TRIES || waitStrategy==WaitStrategy.BUSY_SPIN){
+			return;
+		}
+		if(waitStrategy==WaitStrategy.YIELDING){
+			Thread.yield();
+		}else{
+			LockSupport.parkNanos(SLEEP_NANOS);
+		}
+	}
+
+	public int size(){
+		lock.lock();
+		try{
+			return (int)(tail-head);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public int capacity(){
+		return slots.length;
+	}
+
+	public boolean isClosed(){
+		return closed;
+	}
+
+	public OverflowPolicy getOverflowPolicy(){
+		return overflowPolicy;
+	}
+
+	public WaitStrategy getWaitStrategy(){
+		return waitStrategy;
+	}
+
+	/** highest number of queued elements seen so far */
+	public int getHighWater(){
+		return highWater;
+	}
+
+	/** elements that made it into the ring */
+	public long getPublished(){
+		return published.get();
+	}
+
+	/** offers that had to wait for a free slot (BLOCK) */
+	public long getBlocked(){
+		return blocked.get();
+	}
+
+	/** offers thrown away because the ring was full (DROP_NEWEST) */
+	public long getDroppedNewest(){
+		return droppedNewest.get();
+	}
+
+	/** queued elements overwritten by newer ones (DROP_OLDEST) */
+	public long getDroppedOldest(){
+		return droppedOldest.get();
+	}
+
+	public long getDropped(){
+		return droppedNewest.get()+droppedOldest.get();
+	}
+
+	public String toString(){
+		return "ring "+size()+"/"+slots.length+" (max "+highWater+") published "+getPublished()
+			+" blocked "+getBlocked()+" dropped newest "+getDroppedNewest()+" dropped oldest "+getDroppedOldest();
+	}
+}
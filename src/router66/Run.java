@@ -13,35 +13,159 @@
 
 package router66;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import jpcap.JpcapCaptor;
 import jpcap.NetworkInterface;
 import jpcap.NetworkInterfaceAddress;
+import jpcap.PacketBatchReceiver;
 import jpcap.PacketReceiver;
 import jpcap.packet.*;
 
-public class Run implements PacketReceiver {
+import router66.RingBuffer.OverflowPolicy;
+import router66.RingBuffer.WaitStrategy;
+
+public class Run implements PacketReceiver, PacketBatchReceiver {
+	/**
+	 * Pipeline between capture and Sorter, one shard of the Sorter per thread
+	 */
+	static final int RING_SIZE = 8192;
+	static final int SORTER_THREADS = 2;
+	static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+	static final WaitStrategy WAIT_STRATEGY = WaitStrategy.BLOCKING;
+	/**
+	 * Max packets handed over per JpcapCaptor.dispatchBatch
+	 */
+	static final int CAPTURE_BATCH = 256;
+	/**
+	 * Zero-copy capture (-view): direct buffers the frames are copied into
+	 */
+	static final int VIEW_SEGMENTS = 32;
+	static final int VIEW_SEGMENT_SIZE = 1<<20;
+	/**
+	 * Capture device if none is given, and the settings for all devices
+	 */
+	static final int DEFAULT_DEVICE = 2;
+	static final int SNAPLEN = 2000;
+	static final boolean PROMISC = false;
+	static final int READ_TIMEOUT = 20;
+	/**
+	 * Capture on several devices: how long and how many packets are held
+	 * to merge the streams in timestamp order
+	 */
+	static final long REORDER_WINDOW_MILLIS = 50;
+	static final int REORDER_MAX_QUEUED = 4096;
+	/**
+	 * Events of the Sorter shards: how long and how many are held to merge
+	 * them in timestamp order
+	 */
+	static final long EVENT_WINDOW_MILLIS = 200;
+	static final int EVENT_MAX_QUEUED = 1024;
+	/**
+	 * Raw traffic archive (-archive dir)
+	 */
+	static final int ARCHIVE_QUEUE = 65536;
+	static final long ARCHIVE_SEGMENT_BYTES = 64L<<20;
+	static final long ARCHIVE_SEGMENT_MILLIS = 10*60*1000;
+	static final long ARCHIVE_BUDGET = 4L<<30;
+	/**
+	 * Capture statistics, published over JMX
+	 */
+	static final long STATS_INTERVAL_MILLIS = 5000;
+	static final double DROP_THRESHOLD = 0.01;
 	
 	private Writer writer = new Writer();
-	private MsgWriter msgWriter = new MsgWriter(writer);
-	private Sorter sorter = new Sorter(msgWriter);
+	private Enricher enricher = new Enricher();
+	private MsgWriter msgWriter = new MsgWriter(writer, enricher);
+	private EventMerger events = new EventMerger(msgWriter, SORTER_THREADS, EVENT_WINDOW_MILLIS, EVENT_MAX_QUEUED);
+	private Sorter[] shards = createShards(events);
+	private Sorter sorter = shards[0];
+	private PacketPipeline pipeline = new PacketPipeline(shards, events, RING_SIZE, OVERFLOW_POLICY, WAIT_STRATEGY);
+	private CaptureArchive archive;
+	
+	public Run(){
+		// the messages of finished lookups are written on the merge thread too
+		enricher.setCallbacks(events);
+	}
+	
+	/**
+	 * @return one Sorter per shard of events, the first one owns what they share
+	 */
+	private static Sorter[] createShards(EventMerger events){
+		Sorter[] shards = new Sorter[events.getShardCount()];
+		shards[0] = new Sorter(events.getShard(0));
+		for(int i=1; i<shards.length; i++){
+			shards[i] = new Sorter(shards[0], events.getShard(i));
+		}
+		return shards;
+	}
+	
+	/**
+	 * Runs on the capture thread, the Sorter shards are fed by the pipeline workers
+	 */
 	public void receivePacket(Packet packet) {
-		String dst = null;
-		String src = null;
-		//if(packet instanceof TCPPacket ){ 
-			sorter.sortPacket(packet);
-		//}
+		if(archive!=null){
+			archive.receivePacket(packet);
+		}
+		pipeline.receivePacket(packet);
+	}
+	
+	public void receivePackets(Packet[] packets, int count) {
+		if(archive!=null){
+			archive.receivePackets(packets, count);
+		}
+		pipeline.receivePackets(packets, count);
+	}
+	
+	PacketPipeline getPipeline(){
+		return pipeline;
+	}
+	
+	/**
+	 * Waits until the pipeline has classified what it queued and the events
+	 * are written, then stops the lookups of the MsgWriter and closes the archive.
+	 */
+	void shutdown() throws InterruptedException{
+		pipeline.shutdown();
+		stop();
+	}
+	
+	/**
+	 * Stops what runs behind the pipeline, once it is drained.
+	 */
+	private void stop() throws InterruptedException{
+		enricher.shutdown();
+		if(archive!=null){
+			archive.shutdown();
+		}
 	}
 
 	
 	/**
-	 * @param args
+	 * @param args indices of the devices to capture on, DEFAULT_DEVICE if none,
+	 * -view to capture into direct buffers instead of Packet objects (one device only),
+	 * -archive dir to keep the captured traffic in rotating pcap files
 	 */
 	public static void main(String[] args) throws Exception{
+		boolean view = false;
+		String archiveDir = null;
+		int[] indices = new int[args.length];
+		int deviceCount = 0;
+		for(int i=0; i<args.length; i++){
+			if(args[i].equals("-view")){
+				view = true;
+			}else if(args[i].equals("-archive") && i+1<args.length){
+				archiveDir = args[++i];
+			}else{
+				indices[deviceCount++] = Integer.parseInt(args[i]);
+			}
+		}
+		if(deviceCount==0){
+			indices[deviceCount++] = DEFAULT_DEVICE;
+		}
 		NetworkInterface[] devices = JpcapCaptor.getDeviceList();
-		JpcapCaptor jpcap = JpcapCaptor.openDevice(devices[2], 2000, false, 20);
 		/**
 		 * List Network Interfaces
 		 */
@@ -57,7 +181,199 @@ public class Run implements PacketReceiver {
 				System.out.println("    address:"+a.address + " " + a.subnet + " "
 						+ a.broadcast);
 		}
-		jpcap.loopPacket(-1, new Run());
+		Run run = new Run();
+		final CaptureStats stats = new CaptureStats(STATS_INTERVAL_MILLIS, DROP_THRESHOLD);
+		final Sorter[] shards = run.shards;
+		stats.addGauge("reassembly.flows", new CaptureStats.Gauge(){
+			public long value(){
+				long flows = 0;
+				for(Sorter shard : shards){
+					flows += shard.getReassembler().getFlows();
+				}
+				return flows;
+			}
+		});
+		stats.addGauge("reassembly.bytes", new CaptureStats.Gauge(){
+			public long value(){
+				long bytes = 0;
+				for(Sorter shard : shards){
+					bytes += shard.getReassembler().getTotalBytes();
+				}
+				return bytes;
+			}
+		});
+		stats.addGauge("flows", new CaptureStats.Gauge(){
+			public long value(){
+				long flows = 0;
+				for(Sorter shard : shards){
+					flows += shard.getFlows().size();
+				}
+				return flows;
+			}
+		});
+		final ClientRegistry clients = run.sorter.getClients();
+		stats.addGauge("clients", new CaptureStats.Gauge(){
+			public long value(){
+				return clients.size()-1;
+			}
+		});
+		stats.addGauge("passivedns.entries", new CaptureStats.Gauge(){
+			public long value(){
+				long entries = 0;
+				for(Sorter shard : shards){
+					entries += shard.getPassiveDns().size();
+				}
+				return entries;
+			}
+		});
+		for(final Enricher.Source source : run.msgWriter.getSources()){
+			stats.addGauge("enricher."+source.getName()+".running", new CaptureStats.Gauge(){
+				public long value(){
+					return source.getRunning();
+				}
+			});
+			stats.addGauge("enricher."+source.getName()+".open", new CaptureStats.Gauge(){
+				public long value(){
+					return source.isOpen() ? 1 : 0;
+				}
+			});
+		}
+		final EventMerger events = run.events;
+		stats.addGauge("events.queued", new CaptureStats.Gauge(){
+			public long value(){
+				return events.getQueued();
+			}
+		});
+		stats.addGauge("events.late", new CaptureStats.Gauge(){
+			public long value(){
+				return events.getLate();
+			}
+		});
+		final HostResolver resolver = run.sorter.getResolver();
+		stats.addGauge("resolver.entries", new CaptureStats.Gauge(){
+			public long value(){
+				return resolver.size();
+			}
+		});
+		stats.addGauge("resolver.queued", new CaptureStats.Gauge(){
+			public long value(){
+				return resolver.getQueued();
+			}
+		});
+		if(archiveDir!=null){
+			if(view){
+				System.out.println("-archive needs Packet objects, ignoring -view.");
+				view = false;
+			}
+			run.archive = new CaptureArchive(new File(archiveDir), PacketView.DLT_EN10MB, ARCHIVE_QUEUE,
+					ARCHIVE_SEGMENT_BYTES, ARCHIVE_SEGMENT_MILLIS, ARCHIVE_BUDGET);
+			run.archive.start();
+			final CaptureArchive archive = run.archive;
+			// on ctrl-c too, the open segment is only indexed once it is closed
+			Runtime.getRuntime().addShutdownHook(new Thread("archive-shutdown"){
+				public void run(){
+					try{
+						archive.shutdown();
+					}catch(InterruptedException e){
+						e.printStackTrace();
+					}
+				}
+			});
+			stats.addGauge("archive.dropped", new CaptureStats.Gauge(){
+				public long value(){
+					return archive.getDropped();
+				}
+			});
+		}
+		// only what the Sorter classifies crosses JNI
+		PortFilter filter = new PortFilter(run.sorter.getPorts());
+		if(deviceCount>1){
+			if(view){
+				System.out.println("-view captures on one device only, using Packet objects.");
+			}
+			NetworkInterface[] selected = new NetworkInterface[deviceCount];
+			for(int i=0; i<deviceCount; i++){
+				selected[i] = devices[indices[i]];
+			}
+			MultiCapture capture = new MultiCapture(selected, SNAPLEN, PROMISC, READ_TIMEOUT, run,
+					REORDER_WINDOW_MILLIS, REORDER_MAX_QUEUED, CAPTURE_BATCH);
+			for(int i=0; i<deviceCount; i++){
+				filter.attach(capture.getCaptor(i));
+				stats.addDevice(selected[i].name, capture, i);
+			}
+			final MultiCapture merge = capture;
+			stats.addGauge("merge.depth", new CaptureStats.Gauge(){
+				public long value(){
+					return merge.getQueued();
+				}
+			});
+			for(int i=0; i<run.getPipeline().getShards(); i++){
+				stats.addQueue("pipeline"+i, run.getPipeline().getRing(i));
+			}
+			stats.start();
+			run.getPipeline().start();
+			capture.start();
+			capture.join();
+			run.shutdown();
+			return;
+		}
+		JpcapCaptor jpcap = JpcapCaptor.openDevice(devices[indices[0]], SNAPLEN, PROMISC, READ_TIMEOUT);
+		filter.attach(jpcap);
+		stats.addDevice(devices[indices[0]].name, jpcap);
+		if(view){
+			// allocates its segments once the capture needs them
+			ViewPipeline raw = new ViewPipeline(run.shards, run.events, VIEW_SEGMENTS, VIEW_SEGMENT_SIZE, OVERFLOW_POLICY, WAIT_STRATEGY);
+			int count = 0;
+			try{
+				// the first batch is captured before the workers start, so the
+				// PacketPipeline can still take over
+				count = raw.dispatch(jpcap, -1);
+			}catch(UnsatisfiedLinkError e){
+				// libjpcap built before dispatchRaw was added, the one segment goes with the pipeline
+				System.out.println("No raw capture in libjpcap, ignoring -view.");
+				raw = null;
+			}
+			if(raw!=null){
+				final ViewPipeline viewPipeline = raw;
+				stats.addGauge("view.segments", new CaptureStats.Gauge(){
+					public long value(){
+						return viewPipeline.getQueuedSegments();
+					}
+				});
+				stats.addGauge("view.dropped", new CaptureStats.Gauge(){
+					public long value(){
+						return viewPipeline.getDroppedNewest()+viewPipeline.getDroppedOldest();
+					}
+				});
+				stats.start();
+				viewPipeline.start();
+				while(count>=0){
+					stats.refresh();
+					count = viewPipeline.dispatch(jpcap, -1);
+				}
+				viewPipeline.shutdown();
+				run.stop();
+				return;
+			}
+		}
+		for(int i=0; i<run.getPipeline().getShards(); i++){
+			stats.addQueue("pipeline"+i, run.getPipeline().getRing(i));
+		}
+		stats.start();
+		run.getPipeline().start();
+		try{
+			while(jpcap.dispatchBatch(CAPTURE_BATCH, run)>=0){
+				stats.refresh();
+			}
+		}catch(UnsatisfiedLinkError e){
+			// libjpcap built before dispatchBatch was added, processPacket
+			// returns on the read timeout too, so the counters stay fresh
+			System.out.println("No batch capture in libjpcap, falling back to processPacket.");
+			while(jpcap.processPacket(CAPTURE_BATCH, run)>=0){
+				stats.refresh();
+			}
+		}
+		run.shutdown();
 	}
 	
 	
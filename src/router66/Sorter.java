@@ -1,246 +1,347 @@
 package router66;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.URLDecoder;
-import java.util.Iterator;
-import java.util.Vector;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jpcap.packet.ARPPacket;
+import jpcap.packet.EthernetPacket;
+import jpcap.packet.IPPacket;
 import jpcap.packet.Packet;
 import jpcap.packet.TCPPacket;
 import jpcap.packet.UDPPacket;
 
 public class Sorter{
-	final static Pattern googleSearchPattern = Pattern.compile("\\&q\\=(.*?)(\\s|\\#|\\&)");
-	final static Pattern urlStrip = Pattern.compile("GET\\s(.*?)\\s");
-	final static Pattern amazonSearchPattern = Pattern.compile("field-keywords\\=(.*?)\\&");
-	final static Pattern amazonProductPattern = Pattern.compile("\\/(.*?)\\/dp");
-	//final static Pattern mdnsNamePattern = Pattern.compile("\\\0+(.*?)"); 
-	//final static Pattern mdnsNamePattern = Pattern.compile(".*?([A-Za-z0-9]+?)[\\\t*?|\\\0*?]");
-	static Vector<String> blackUrlList = new Vector<String>();
-	static {
-		blackUrlList.add("ytimg");
-		blackUrlList.add("twimg");
-		blackUrlList.add("gstatic");
-//		blackUrlList.add("doubleclick");
-		blackUrlList.add("wikimedia");
-		blackUrlList.add("chartbeat");
-		blackUrlList.add("cloudfront");
-		blackUrlList.add("turn");
-		blackUrlList.add("adsfac");
-		blackUrlList.add("2mdn");
+	/**
+	 * TCP reassembly of the port 80 requests
+	 */
+	final static int HTTP_HEAD_MAX = 16*1024;
+	final static long REASSEMBLY_BUDGET = 16*1024*1024;
+	final static long FLOW_IDLE_MILLIS = 60*1000;
+	/**
+	 * Connection tracking
+	 */
+	final static int MAX_FLOWS = 1<<18;
+	final static long CONNECTION_IDLE_MILLIS = 5*60*1000;
+	final static long CONNECTION_CLOSED_MILLIS = 10*1000;
+	/**
+	 * Reverse DNS of servers that sent no name
+	 */
+	final static int DNS_CACHE_SIZE = 16384;
+	final static long DNS_TTL_MILLIS = 60*60*1000;
+	final static long DNS_NEGATIVE_TTL_MILLIS = 5*60*1000;
+	final static int DNS_THREADS = 4;
+	final static int DNS_QUEUE = 1024;
+	/**
+	 * Names learned from the DNS responses the clients got
+	 */
+	final static int PASSIVE_DNS_ENTRIES = 1<<16;
+	final static long PASSIVE_DNS_MIN_TTL_MILLIS = 60*1000;
+	final static long PASSIVE_DNS_MAX_TTL_MILLIS = 24*60*60*1000;
+	/**
+	 * Which domains go to which handler
+	 */
+	final static String RULES_FILE = "data/rules";
+	/**
+	 * Search terms, product names ... of the requests, by name
+	 */
+	final static String EXTRACTORS_FILE = "data/extractors";
+	/**
+	 * Domains that are not reported as websites, reloaded when the file changes
+	 */
+	final static String BLOCKLIST_FILE = "data/blocklist";
+	final static int BLOCKLIST_BLOOM_BITS = 10;
+	final static long BLOCKLIST_CHECK_MILLIS = 10*1000;
+	/**
+	 * Public suffixes, to reduce hosts to the registrable domain
+	 */
+	final static String PUBLIC_SUFFIX_FILE = "data/public_suffix_list.dat";
+	final static int HOST_INTERN_SIZE = 8192;
+	final static HostNormalizer hostNormalizer = loadHostNormalizer(new File(PUBLIC_SUFFIX_FILE));
+	/**
+	 * Names of the clients, by IPv4, IPv6 or MAC address
+	 */
+	final static String CLIENTS_FILE = "data/clients";
+	final static int MAX_CLIENTS = 4096;
+	final static long CLIENTS_CHECK_MILLIS = 10*1000;
+	/**
+	 * Devices whose DHCP host name is remembered by MAC
+	 */
+	final static int DEVICE_NAME_ENTRIES = 4096;
+	
+	/**
+	 * What the domain rules can send a host to, named in the rule file in
+	 * lower case with '-', e.g. google-search
+	 */
+	enum Handler {
+		GOOGLE_SEARCH, DROPBOX_WEB, YOUTUBE_WATCH, ADVERTISING, WIKIPEDIA, FACEBOOK, AMAZON, EVERNOTE, IGNORE;
+		
+		String ruleName(){
+			return name().toLowerCase().replace('_', '-');
+		}
 	}
 	
 	private MsgWriter msgWriter;
-	private PacketReceiverImpl pri;
+	/**
+	 * State of this shard: the flows and DNS answers of its clients and the
+	 * classifiers with their parsers, only used by the worker of the shard
+	 */
+	private final PortRegistry ports = new PortRegistry();
+	private final ClassifierTable classifiers = new ClassifierTable(ports);
+	private final TcpReassembler reassembler = new TcpReassembler(HTTP_HEAD_MAX, REASSEMBLY_BUDGET, FLOW_IDLE_MILLIS);
+	private final FlowTable flows = new FlowTable(4096, MAX_FLOWS, CONNECTION_IDLE_MILLIS, CONNECTION_CLOSED_MILLIS);
+	private final PassiveDns passiveDns = new PassiveDns(PASSIVE_DNS_ENTRIES, PASSIVE_DNS_MIN_TTL_MILLIS, PASSIVE_DNS_MAX_TTL_MILLIS);
+	/**
+	 * Shared by all shards
+	 */
+	private final DomainRules<Handler> rules;
+	private final Map<String, UrlExtractor> extractors;
+	private final ClientRegistry clients;
+	private final DeviceNames deviceNames;
+	private final DomainBlocklist blocklist;
+	private final HostResolver resolver;
 	
 	public Sorter(MsgWriter msgWriter){
 		this.msgWriter = msgWriter;
+		this.rules = loadRules(new File(RULES_FILE));
+		this.extractors = loadExtractors(new File(EXTRACTORS_FILE));
+		this.clients = new ClientRegistry(new File(CLIENTS_FILE), MAX_CLIENTS, CLIENTS_CHECK_MILLIS);
+		this.deviceNames = new DeviceNames(clients, DEVICE_NAME_ENTRIES);
+		this.blocklist = new DomainBlocklist(new File(BLOCKLIST_FILE), BLOCKLIST_BLOOM_BITS, BLOCKLIST_CHECK_MILLIS);
+		this.resolver = new HostResolver(DNS_CACHE_SIZE, DNS_TTL_MILLIS, DNS_NEGATIVE_TTL_MILLIS, DNS_THREADS, DNS_QUEUE);
+		loadClassifiers();
+		resolver.start();
+		blocklist.start();
+		clients.start();
+	}
+	
+	/**
+	 * Another shard of a Sorter: rules, clients, blocklist and resolver are
+	 * shared, flows, DNS answers and classifiers are its own.
+	 * @param shared
+	 * @param msgWriter
+	 */
+	public Sorter(Sorter shared, MsgWriter msgWriter){
+		this.msgWriter = msgWriter;
+		this.rules = shared.rules;
+		this.extractors = shared.extractors;
+		this.clients = shared.clients;
+		this.deviceNames = shared.deviceNames;
+		this.blocklist = shared.blocklist;
+		this.resolver = shared.resolver;
+		loadClassifiers();
+	}
+	
+	/**
+	 * the classifiers register their ports, which are also compiled into
+	 * the capture filter
+	 */
+	private void loadClassifiers(){
+		List<PacketClassifier> found = ClassifierLoader.load(PacketClassifier.class);
+		if(found.isEmpty()){
+			System.out.println("No "+ClassifierLoader.PREFIX+PacketClassifier.class.getName()+" on the class path, using the built-in classifiers");
+			found.add(new HttpClassifier());
+			found.add(new TlsClassifier());
+			found.add(new DebugClassifier());
+			found.add(new PassiveDnsClassifier());
+			found.add(new DropboxLanClassifier());
+			found.add(new DeviceNameClassifier());
+		}
+		for(PacketClassifier classifier : found){
+			classifier.init(this, classifiers);
+		}
+		ports.setArp(true);
+	}
+	
+	private static HostNormalizer loadHostNormalizer(File file){
+		try{
+			HostNormalizer normalizer = HostNormalizer.load(file, HOST_INTERN_SIZE);
+			System.out.println(file+": "+normalizer.getSuffixRules()+" public suffix rules");
+			return normalizer;
+		}catch(IOException e){
+			System.out.println("Could not read "+file+", hosts are reduced to domain.tld: "+e);
+			return new HostNormalizer(new DomainRules<Integer>(), HOST_INTERN_SIZE);
+		}
+	}
+	
+	private static DomainRules<Handler> loadRules(File file){
+		Map<String, Handler> handlers = new HashMap<String, Handler>();
+		for(Handler handler : Handler.values()){
+			handlers.put(handler.ruleName(), handler);
+		}
+		try{
+			DomainRules<Handler> rules = DomainRules.load(file, handlers);
+			System.out.println(file+": "+rules.size()+" domain rules");
+			return rules;
+		}catch(IOException e){
+			System.out.println("Could not read "+file+", every host is a standard website: "+e);
+			return new DomainRules<Handler>().compile();
+		}
+	}
+	
+	private static Map<String, UrlExtractor> loadExtractors(File file){
+		try{
+			Map<String, UrlExtractor> extractors = UrlExtractor.load(file);
+			System.out.println(file+": "+extractors.size()+" url extractors");
+			return extractors;
+		}catch(IOException e){
+			System.out.println("Could not read "+file+", no search terms are extracted: "+e);
+			return new HashMap<String, UrlExtractor>();
+		}
+	}
+	
+	public PortRegistry getPorts(){
+		return ports;
+	}
+	
+	public TcpReassembler getReassembler(){
+		return reassembler;
+	}
+	
+	public FlowTable getFlows(){
+		return flows;
+	}
+	
+	public HostResolver getResolver(){
+		return resolver;
+	}
+	
+	public PassiveDns getPassiveDns(){
+		return passiveDns;
+	}
+	
+	public ClientRegistry getClients(){
+		return clients;
+	}
+	
+	public DeviceNames getDeviceNames(){
+		return deviceNames;
+	}
+	
+	public MsgWriter getMsgWriter(){
+		return msgWriter;
+	}
+	
+	DomainRules<Handler> getRules(){
+		return rules;
+	}
+	
+	/**
+	 * @return the extractor of that name in the extractors file or null
+	 */
+	public UrlExtractor getExtractor(String name){
+		return extractors.get(name);
+	}
+	
+	public DomainBlocklist getBlocklist(){
+		return blocklist;
 	}
+	
+	public ClassifierTable getClassifiers(){
+		return classifiers;
+	}
+	
+	/**
+	 * @return the name of the client that sent the packet, by address and source MAC
+	 */
+	public String clientName(IPPacket packet){
+		return clients.name(packet.src_ip, sourceMac(packet));
+	}
+	
+	/**
+	 * @return hash of the address of the client a packet belongs to: the
+	 * source of requests, the destination of UDP responses classified by
+	 * their source port, 0 for anything else
+	 */
+	public int clientHash(Packet packet){
+		if(packet instanceof UDPPacket){
+			UDPPacket udpPacket = (UDPPacket)packet;
+			InetAddress client = classifiers.udpSource(udpPacket.src_port)!=null ? udpPacket.dst_ip : udpPacket.src_ip;
+			return client.hashCode();
+		}
+		if(packet instanceof TCPPacket){
+			return ((TCPPacket)packet).src_ip.hashCode();
+		}
+		return 0;
+	}
+	
+	/**
+	 * clientHash of a frame captured by the ViewPipeline, the same value as
+	 * for the Packet of an IPv4 frame
+	 */
+	public int clientHash(PacketView view){
+		if(view.isTcp() || view.isUdp() && !ports.handlesUdpSource(view.srcPort())){
+			return addressHash(view, view.srcAddressOffset());
+		}
+		if(view.isUdp()){
+			return addressHash(view, view.dstAddressOffset());
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the address bytes at offset as int, like Inet4Address.hashCode(),
+	 * IPv6 addresses folded into one
+	 */
+	private static int addressHash(PacketView view, int offset){
+		int hash = 0;
+		for(int i=0; i<view.addressLength(); i++){
+			hash = hash<<8 ^ hash>>>24 ^ view.getUnsignedByte(offset+i);
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return the source MAC of an ethernet frame or null
+	 */
+	private static byte[] sourceMac(Packet packet){
+		return packet.datalink instanceof EthernetPacket ? ((EthernetPacket)packet.datalink).src_mac : null;
+	}
+	/**
+	 * Hands the packet to the classifier of its port, UDP responses by the
+	 * source port first.
+	 * @param packet
+	 */
 	public void sortPacket(Packet packet){
-		if(packet instanceof TCPPacket ){
-			TCPPacket thePacket = ((TCPPacket)packet);
-			String host = extractHost(thePacket);
-			String client = HostDict.getHost(((TCPPacket) packet).src_ip.getHostAddress());
-			switch (((TCPPacket)packet).dst_port) {
-				/**
-				 * 	http package
-				 */
-				case 80:
-					if(!validateIPAddress(host)){
-					/**
-					 * Google Search
-					 */
-					 if(host.indexOf("google")!=-1){
-							String googleReturn=getGoogleSearchString(thePacket);
-							String gUrl = extractURL(thePacket);
-							try {
-								msgWriter.wSearchGoogle(new SortMsg(translateLocalHost(((TCPPacket) packet).src_ip.getHostAddress()), "", URLDecoder.decode(googleReturn.replace("+", " "),"UTF-8"),gUrl));
-							} catch (UnsupportedEncodingException e) {
-								e.printStackTrace();
-							}
-						}						
-						/**
-						 * dropbox Web
-						 */
-						else if(host.indexOf("dropbox")!=-1){
-							msgWriter.wDropboxWeb(new SortMsg(client, "",thePacket.toString()));
-						}
-						/**
-						 *  Youtube Web
-						 */
-						else if(host.indexOf("youtube")!=-1){
-							String yUrl = extractURL(thePacket);
-							
-							if(yUrl.indexOf("watch?v")!=-1){
-								msgWriter.wYoutubeWatch(new SortMsg(client, "", yUrl));
-							}
-							
-						}	
-					 	/**
-						 * Advertising
-						 */
-						else if(host.indexOf("doubleclick")!=-1){
-							msgWriter.wAdvertising(new SortMsg(client, ""));
-						}
-					 	/**
-						 * Wikipedia
-						 */
-						else if(host.indexOf("wikipedia")!=-1){
-							try {
-								msgWriter.wWikipedia(new SortMsg(client, "", URLDecoder.decode(extractWikipediaPage(thePacket).replace("_", " "),"UTF-8")));
-							} catch (UnsupportedEncodingException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-						}
-					 /**
-						 * Facebook
-						 */
-						else if(host.indexOf("facebook")!=-1){
-								msgWriter.wFacebook(new SortMsg(client, ""));							
-						}
-					 /**
-						 * Amazon
-						 */
-						else if(host.indexOf("amazon")!=-1){
-							
-							if(extractURL(thePacket).indexOf("field-keywords")!=-1){
-								String searchString = getAmazonSearchString(thePacket);
-								if(searchString!=null){
-									msgWriter.wAmazon(new SortMsg(client, "","0",searchString));	
-								}
-							}else if(extractURL(thePacket).indexOf("/dp/")!=-1){
-								String productString = getAmazonProductString(thePacket);
-								if(productString!=null){
-									if(productString.indexOf("amazon")!=-1){
-										productString = productString.replaceAll("\\/(.*?)\\/", "");
-									}
-									try {
-										productString = URLDecoder.decode(productString,"UTF-8");
-									} catch (UnsupportedEncodingException e) {
-										// TODO Auto-generated catch block
-										e.printStackTrace();
-									}
-									msgWriter.wAmazon(new SortMsg(client, "", "1", productString));
-								}
-							}else {
-								msgWriter.wAmazon(new SortMsg(client, "", "2"));
-							}
-															
-						}
-						/**
-						 * Standard Website
-						 */
-						else{
-							/**
-							 * Check if Website is Blacklisted 
-							 */
-							Boolean blackListed = false;
-							Iterator<String> itr = blackUrlList.iterator();
-							while(itr.hasNext()){
-							 	if(host.indexOf(itr.next())!=-1){
-							 		blackListed = true;
-							 	}
-							}
-							if(!blackListed){
-								msgWriter.wWebDomain(new SortMsg(client, host));
-							}
-						}
-					}
-				/**
-				 * SSL Port
-				 */
-				case 443:
-					/**
-					 * 	Encrypted Stuff
-					 */
-					String sslHost = thePacket.dst_ip.getHostName();
-					if(!validateIPAddress(sslHost)){				// host is no IP Adress
-						if(sslHost.indexOf("1e100")!=-1){
-							//System.out.println("google ssl");
-						}
-						/**
-						 * Evernote SSL
-						 */
-						else if(sslHost.indexOf("evernote")!=-1){
-							msgWriter.wEvernote(new SortMsg(client,""));
-						}
-						/**
-						 * Facebook SSL
-						 */
-						else if(sslHost.indexOf("facebook")!=-1){
-								msgWriter.wFacebook(new SortMsg(client, ""));							
-						}
-						/**
-						 * Standard SSL
-						 */
-						else{
-							msgWriter.wSSLDomain(new SortMsg(client,host));
-						}
-					}
-					//System.out.println(dst.indexOf("facebook"));
-					break;
-				case 1515:
-					System.out.println("PORT 1515: "+thePacket.toString());
-					break;
-				// CUPS
-				case 631:
-					System.out.println("CUPS: "+packet.toString());
-					break;
-				// IMAP SSL:
-				case 993:
-					msgWriter.wIMAP(new SortMsg(client, thePacket.dst_ip.getCanonicalHostName()));
-					break;
-				default:
-					break;
-				}
-				}
-			if(packet instanceof UDPPacket){
-				UDPPacket udpPacket = (UDPPacket)packet;
-			if(udpPacket.protocol==17){
-				//System.out.println("UPD: "+packet);
-				switch (udpPacket.dst_port) {
-				// DROPBOX
-				case 17500:
-					msgWriter.wDropboxLan(new SortMsg(HostDict.getHost(((TCPPacket) packet).src_ip.getHostAddress()), ""));
-					break;
-				// BROWSER
-				case 138:
-					System.out.println(pri.translateNetbios(packet));
-					//System.out.println("BROWSER: "+ ((UDPPacket)packet).);
-					break;
-				// MDNS aka Bonjour
-//				case 5353:
-//					String header = convertData(udpPacket);
-//					Matcher m = mdnsNamePattern.matcher(header);
-//					String mdnsName=null;
-//					while (m.find()) {
-//						mdnsName = m.group(1);
-//					    // s now contains "BAR"
-//					}
-//					System.out.println("MDNS: Aus "+convertData(udpPacket)+" wird "+mdnsName);
-//					break;
-				default:
-					break;
-				}
-				// 
+		PacketClassifier classifier = null;
+		if(packet instanceof TCPPacket){
+			classifier = classifiers.tcp(((TCPPacket)packet).dst_port);
+		}else if(packet instanceof UDPPacket){
+			UDPPacket udpPacket = (UDPPacket)packet;
+			classifier = classifiers.udpSource(udpPacket.src_port);
+			if(classifier==null){
+				classifier = classifiers.udp(udpPacket.dst_port);
 			}
-		//	System.out.println(convertHeader(packet));
-			//System.out.println(packet.);
-		}else{
-			if(packet.toString().substring(0, 11)=="ARP REQUEST"){
-				System.out.println("ARP REQUEST: "+packet.toString());
-			}else if(packet.toString().substring(0, 9)=="ARP REPLY"){
-				System.out.println("ARP REPLY: "+packet.toString());
+		}else if(packet instanceof ARPPacket){
+			ARPPacket arp = (ARPPacket)packet;
+			if(arp.prototype==ARPPacket.PROTOTYPE_IP){
+				deviceNames.arp(arp.sender_hardaddr, arp.sender_protoaddr);
 			}
+			return;
+		}
+		if(classifier!=null){
+			classifier.classify((IPPacket)packet);
 		}
-	
-				  
-	
 	}
 	
+	/**
+	 * Classifies a frame captured by the ViewPipeline. Only frames a
+	 * classifier registered the port of are turned into jpcap packets,
+	 * everything else is dropped without allocating. The capture filter
+	 * passes only those ports, so nearly every frame is still copied into a
+	 * Packet with its InetAddresses here: the classifiers, flows and the
+	 * reassembler work on jpcap packets.
+	 * @param view
+	 */
+	public void sortView(PacketView view){
+		if(view.isTcp() && ports.handlesTcp(view.dstPort())
+				|| view.isUdp() && (ports.handlesUdp(view.dstPort()) || ports.handlesUdpSource(view.srcPort()))
+				|| view.isArp() && ports.handlesArp()){
+			sortPacket(view.toPacket());
+		}
+	}
 	
 	public final static String getHostName(InetAddress ip){
 
@@ -282,118 +383,38 @@ public class Sorter{
 		return text; 
 	} 
 	
-	public final static String getGoogleSearchString(Packet p){
-		String header = convertData(p);
-		Matcher m = googleSearchPattern.matcher(header);
-		String searchString=null;
-		while (m.find()) {
-		     searchString = m.group(1);
-		    // s now contains "BAR"
-		}
-		//String searchString = header.split("\n")[0];
-		//String searchString = headergoogleSearchPattern.replaceAll(pattern, "$2");
-		
-			return searchString;
-	}
-	public final static String getAmazonSearchString(Packet p){
-		String header = convertData(p);
-		Matcher m = amazonSearchPattern.matcher(header);
-		String searchString=null;
-		while (m.find()) {
-		     searchString = m.group(1);
-		}
-			return searchString.replaceAll("\\+", " ");
-	}
-	public final static String getAmazonProductString(Packet p){
-		String header = convertData(p);
-		Matcher m = amazonProductPattern.matcher(header);
-		String searchString=null;
-		while (m.find()) {
-		     searchString = m.group(1);
-		}
-		
-			return searchString.replaceAll("-", " ");
-	}
-	
 	/**
 	 * Checks if it's an IP Adress or a hostname
 	 * @param ipAddress
-	 * @return true if this is a real IP Adress
+	 * @return true if this is an IPv4 or IPv6 Adress, port allowed
 	 */
 	public final static boolean validateIPAddress( String  ipAddress )
 	{
-	    String[] parts = ipAddress.split( "\\." );
-	    if ( parts.length != 4 )
-	    {
-	        return false;
-	    }
-
-	    for ( String s : parts )
-	    {
-	        int i = Integer.parseInt( s );
-
-	        if ( (i < 0) || (i > 255) )
-	        {
-	            return false;
-	        }
-	    }
-
-	    return true;
+		return HostNormalizer.isIpAddress(ipAddress);
 	}
 	
-	public final static String extractHost(TCPPacket p){
-		String hostname=p.dst_ip.getHostAddress();
-		String[] lines = convertData(p).split("\n");
-		if(lines[1].substring(0,4).equals("Host")){
-			hostname = lines[1].substring(6,lines[1].length()-1);
+	/**
+	 * @return the Host header, the destination IP if there is none, reduced by shortUrl
+	 */
+	public final static String extractHost(TCPPacket p, HttpRequest http){
+		String hostname = http.host();
+		if(hostname==null){
+			hostname = p.dst_ip.getHostAddress();
 		}
-		hostname = shortUrl(hostname);
-		return hostname;
+		return shortUrl(hostname);
 	}
 	/**
-	 * Reduces a Domain String to domain.tld, ignores IP Adresses
+	 * Reduces a Domain String to the registrable domain, www.bbc.co.uk to
+	 * bbc.co.uk, lower case and interned. IP Adresses are kept.
 	 * @param hostname
 	 * @return
 	 */
 	public final static String shortUrl(String hostname){
-		String[] hostnameParts = hostname.split("\\.");
-		if(hostnameParts.length>2 && !validateIPAddress(hostname)){
-			hostname = hostnameParts[hostnameParts.length-2]+"."+hostnameParts[hostnameParts.length-1];
-		}
-		return hostname;
-	}
-	public final static String extractURL(TCPPacket p){
-		String url = null;
-		String get=null;
-		String[] lines = convertData(p).split("\n");
-		if(lines[0].substring(0,3).equals("GET")){
-			get = lines[0];//.substring(4);
-			Matcher m = urlStrip.matcher(get);
-			while (m.find()) {
-			     get = m.group(1);
-			}
-		}
-		
-		url = extractHost(p)+get;
-		return url;
+		return hostNormalizer.registrableDomain(hostname);
 	}
-	
-	public final static String extractWikipediaPage(TCPPacket p){
-		String pagename=null;
-		String[] lines = convertData(p).split("\n");
-		if(lines[6].substring(0,7).equals("Referer")){
-			String[] words = lines[6].split("wiki/");
-			pagename = words[1].substring(0, words[1].length()-1);
-		}
-		return pagename;
+	public final static String extractURL(TCPPacket p, HttpRequest http){
+		String get = http.isGet() ? http.target() : null;
+		return extractHost(p, http)+get;
 	}
 	
-	public String translateLocalHost(String ip){
-		String host = HostDict.getHost(ip);
-		if(host==null){
-			return ip;
-		}else{
-			return host;	
-		}
-	}
 }
@@ -0,0 +1,446 @@
+package router66;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import jpcap.packet.TCPPacket;
+
+/**
+ * Puts the client to server bytes of TCP connections back together and cuts
+ * them into HTTP request heads, so a request spanning several segments is
+ * classified once and a retransmitted segment not at all. Keep-alive and
+ * pipelined requests on one connection are emitted one after the other, a
+ * request body announced by Content-Length is skipped.
+ *
+ * Memory is bounded three ways: a flow buffers at most maxFlowBytes, flows
+ * idle for idleMillis (capture time) are dropped, and once all flows together
+ * buffer more than maxTotalBytes the least recently used ones are dropped.
+ * A flow that lost track (buffer full, chunked body, gap that never closes)
+ * waits for a segment starting with a request line to pick up again.
+ */
+public class TcpReassembler {
+	static final int INITIAL_BUFFER = 2048;
+	/** out of order segments kept per flow */
+	static final int MAX_PENDING = 8;
+	/** how often, in packets, idle flows are looked for */
+	static final int EXPIRE_INTERVAL = 1024;
+
+	/**
+	 * Source and destination of one direction of a connection
+	 */
+	static class FlowKey {
+		long srcHigh, srcLow, dstHigh, dstLow;
+		int srcPort, dstPort;
+
+		FlowKey set(InetAddress src, int srcPort, InetAddress dst, int dstPort){
+			byte[] s = src.getAddress();
+			byte[] d = dst.getAddress();
+			srcHigh = s.length==16 ? toLong(s, 0) : 0;
+			srcLow = s.length==16 ? toLong(s, 8) : toLong(s, 0);
+			dstHigh = d.length==16 ? toLong(d, 0) : 0;
+			dstLow = d.length==16 ? toLong(d, 8) : toLong(d, 0);
+			this.srcPort = srcPort;
+			this.dstPort = dstPort;
+			return this;
+		}
+
+		private static long toLong(byte[] b, int offset){
+			long v = 0;
+			int end = Math.min(b.length, offset+8);
+			for(int i=offset; i<end; i++){
+				v = v<<8 | (b[i]&0xff);
+			}
+			return v;
+		}
+
+		FlowKey copy(){
+			FlowKey key = new FlowKey();
+			key.srcHigh = srcHigh;
+			key.srcLow = srcLow;
+			key.dstHigh = dstHigh;
+			key.dstLow = dstLow;
+			key.srcPort = srcPort;
+			key.dstPort = dstPort;
+			return key;
+		}
+
+		public int hashCode(){
+			long h = srcHigh*31+srcLow;
+			h = h*31+dstHigh;
+			h = h*31+dstLow;
+			h = h*31+(srcPort<<16|dstPort);
+			return (int)(h^(h>>>32));
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof FlowKey)){
+				return false;
+			}
+			FlowKey k = (FlowKey)o;
+			return srcLow==k.srcLow && dstLow==k.dstLow && srcPort==k.srcPort && dstPort==k.dstPort
+				&& srcHigh==k.srcHigh && dstHigh==k.dstHigh;
+		}
+	}
+
+	/**
+	 * Reassembly state of one direction
+	 */
+	private static class Flow {
+		long nextSeq;			// next expected sequence number
+		byte[] buffer = new byte[INITIAL_BUFFER];
+		int length;				// buffered bytes not yet emitted
+		long bodyRemaining;		// request body bytes still to skip
+		boolean lost;			// wait for a request line
+		long lastSeen;
+		int pendingCount;
+		final long[] pendingSeq = new long[MAX_PENDING];
+		final byte[][] pendingData = new byte[MAX_PENDING][];
+		int pendingBytes;
+
+		int memory(){
+			return buffer.length+pendingBytes;
+		}
+	}
+
+	private final int maxFlowBytes;
+	private final long maxTotalBytes;
+	private final long idleMillis;
+	private final LinkedHashMap<FlowKey, Flow> flows = new LinkedHashMap<FlowKey, Flow>(256, 0.75f, true);
+	private final FlowKey probe = new FlowKey();
+	private long totalBytes = 0;
+	private long packets = 0;
+
+	private long requests = 0;
+	private long retransmitted = 0;
+	private long outOfOrder = 0;
+	private long overflows = 0;
+	private long evicted = 0;
+	private long expired = 0;
+
+	/**
+	 * @param maxFlowBytes bytes one flow may buffer for an unfinished request head
+	 * @param maxTotalBytes bytes all flows together may buffer
+	 * @param idleMillis flows without packets for that long are dropped
+	 */
+	public TcpReassembler(int maxFlowBytes, long maxTotalBytes, long idleMillis){
+		this.maxFlowBytes = maxFlowBytes;
+		this.maxTotalBytes = maxTotalBytes;
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Adds a client to server segment.
+	 * @param packet
+	 * @param requests gets the request heads completed by this segment,
+	 *        each on its own copy of the bytes
+	 */
+	public synchronized void process(TCPPacket packet, List<HttpRequest> requests){
+		long now = packet.sec*1000+packet.usec/1000;
+		if(++packets%EXPIRE_INTERVAL==0){
+			expire(now);
+		}
+		probe.set(packet.src_ip, packet.src_port, packet.dst_ip, packet.dst_port);
+		Flow flow = flows.get(probe);
+		if(packet.rst){
+			if(flow!=null){
+				remove(probe);
+			}
+			return;
+		}
+		byte[] data = packet.data;
+		int dataLength = data==null ? 0 : data.length;
+		long seq = packet.sequence&0xffffffffL;
+		if(packet.syn){
+			if(flow!=null){
+				remove(probe);
+			}
+			flow = add(now);
+			flow.nextSeq = (seq+1)&0xffffffffL;
+		}
+		if(flow==null){
+			// joined an open connection, start at a request line
+			if(dataLength==0 || !HttpRequest.isRequestStart(data, 0, dataLength)){
+				return;
+			}
+			flow = add(now);
+			flow.nextSeq = seq;
+		}
+		flow.lastSeen = now;
+		if(dataLength>0){
+			segment(flow, seq, data, requests);
+			drainPending(flow, requests);
+		}
+		if(packet.fin){
+			remove(probe);
+		}else if(totalBytes>maxTotalBytes){
+			evict();
+		}
+	}
+
+	private Flow add(long now){
+		Flow flow = new Flow();
+		flow.lastSeen = now;
+		flows.put(probe.copy(), flow);
+		totalBytes += flow.memory();
+		return flow;
+	}
+
+	private void remove(FlowKey key){
+		Flow flow = flows.remove(key);
+		if(flow!=null){
+			totalBytes -= flow.memory();
+		}
+	}
+
+	/**
+	 * Handles a segment of a known flow.
+	 */
+	private void segment(Flow flow, long seq, byte[] data, List<HttpRequest> requests){
+		int offset = (int)(seq-flow.nextSeq);		// distance modulo 2^32
+		if(flow.lost){
+			// only a new request line gets the flow going again, older data is a retransmission
+			if(offset>=0 && HttpRequest.isRequestStart(data, 0, data.length)){
+				flow.nextSeq = seq;
+				flow.lost = false;
+				append(flow, data, 0, requests);
+			}else if(offset>=0){
+				flow.nextSeq = (seq+data.length)&0xffffffffL;
+			}
+			return;
+		}
+		if(offset>0){
+			keepPending(flow, seq, data);
+			return;
+		}
+		if(-offset>=data.length){
+			retransmitted++;
+			return;
+		}
+		if(offset<0){
+			retransmitted++;
+		}
+		append(flow, data, -offset, requests);
+	}
+
+	private void keepPending(Flow flow, long seq, byte[] data){
+		outOfOrder++;
+		if(flow.pendingCount==MAX_PENDING || flow.pendingBytes+data.length>maxFlowBytes){
+			// the hole is too big, give up on this flow until the next request line
+			lose(flow);
+			return;
+		}
+		flow.pendingSeq[flow.pendingCount] = seq;
+		flow.pendingData[flow.pendingCount] = data;
+		flow.pendingCount++;
+		flow.pendingBytes += data.length;
+		totalBytes += data.length;
+	}
+
+	/**
+	 * Appends pending segments that became contiguous.
+	 */
+	private void drainPending(Flow flow, List<HttpRequest> requests){
+		boolean progress = true;
+		while(progress && flow.pendingCount>0){
+			progress = false;
+			for(int i=0; i<flow.pendingCount; i++){
+				int offset = (int)(flow.pendingSeq[i]-flow.nextSeq);
+				if(offset<=0){
+					byte[] data = flow.pendingData[i];
+					flow.pendingCount--;
+					flow.pendingBytes -= data.length;
+					totalBytes -= data.length;
+					flow.pendingSeq[i] = flow.pendingSeq[flow.pendingCount];
+					flow.pendingData[i] = flow.pendingData[flow.pendingCount];
+					flow.pendingData[flow.pendingCount] = null;
+					if(-offset<data.length && !flow.lost){
+						// lose() in an earlier append clears the pending segments
+						append(flow, data, -offset, requests);
+					}
+					progress = true;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Consumes in order bytes: skips request bodies, buffers and cuts request heads.
+	 */
+	private void append(Flow flow, byte[] data, int from, List<HttpRequest> requests){
+		flow.nextSeq = (flow.nextSeq+data.length-from)&0xffffffffL;
+		int i = from;
+		while(i<data.length){
+			if(flow.bodyRemaining>0){
+				int skip = (int)Math.min(flow.bodyRemaining, data.length-i);
+				flow.bodyRemaining -= skip;
+				i += skip;
+				continue;
+			}
+			if(flow.length==0 && (data[i]=='\r' || data[i]=='\n')){
+				// line breaks between keep-alive requests
+				i++;
+				continue;
+			}
+			// copy up to the end of a request head or the end of the segment
+			int start = i;
+			int headEnd = -1;
+			while(i<data.length){
+				byte b = data[i++];
+				if(b=='\n' && endsHead(flow, data, start, i)){
+					headEnd = i;
+					break;
+				}
+			}
+			if(flow.length+(i-start)>maxFlowBytes){
+				overflows++;
+				lose(flow);
+				return;
+			}
+			ensureCapacity(flow, flow.length+(i-start));
+			System.arraycopy(data, start, flow.buffer, flow.length, i-start);
+			flow.length += i-start;
+			if(headEnd>=0){
+				emit(flow, requests);
+				if(flow.lost){
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * true if the '\n' just copied ends an empty line, looking back into the flow buffer
+	 */
+	private static boolean endsHead(Flow flow, byte[] data, int start, int end){
+		int n = end-1;	// the '\n'
+		byte prev = at(flow, data, start, n-1);
+		if(prev=='\n'){
+			return true;
+		}
+		return prev=='\r' && at(flow, data, start, n-2)=='\n';
+	}
+
+	/**
+	 * Byte at position i of the current segment, negative positions are in the buffer.
+	 */
+	private static byte at(Flow flow, byte[] data, int start, int i){
+		if(i>=start){
+			return data[i];
+		}
+		int b = flow.length-(start-i);
+		return b>=0 ? flow.buffer[b] : 0;
+	}
+
+	private void ensureCapacity(Flow flow, int needed){
+		if(needed<=flow.buffer.length){
+			return;
+		}
+		int size = flow.buffer.length;
+		while(size<needed){
+			size <<= 1;
+		}
+		size = Math.min(size, maxFlowBytes);
+		byte[] buffer = new byte[size];
+		System.arraycopy(flow.buffer, 0, buffer, 0, flow.length);
+		totalBytes += size-flow.buffer.length;
+		flow.buffer = buffer;
+	}
+
+	/**
+	 * The buffer holds exactly one request head, hand it out.
+	 */
+	private void emit(Flow flow, List<HttpRequest> requests){
+		byte[] head = new byte[flow.length];
+		System.arraycopy(flow.buffer, 0, head, 0, flow.length);
+		flow.length = 0;
+		HttpRequest http = new HttpRequest();
+		if(!http.parse(head)){
+			// not a request, e.g. we are inside a body we could not measure
+			lose(flow);
+			return;
+		}
+		this.requests++;
+		requests.add(http);
+		String contentLength = http.header("Content-Length");
+		if(contentLength!=null){
+			try{
+				flow.bodyRemaining = Long.parseLong(contentLength.trim());
+			}catch(NumberFormatException e){
+				lose(flow);
+			}
+		}else if(http.header("Transfer-Encoding")!=null){
+			// chunked bodies are not followed
+			lose(flow);
+		}
+	}
+
+	private void lose(Flow flow){
+		flow.lost = true;
+		flow.length = 0;
+		flow.bodyRemaining = 0;
+		totalBytes -= flow.pendingBytes;
+		flow.pendingBytes = 0;
+		for(int i=0; i<flow.pendingCount; i++){
+			flow.pendingData[i] = null;
+		}
+		flow.pendingCount = 0;
+		totalBytes -= flow.buffer.length-INITIAL_BUFFER;
+		if(flow.buffer.length>INITIAL_BUFFER){
+			flow.buffer = new byte[INITIAL_BUFFER];
+		}
+	}
+
+	/**
+	 * Drops the least recently used flows until the budget is met.
+	 */
+	private void evict(){
+		Iterator<Flow> it = flows.values().iterator();
+		while(totalBytes>maxTotalBytes && it.hasNext()){
+			Flow flow = it.next();
+			totalBytes -= flow.memory();
+			it.remove();
+			evicted++;
+		}
+	}
+
+	/**
+	 * Drops flows without packets for idleMillis, the least recently used come first.
+	 */
+	private void expire(long now){
+		Iterator<Flow> it = flows.values().iterator();
+		while(it.hasNext()){
+			Flow flow = it.next();
+			if(now-flow.lastSeen<idleMillis){
+				break;
+			}
+			totalBytes -= flow.memory();
+			it.remove();
+			expired++;
+		}
+	}
+
+	public synchronized int getFlows(){
+		return flows.size();
+	}
+
+	/** bytes buffered by all flows */
+	public synchronized long getTotalBytes(){
+		return totalBytes;
+	}
+
+	public synchronized long getRequests(){
+		return requests;
+	}
+
+	public synchronized long getRetransmitted(){
+		return retransmitted;
+	}
+
+	public synchronized String toString(){
+		return "reassembly: "+flows.size()+" flows, "+totalBytes+" bytes, requests "+requests+" retransmitted "+retransmitted
+			+" out of order "+outOfOrder+" overflows "+overflows+" evicted "+evicted+" expired "+expired;
+	}
+}
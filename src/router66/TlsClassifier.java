@@ -0,0 +1,137 @@
+package router66;
+
+import jpcap.packet.IPPacket;
+import jpcap.packet.TCPPacket;
+
+/**
+ * Encrypted connections, HTTPS on 443 and IMAP on 993, classified once per
+ * connection with its first payload. The server is named by the SNI of the
+ * ClientHello, else by the name the client resolved, reverse DNS only if
+ * neither is known. Without a cached name the raw address is used, later
+ * connections get the name. A ClientHello cut off before its server_name,
+ * large ones with post-quantum key shares or padding, is kept with the flow
+ * until the following segments complete it.
+ */
+public class TlsClassifier implements PacketClassifier {
+	/** a ClientHello is one handshake record at most */
+	static final int MAX_HELLO_BYTES = 5+16*1024;
+
+	/**
+	 * The start of a ClientHello that continues in the next segments, kept
+	 * as the result of its flow
+	 */
+	private static class PendingHello {
+		byte[] data;
+		long nextSeq;
+		boolean gap = false;
+
+		PendingHello(TCPPacket packet){
+			data = packet.data;
+			nextSeq = ((packet.sequence&0xffffffffL)+data.length)&0xffffffffL;
+		}
+
+		/**
+		 * Appends the next segment, a retransmission is ignored and a segment
+		 * after a gap ends the wait.
+		 * @return false if nothing was added
+		 */
+		boolean add(TCPPacket packet){
+			long seq = packet.sequence&0xffffffffL;
+			if(seq!=nextSeq){
+				// distance modulo 2^32, behind nextSeq is a retransmission
+				gap = ((seq-nextSeq)&0xffffffffL)<0x80000000L;
+				return false;
+			}
+			byte[] joined = new byte[data.length+packet.data.length];
+			System.arraycopy(data, 0, joined, 0, data.length);
+			System.arraycopy(packet.data, 0, joined, data.length, packet.data.length);
+			data = joined;
+			nextSeq = (nextSeq+packet.data.length)&0xffffffffL;
+			return true;
+		}
+	}
+
+	private Sorter sorter;
+	private MsgWriter msgWriter;
+	private DomainRules<Sorter.Handler> rules;
+	private final TlsClientHello hello = new TlsClientHello();
+
+	public void init(Sorter sorter, ClassifierTable table){
+		this.sorter = sorter;
+		this.msgWriter = sorter.getMsgWriter();
+		this.rules = sorter.getRules();
+		table.addTcp(this, 443, 993);
+	}
+
+	public void classify(IPPacket packet){
+		TCPPacket thePacket = (TCPPacket)packet;
+		FlowTable flows = sorter.getFlows();
+		PendingHello pending;
+		if(flows.update(thePacket)){
+			pending = new PendingHello(thePacket);
+		}else{
+			Object result = flows.getResult(thePacket);
+			if(!(result instanceof PendingHello)){
+				return;
+			}
+			pending = (PendingHello)result;
+			boolean added = thePacket.data!=null && thePacket.data.length>0 && pending.add(thePacket);
+			// the connection ends before the hello is complete, classify what there is
+			if(!added && !pending.gap && !thePacket.fin && !thePacket.rst){
+				return;
+			}
+		}
+		boolean parsed = hello.parse(pending.data);
+		if(parsed && hello.serverName()==null && hello.isTruncated() && pending.data.length<MAX_HELLO_BYTES
+				&& !pending.gap && !thePacket.fin && !thePacket.rst){
+			flows.setResult(thePacket, pending);
+			if(flows.getResult(thePacket)==pending){
+				return;
+			}
+			// an untracked flow, classify what there is
+		}
+		String client = sorter.clientName(thePacket);
+		String host = parsed ? hello.serverName() : null;
+		if(host==null){
+			host = resolvedName(thePacket);
+		}
+		sorter.getFlows().setResult(thePacket, host);
+		if(thePacket.dst_port==993){
+			msgWriter.wIMAP(new SortMsg(client, host));
+			return;
+		}
+		if(!Sorter.validateIPAddress(host)){				// host is no IP Adress
+			Sorter.Handler sslHandler = rules.match(host, DomainRules.TCP, 443);
+			if(sslHandler==Sorter.Handler.IGNORE){
+				//System.out.println("google ssl");
+			}
+			/**
+			 * Evernote SSL
+			 */
+			else if(sslHandler==Sorter.Handler.EVERNOTE){
+				msgWriter.wEvernote(new SortMsg(client,""));
+			}
+			/**
+			 * Facebook SSL
+			 */
+			else if(sslHandler==Sorter.Handler.FACEBOOK){
+					msgWriter.wFacebook(new SortMsg(client, ""));
+			}
+			/**
+			 * Standard SSL
+			 */
+			else{
+				msgWriter.wSSLDomain(new SortMsg(client,Sorter.shortUrl(host)));
+			}
+		}
+	}
+
+	/**
+	 * @return the name the client looked up for the server, else its cached
+	 * reverse DNS name, else the address
+	 */
+	private String resolvedName(TCPPacket thePacket){
+		String name = sorter.getPassiveDns().lookup(thePacket.src_ip, thePacket.dst_ip, thePacket.sec*1000+thePacket.usec/1000);
+		return name!=null ? name : sorter.getResolver().lookupOrAddress(thePacket.dst_ip);
+	}
+}
@@ -0,0 +1,189 @@
+package router66;
+
+/**
+ * Reads the server_name (SNI) and ALPN extensions of a TLS ClientHello from
+ * the first payload of a connection, no network I/O is needed to learn which
+ * site is visited. A ClientHello larger than the segment is parsed as far as
+ * it goes, the extensions behind the cut are missing then. An instance can be
+ * reused, it is not thread safe.
+ */
+public class TlsClientHello {
+	static final int CONTENT_HANDSHAKE = 22;
+	static final int HANDSHAKE_CLIENT_HELLO = 1;
+	static final int EXTENSION_SERVER_NAME = 0;
+	static final int EXTENSION_ALPN = 16;
+	static final int NAME_TYPE_HOST = 0;
+	static final int MAX_PROTOCOLS = 8;
+
+	private byte[] data;
+	private int version;
+	private boolean truncated;
+	private int serverNameStart, serverNameEnd;		// -1 if not found
+	private int protocolCount;
+	private final int[] protocolStart = new int[MAX_PROTOCOLS];
+	private final int[] protocolEnd = new int[MAX_PROTOCOLS];
+	private String serverName;
+
+	public boolean parse(byte[] data){
+		return parse(data, 0, data==null ? 0 : data.length);
+	}
+
+	/**
+	 * @param data
+	 * @param offset start of the TLS record
+	 * @param length
+	 * @return true if the bytes start with a ClientHello
+	 */
+	public boolean parse(byte[] data, int offset, int length){
+		this.data = data;
+		version = 0;
+		truncated = false;
+		serverNameStart = -1;
+		serverNameEnd = -1;
+		protocolCount = 0;
+		serverName = null;
+		if(data==null || length<9){
+			return false;
+		}
+		int end = offset+length;
+		int p = offset;
+		// record header: type, version, length
+		if((data[p]&0xff)!=CONTENT_HANDSHAKE || data[p+1]!=3){
+			return false;
+		}
+		int recordEnd = p+5+u16(p+3);
+		p += 5;
+		// handshake header: type, 24 bit length
+		if((data[p]&0xff)!=HANDSHAKE_CLIENT_HELLO){
+			return false;
+		}
+		int helloEnd = Math.min(recordEnd, p+4+(u16(p+2)|(data[p+1]&0xff)<<16));
+		if(helloEnd>end){
+			truncated = true;
+			helloEnd = end;
+		}
+		p += 4;
+		if(p+2>helloEnd){
+			return true;
+		}
+		version = u16(p);
+		p += 2+32;						// client version, random
+		if(p+1>helloEnd){
+			return true;
+		}
+		p += 1+(data[p]&0xff);			// session id
+		if(p+2>helloEnd){
+			return true;
+		}
+		p += 2+u16(p);					// cipher suites
+		if(p+1>helloEnd){
+			return true;
+		}
+		p += 1+(data[p]&0xff);			// compression methods
+		if(p+2>helloEnd){
+			return true;
+		}
+		int extensionsEnd = Math.min(helloEnd, p+2+u16(p));
+		p += 2;
+		while(p+4<=extensionsEnd){
+			int type = u16(p);
+			int extensionEnd = p+4+u16(p+2);
+			p += 4;
+			int available = Math.min(extensionEnd, extensionsEnd);
+			if(type==EXTENSION_SERVER_NAME){
+				serverName(p, available);
+			}else if(type==EXTENSION_ALPN){
+				alpn(p, available);
+			}
+			p = extensionEnd;
+		}
+		return true;
+	}
+
+	private void serverName(int p, int end){
+		if(p+2>end){
+			return;
+		}
+		int listEnd = Math.min(end, p+2+u16(p));
+		p += 2;
+		while(p+3<=listEnd){
+			int type = data[p]&0xff;
+			int nameEnd = p+3+u16(p+1);
+			if(type==NAME_TYPE_HOST && nameEnd<=listEnd){
+				serverNameStart = p+3;
+				serverNameEnd = nameEnd;
+				return;
+			}
+			p = nameEnd;
+		}
+	}
+
+	private void alpn(int p, int end){
+		if(p+2>end){
+			return;
+		}
+		int listEnd = Math.min(end, p+2+u16(p));
+		p += 2;
+		while(p+1<=listEnd && protocolCount<MAX_PROTOCOLS){
+			int protocolEnd = p+1+(data[p]&0xff);
+			if(protocolEnd>listEnd){
+				return;
+			}
+			this.protocolStart[protocolCount] = p+1;
+			this.protocolEnd[protocolCount] = protocolEnd;
+			protocolCount++;
+			p = protocolEnd;
+		}
+	}
+
+	private int u16(int p){
+		return (data[p]&0xff)<<8 | (data[p+1]&0xff);
+	}
+
+	private String ascii(int start, int end){
+		char[] chars = new char[end-start];
+		for(int i=start; i<end; i++){
+			chars[i-start] = (char)(data[i]&0xff);
+		}
+		return new String(chars);
+	}
+
+	/** the host name the client asked for or null */
+	public String serverName(){
+		if(serverName==null && serverNameStart>=0){
+			serverName = ascii(serverNameStart, serverNameEnd).toLowerCase();
+		}
+		return serverName;
+	}
+
+	/** number of protocols offered with ALPN, e.g. h2 and http/1.1 */
+	public int protocolCount(){
+		return protocolCount;
+	}
+
+	public String protocol(int i){
+		return ascii(protocolStart[i], protocolEnd[i]);
+	}
+
+	/** client_version of the hello, 0x0303 for TLS 1.2 and 1.3 */
+	public int version(){
+		return version;
+	}
+
+	/** true if the ClientHello continues in the next segment */
+	public boolean isTruncated(){
+		return truncated;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("ClientHello ");
+		sb.append(serverName());
+		for(int i=0; i<protocolCount; i++){
+			sb.append(i==0 ? " alpn " : ",").append(protocol(i));
+		}
+		if(truncated){
+			sb.append(" (truncated)");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,196 @@
+package router66;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Takes one value out of a parsed HttpRequest, e.g. the search terms of a
+ * query parameter, by offsets into the request, and decodes it with a
+ * PercentDecoder. Extractors are declared by name in a file next to the
+ * domain rules, one per line:
+ *
+ *   name source kind argument [spaces]
+ *
+ * source is "target", the request target, or "referer". kind is "query",
+ * the value of the parameter named by the argument, "before", the path
+ * segment in front of the argument, or "after", the path behind it. The
+ * characters in spaces are decoded to a space, e.g. + for queries.
+ * # starts a comment.
+ */
+public class UrlExtractor {
+	public enum Source { TARGET, REFERER }
+	public enum Kind { QUERY, BEFORE, AFTER }
+
+	private final String name;
+	private final Source source;
+	private final Kind kind;
+	private final String argument;
+	private final String spaces;
+
+	public UrlExtractor(String name, Source source, Kind kind, String argument, String spaces){
+		if(argument.length()==0){
+			throw new IllegalArgumentException(name+": empty argument");
+		}
+		this.name = name;
+		this.source = source;
+		this.kind = kind;
+		this.argument = argument;
+		this.spaces = spaces;
+	}
+
+	/**
+	 * @param http a parsed request
+	 * @param decoder
+	 * @return the decoded value or null if the request has none
+	 */
+	public String extract(HttpRequest http, PercentDecoder decoder){
+		if(!http.isRequest()){
+			return null;
+		}
+		int start, end;
+		if(source==Source.TARGET){
+			start = http.targetStart();
+			end = kind==Kind.QUERY ? http.targetEnd() : http.pathEnd();
+		}else{
+			int referer = http.refererHeader();
+			if(referer<0){
+				return null;
+			}
+			start = http.headerValueStart(referer);
+			end = http.headerValueEnd(referer);
+		}
+		byte[] data = http.data();
+		switch(kind){
+			case QUERY:
+				if(source==Source.TARGET){
+					start = http.queryParameterStart(argument);
+					if(start<0){
+						return null;
+					}
+				}else{
+					start = parameterStart(data, start, end);
+					if(start<0){
+						return null;
+					}
+				}
+				end = until(data, start, end, '&');
+				break;
+			case BEFORE:
+				int marker = http.indexOf(argument, start, end);
+				if(marker<0){
+					return null;
+				}
+				end = marker;
+				while(marker>start && data[marker-1]!='/'){
+					marker--;
+				}
+				if(marker==end){
+					return null;
+				}
+				start = marker;
+				break;
+			case AFTER:
+				int found = http.indexOf(argument, start, end);
+				if(found<0){
+					return null;
+				}
+				start = found+argument.length();
+				end = until(data, start, end, '?');
+				end = until(data, start, end, '#');
+				break;
+			default:
+				return null;
+		}
+		return decoder.decode(data, start, end, spaces);
+	}
+
+	/**
+	 * @return offset of the value of the parameter in the query of the URL in data[start, end) or -1
+	 */
+	private int parameterStart(byte[] data, int start, int end){
+		int i = until(data, start, end, '?');
+		int n = argument.length();
+		while(i<end){
+			i++;		// behind '?' or '&'
+			boolean match = i+n<end && data[i+n]=='=';
+			for(int k=0; match && k<n; k++){
+				match = data[i+k]==argument.charAt(k);
+			}
+			if(match){
+				return i+n+1;
+			}
+			i = until(data, i, end, '&');
+		}
+		return -1;
+	}
+
+	/**
+	 * @return offset of the first c in data[start, end) or end
+	 */
+	private static int until(byte[] data, int start, int end, char c){
+		for(int i=start; i<end; i++){
+			if(data[i]==c){
+				return i;
+			}
+		}
+		return end;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Reads the extractors of a file.
+	 * @param file
+	 * @return the extractors by name
+	 * @throws IOException
+	 */
+	public static Map<String, UrlExtractor> load(File file) throws IOException{
+		return load(new FileReader(file), file.getName());
+	}
+
+	public static Map<String, UrlExtractor> load(Reader in, String fileName) throws IOException{
+		Map<String, UrlExtractor> extractors = new LinkedHashMap<String, UrlExtractor>();
+		BufferedReader reader = new BufferedReader(in);
+		try{
+			String line;
+			int number = 0;
+			while((line = reader.readLine())!=null){
+				number++;
+				int comment = line.indexOf('#');
+				if(comment>=0){
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if(line.length()==0){
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if(fields.length<4 || fields.length>5){
+					System.out.println(fileName+":"+number+": expected name source kind argument [spaces], skipping "+line);
+					continue;
+				}
+				try{
+					Source source = Source.valueOf(fields[1].toUpperCase());
+					Kind kind = Kind.valueOf(fields[2].toUpperCase());
+					extractors.put(fields[0], new UrlExtractor(fields[0], source, kind, fields[3], fields.length==5 ? fields[4] : ""));
+				}catch(IllegalArgumentException e){
+					System.out.println(fileName+":"+number+": "+e.getMessage()+", skipping "+line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return extractors;
+	}
+
+	public String toString(){
+		return name+" "+source.name().toLowerCase()+" "+kind.name().toLowerCase()+" "+argument+" "+spaces;
+	}
+}
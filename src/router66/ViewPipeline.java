@@ -0,0 +1,286 @@
+package router66;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jpcap.JpcapCaptor;
+import jpcap.RawPacketReceiver;
+
+import router66.RingBuffer.OverflowPolicy;
+import router66.RingBuffer.WaitStrategy;
+
+/**
+ * Variant of the PacketPipeline without jpcap packets on the capture thread.
+ * The native side copies the raw frames into preallocated direct buffers
+ * (segments), the workers decode them in place with a PacketView and hand
+ * them to Sorter.sortView. No Packet, byte[] or InetAddress is created for
+ * frames the Sorter is not interested in, but the classifiers still get a
+ * Packet made by PacketView.toPacket for each frame on one of their ports,
+ * which with the capture filter is nearly every frame. What is saved is the
+ * per packet JNI work and garbage of the capture thread, not the allocation
+ * of the classification.
+ * Every worker reads every segment but only classifies the frames of the
+ * clients of its Sorter shard, as the PacketPipeline routes them, a segment
+ * is free again once the last worker is through.
+ */
+public class ViewPipeline implements RawPacketReceiver, EventMerger.Progress {
+	/**
+	 * A direct buffer, the number of records in it and the workers that
+	 * still have to read it
+	 */
+	private static class Segment {
+		final ByteBuffer buffer;
+		final AtomicInteger readers = new AtomicInteger();
+		int count;
+
+		Segment(int size){
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	private final EventMerger events;
+	private final OverflowPolicy overflowPolicy;
+	private final RingBuffer<Segment> free;
+	private final int segmentSize;
+	private final int totalSegments;
+	private final Worker[] workers;
+	private Segment scratch;		// capture thread only, created when first needed
+	private int allocated = 0;		// capture thread only
+	private Segment claimed;		// capture thread only
+	private volatile long routed = 0;	// segments handed to the workers, written by the capture thread only
+	private volatile long taken = 0;	// of these dropped by DROP_OLDEST, written by the capture thread only
+
+	private final AtomicLong captured = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong droppedNewest = new AtomicLong();
+	private final AtomicLong droppedOldest = new AtomicLong();
+
+	/**
+	 * @param shards one Sorter per worker, writing to the shards of events
+	 * @param events
+	 * @param segments number of filled segments that can wait for a worker,
+	 * the direct buffers are allocated when the capture first needs them
+	 * @param segmentSize bytes per segment, should hold many snaplen sized frames
+	 * @param overflowPolicy what to do when no segment is free, DROP_OLDEST
+	 * drops the newest with more than one worker, they share the queued segments
+	 * @param waitStrategy
+	 */
+	public ViewPipeline(Sorter[] shards, EventMerger events, int segments, int segmentSize, OverflowPolicy overflowPolicy, WaitStrategy waitStrategy){
+		this.events = events;
+		this.overflowPolicy = overflowPolicy;
+		this.workers = new Worker[shards.length];
+		for(int i=0; i<shards.length; i++){
+			// the policy is applied when claiming a free segment, so the queues themselves never overflow
+			workers[i] = new Worker(i, shards[i], new RingBuffer<Segment>(segments, OverflowPolicy.BLOCK, waitStrategy));
+		}
+		this.segmentSize = segmentSize;
+		this.totalSegments = workers[0].full.capacity()+shards.length+1;
+		this.free = new RingBuffer<Segment>(totalSegments, OverflowPolicy.BLOCK, waitStrategy);
+	}
+
+	public void start(){
+		events.start(this);
+		for(Worker worker : workers){
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * Captures one batch into a free segment, called on the capture thread.
+	 * @param jpcap
+	 * @param max max packets per batch, -1 for as many as fit into a segment
+	 * @return see JpcapCaptor.dispatchRaw
+	 */
+	public int dispatch(JpcapCaptor jpcap, int max){
+		claimed = claim();
+		int count = jpcap.dispatchRaw(max, claimed.buffer, this);
+		if(count<=0 && claimed!=scratch){
+			free.offer(claimed);
+		}
+		claimed = null;
+		return count;
+	}
+
+	private Segment claim(){
+		Segment segment = free.poll();
+		if(segment!=null){
+			return segment;
+		}
+		if(allocated<totalSegments){
+			allocated++;
+			return new Segment(segmentSize);
+		}
+		switch(overflowPolicy){
+			case DROP_NEWEST:
+				return scratch();
+			case DROP_OLDEST:
+				if(workers.length>1){
+					// a queued segment may be half read by the other workers
+					return scratch();
+				}
+				segment = workers[0].full.poll();
+				if(segment!=null){
+					droppedOldest.addAndGet(segment.count);
+					taken++;
+					return segment;
+				}
+				break;
+			case BLOCK:
+				blocked.incrementAndGet();
+				break;
+		}
+		return free.take();
+	}
+
+	/**
+	 * @return the segment frames are captured into to be dropped
+	 */
+	private Segment scratch(){
+		if(scratch==null){
+			scratch = new Segment(segmentSize);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Called by JpcapCaptor.dispatchRaw once the segment is filled.
+	 */
+	public void receiveRaw(ByteBuffer buffer, int count){
+		captured.addAndGet(count);
+		if(claimed==scratch){
+			droppedNewest.addAndGet(count);
+			return;
+		}
+		claimed.count = count;
+		claimed.readers.set(workers.length);
+		routed++;
+		for(Worker worker : workers){
+			worker.full.offer(claimed);
+		}
+	}
+
+	/**
+	 * Stops the workers once the queued segments are classified and waits
+	 * until the events are written.
+	 */
+	public void shutdown() throws InterruptedException{
+		for(Worker worker : workers){
+			worker.full.close();
+		}
+		for(Worker worker : workers){
+			worker.thread.join();
+		}
+		events.shutdown();
+	}
+
+	public long watermark(int shard){
+		Worker worker = workers[shard];
+		// done first: if it equals routed, the worker read every segment
+		if(worker.done+taken==routed){
+			return Long.MAX_VALUE;
+		}
+		return worker.lastTs;
+	}
+
+	/** filled segments waiting for the slowest worker */
+	public int getQueuedSegments(){
+		int queued = 0;
+		for(Worker worker : workers){
+			queued = Math.max(queued, worker.full.size());
+		}
+		return queued;
+	}
+
+	public long getCaptured(){
+		return captured.get();
+	}
+
+	/** batches that had to wait for a free segment (BLOCK) */
+	public long getBlocked(){
+		return blocked.get();
+	}
+
+	/** packets thrown away because no segment was free (DROP_NEWEST) */
+	public long getDroppedNewest(){
+		return droppedNewest.get();
+	}
+
+	/** queued packets overwritten by newer ones (DROP_OLDEST) */
+	public long getDroppedOldest(){
+		return droppedOldest.get();
+	}
+
+	public long getClassified(){
+		long classified = 0;
+		for(Worker worker : workers){
+			classified += worker.classified;
+		}
+		return classified;
+	}
+
+	public long getFailed(){
+		long failed = 0;
+		for(Worker worker : workers){
+			failed += worker.failed;
+		}
+		return failed;
+	}
+
+	public String toString(){
+		return "view pipeline: "+workers.length+" workers, segments "+getQueuedSegments()+"/"+workers[0].full.capacity()
+			+" captured "+captured.get()+" classified "+getClassified()+" failed "+getFailed()
+			+" blocked "+blocked.get()+" dropped newest "+droppedNewest.get()+" dropped oldest "+droppedOldest.get();
+	}
+
+	/**
+	 * Classifies the frames of one shard
+	 */
+	private class Worker implements Runnable {
+		final int index;
+		final Sorter sorter;
+		final EventMerger.Shard shardEvents;
+		final RingBuffer<Segment> full;
+		final Thread thread;
+		private final PacketView view = new PacketView();
+		volatile long done = 0;			// segments read
+		volatile long classified = 0;
+		volatile long failed = 0;
+		volatile long lastTs = Long.MIN_VALUE;
+
+		Worker(int index, Sorter sorter, RingBuffer<Segment> full){
+			this.index = index;
+			this.sorter = sorter;
+			this.shardEvents = events.getShard(index);
+			this.full = full;
+			this.thread = new Thread(this, "view-sorter-"+index);
+			this.thread.setDaemon(true);
+		}
+
+		public void run(){
+			Segment segment;
+			while((segment = full.take())!=null){
+				int offset = 0;
+				for(int i=0; i<segment.count; i++){
+					offset = view.wrapRaw(segment.buffer, offset);
+					if(workers.length==1 || PacketPipeline.shard(sorter.clientHash(view), workers.length)==index){
+						shardEvents.setTime(view.sec(), view.usec());
+						try{
+							sorter.sortView(view);
+							classified++;
+						}catch(RuntimeException e){
+							failed++;
+						}
+					}
+					// every worker sees every frame, the others are not older
+					lastTs = view.sec()*1000000L+view.usec();
+				}
+				done++;
+				if(segment.readers.decrementAndGet()==0){
+					segment.count = 0;
+					free.offer(segment);
+				}
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package router66;
 
 import java.io.*;
 import java.net.URL;
+import java.net.URLConnection;
 
 public class WebsiteReader
 {
@@ -9,4 +10,15 @@ public class WebsiteReader
 		return new BufferedReader(
 			new InputStreamReader(
 				new URL(url).openStream(),"UTF-8"));}
+
+	/**
+	 * Like read(url), but gives up connecting or waiting for data after timeoutMillis.
+	 */
+	public static BufferedReader read(String url, int timeoutMillis) throws Exception{
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		return new BufferedReader(
+			new InputStreamReader(
+				connection.getInputStream(),"UTF-8"));}
 }
\ No newline at end of file